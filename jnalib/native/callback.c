@@ -23,6 +23,7 @@
 #else
 #  include <sys/types.h>
 #  include <sys/param.h>
+#  include <pthread.h>
 #endif
 #include "dispatch.h"
 
@@ -30,15 +31,87 @@
 extern "C" {
 #endif
 
+// Atomic updates of a callback's active count; each implies a full
+// memory barrier
+#ifdef _MSC_VER
+#define ATOMIC_INCREMENT(P) InterlockedIncrement(P)
+#define ATOMIC_DECREMENT(P) InterlockedDecrement(P)
+#define MEMORY_BARRIER() MemoryBarrier()
+#else
+#define ATOMIC_INCREMENT(P) __sync_add_and_fetch(P, 1)
+#define ATOMIC_DECREMENT(P) __sync_sub_and_fetch(P, 1)
+#define MEMORY_BARRIER() __sync_synchronize()
+#endif
+
 static void callback_dispatch(ffi_cif*, void*, void**, void*);
 
 static jclass classObject;
+static jclass classCallbackReference;
+static jmethodID MID_CallbackReference_fromNativeArguments;
+static jmethodID MID_CallbackReference_toNativeResult;
+static jmethodID MID_FromNativeConverter_nativeType;
+static jmethodID MID_ToNativeConverter_nativeType;
+static jmethodID MID_Class_isPrimitive;
+
+// Records the VM to which a native thread was left attached, so that the
+// thread may be detached when it exits
+#ifdef _WIN32
+static DWORD tls_thread_key = TLS_OUT_OF_INDEXES;
+#define HAVE_THREAD_KEY() (tls_thread_key != TLS_OUT_OF_INDEXES)
+#define SET_THREAD_VM(VM) TlsSetValue(tls_thread_key, (VM))
+
+BOOL WINAPI
+DllMain(HINSTANCE UNUSED(hinst), DWORD reason, LPVOID UNUSED(reserved)) {
+  if (reason == DLL_THREAD_DETACH && HAVE_THREAD_KEY()) {
+    JavaVM* jvm = (JavaVM*)TlsGetValue(tls_thread_key);
+    if (jvm) {
+      (*jvm)->DetachCurrentThread(jvm);
+    }
+  }
+  return TRUE;
+}
+#else
+static pthread_key_t tls_thread_key;
+static int tls_thread_key_valid;
+#define HAVE_THREAD_KEY() (tls_thread_key_valid)
+#define SET_THREAD_VM(VM) (pthread_setspecific(tls_thread_key, (VM)) == 0)
+
+static void
+detach_thread(void* data) {
+  JavaVM* jvm = (JavaVM*)data;
+  (*jvm)->DetachCurrentThread(jvm);
+}
+#endif
+
+// Returns the type used to pass the given class to or from a Java method;
+// '*' for any object type
+static char
+get_java_jtype(JNIEnv* env, jclass cls) {
+  if ((*env)->CallBooleanMethod(env, cls, MID_Class_isPrimitive)) {
+    return (char)get_jtype(env, cls);
+  }
+  return '*';
+}
+
+static ffi_type*
+get_java_ffi_type(JNIEnv* env, jclass cls, char jtype) {
+  switch(jtype) {
+  case '*': return &ffi_type_pointer;
+  // Java method is varargs, so promote floats to double
+  case 'F': return &ffi_type_double;
+  default: return get_ffi_type(env, cls, jtype);
+  }
+}
 
 callback*
 create_callback(JNIEnv* env, jobject obj, jobject method,
                 jobjectArray param_types, jclass return_type,
-                callconv_t calling_convention, jboolean direct) {
+                callconv_t calling_convention, jint flags,
+                jobjectArray from_native, jobject to_native) {
   callback* cb;
+  jboolean direct = (flags & CB_DIRECT) ? JNI_TRUE : JNI_FALSE;
+  jclass java_return_type = return_type;
+  int mapped = 0;
   ffi_abi abi = FFI_DEFAULT_ABI;
   ffi_abi java_abi = FFI_DEFAULT_ABI;
   ffi_type* ffi_rtype;
@@ -58,7 +131,7 @@ create_callback(JNIEnv* env, jobject obj, jobject method,
   }
   argc = (*env)->GetArrayLength(env, param_types);
 
-  cb = (callback *)malloc(sizeof(callback));
+  cb = (callback *)calloc(1, sizeof(callback));
   cb->closure = ffi_closure_alloc(sizeof(ffi_closure), &cb->x_closure);
   cb->object = (*env)->NewWeakGlobalRef(env, obj);
   cb->methodID = (*env)->FromReflectedMethod(env, method);
@@ -68,14 +141,34 @@ create_callback(JNIEnv* env, jobject obj, jobject method,
   cb->arg_jtypes = (char*)malloc(sizeof(char) * argc);
   cb->flags = (int *)malloc(sizeof(int) * argc);
   cb->rflag = CVT_DEFAULT;
-  cb->arg_classes = (jobject*)malloc(sizeof(jobject) * argc);
+  cb->arg_classes = (jobject*)calloc(argc, sizeof(jobject));
  
   cb->direct = direct;
+  cb->thread_flags = flags;
   cb->java_arg_types[0] = cb->java_arg_types[1] = cb->java_arg_types[2] = &ffi_type_pointer;
 
   for (i=0;i < argc;i++) {
     int jtype;
     jclass cls = (*env)->GetObjectArrayElement(env, param_types, i);
+    jobject converter = from_native
+      ? (*env)->GetObjectArrayElement(env, from_native, i) : NULL;
+    if (converter != NULL) {
+      jclass ncls = (*env)->CallObjectMethod(env, converter, MID_FromNativeConverter_nativeType);
+      jtype = ncls ? get_jtype(env, ncls) : -1;
+      if (jtype == -1 || jtype == 's' || jtype == 'V') {
+        snprintf(msg, sizeof(msg), "Unsupported mapped native type at argument %d", i);
+        throw_type = EIllegalArgument;
+        throw_msg = msg;
+        goto failure_cleanup;
+      }
+      cb->flags[i] = CVT_TYPE_MAPPER;
+      cb->arg_types[i] = get_ffi_type(env, ncls, (char)jtype);
+      // Records how the converted value is passed to the Java method
+      cb->arg_jtypes[i] = get_java_jtype(env, cls);
+      cb->java_arg_types[i+3] = get_java_ffi_type(env, cls, cb->arg_jtypes[i]);
+      cvt = mapped = 1;
+      continue;
+    }
     if ((cb->flags[i] = get_conversion_flag(env, cls)) != CVT_DEFAULT) {
       cb->arg_classes[i] = (*env)->NewWeakGlobalRef(env, cls);
       cvt = 1;
@@ -124,7 +217,19 @@ create_callback(JNIEnv* env, jobject obj, jobject method,
     free(cb->arg_classes);
     cb->arg_classes = NULL;
   }
-  if (direct) {
+  if (direct && to_native) {
+    cb->rflag = CVT_TYPE_MAPPER;
+    cb->java_rtype = get_java_jtype(env, return_type);
+    return_type = (*env)->CallObjectMethod(env, to_native, MID_ToNativeConverter_nativeType);
+    if (!return_type) {
+      throw_type = EIllegalArgument;
+      throw_msg = "Unsupported TypeMapper native return type";
+      goto failure_cleanup;
+    }
+    cb->to_native = (*env)->NewGlobalRef(env, to_native);
+    mapped = 1;
+  }
+  else if (direct) {
     cb->rflag = get_conversion_flag(env, return_type);
     if (cb->rflag == CVT_NATIVE_MAPPED
         || cb->rflag == CVT_INTEGER_TYPE
@@ -132,6 +237,14 @@ create_callback(JNIEnv* env, jobject obj, jobject method,
       return_type = getNativeType(env, return_type);
     }
   }
+  if (mapped) {
+    // Converters receive the Java method and parameter types as context
+    cb->method = (*env)->NewGlobalRef(env, method);
+    cb->param_types = (*env)->NewGlobalRef(env, param_types);
+    if (from_native) {
+      cb->from_native = (*env)->NewGlobalRef(env, from_native);
+    }
+  }
 
 #if defined(_WIN32) && !defined(_WIN64)
   if (calling_convention == CALLCONV_STDCALL) {
@@ -156,10 +269,15 @@ create_callback(JNIEnv* env, jobject obj, jobject method,
   if (!ffi_error(env, "callback setup", status)) {
     ffi_type* java_ffi_rtype = ffi_rtype;
 
-    if (cb->rflag == CVT_STRUCTURE_BYVAL
+    if (cb->rflag == CVT_TYPE_MAPPER && cb->java_rtype != '*') {
+      rtype = cb->java_rtype;
+      java_ffi_rtype = get_ffi_rtype(env, java_return_type, (char)rtype);
+    }
+    else if (cb->rflag == CVT_STRUCTURE_BYVAL
         || cb->rflag == CVT_NATIVE_MAPPED
         || cb->rflag == CVT_POINTER_TYPE
-        || cb->rflag == CVT_INTEGER_TYPE) {
+        || cb->rflag == CVT_INTEGER_TYPE
+        || cb->rflag == CVT_TYPE_MAPPER) {
       // Java method returns a jobject, not a struct
       java_ffi_rtype = &ffi_type_pointer;
       rtype = '*';
@@ -187,14 +305,49 @@ create_callback(JNIEnv* env, jobject obj, jobject method,
  failure_cleanup:
   free_callback(env, cb);
   if (throw_type) {
-    throwByName(env, throw_type, msg);
+    throwByName(env, throw_type, throw_msg);
   }
 
   return NULL;
 }
+/* Make an unbound callback invoke the given object. */
+void
+bind_callback(JNIEnv* env, callback *cb, jobject obj) {
+  cb->object = (*env)->NewWeakGlobalRef(env, obj);
+}
+
+/* Detach the callback from its object, so that subsequent invocations find
+ * no object.  Returns whether no native thread is still invoking the
+ * callback; if one is, the old reference is kept and the callback must not
+ * be rebound or freed until a later call succeeds.
+ */
+jboolean
+unbind_callback(JNIEnv* env, callback *cb) {
+  if (cb->object) {
+    cb->released = cb->object;
+    cb->object = NULL;
+  }
+  // A thread which increments the count after this point will read the
+  // cleared object
+  MEMORY_BARRIER();
+  if (cb->active) {
+    return JNI_FALSE;
+  }
+  if (cb->released) {
+    (*env)->DeleteWeakGlobalRef(env, cb->released);
+    cb->released = NULL;
+  }
+  return JNI_TRUE;
+}
+
 void 
 free_callback(JNIEnv* env, callback *cb) {
-  (*env)->DeleteWeakGlobalRef(env, cb->object);
+  if (cb->object) {
+    (*env)->DeleteWeakGlobalRef(env, cb->object);
+  }
+  if (cb->released) {
+    (*env)->DeleteWeakGlobalRef(env, cb->released);
+  }
   ffi_closure_free(cb->closure);
   free(cb->arg_types);
   if (cb->arg_classes) {
@@ -208,6 +361,14 @@ free_callback(JNIEnv* env, callback *cb) {
   if (cb->flags)
     free(cb->flags);
   free(cb->arg_jtypes);
+  if (cb->method)
+    (*env)->DeleteGlobalRef(env, cb->method);
+  if (cb->param_types)
+    (*env)->DeleteGlobalRef(env, cb->param_types);
+  if (cb->from_native)
+    (*env)->DeleteGlobalRef(env, cb->from_native);
+  if (cb->to_native)
+    (*env)->DeleteGlobalRef(env, cb->to_native);
   free(cb);
 }
 
@@ -241,6 +402,73 @@ handle_exception(JNIEnv* env, jobject cb, jthrowable throwable) {
   return 0;
 }
 
+/* Convert all TypeMapper-converted arguments with a single call into Java,
+ * storing the converted values in the given space.  Returns zero if an
+ * exception was thrown.
+ */
+static int
+from_native_arguments(JNIEnv* env, callback* cb, void** args, jvalue* values) {
+  unsigned i;
+  unsigned nargs = cb->cif.nargs;
+  jobjectArray array = (*env)->NewObjectArray(env, nargs, classObject, NULL);
+
+  if (array == NULL) {
+    return 0;
+  }
+  for (i=0;i < nargs;i++) {
+    if (cb->flags[i] == CVT_TYPE_MAPPER) {
+      int jtype = get_jtype_from_ffi_type(cb->cif.arg_types[i]);
+      jobject value = new_object(env, (char)jtype, args[i+3], JNI_FALSE);
+      (*env)->SetObjectArrayElement(env, array, i, value);
+    }
+  }
+  (*env)->CallStaticVoidMethod(env, classCallbackReference,
+                               MID_CallbackReference_fromNativeArguments,
+                               cb->method, cb->param_types, array,
+                               cb->from_native);
+  if ((*env)->ExceptionCheck(env)) {
+    return 0;
+  }
+  for (i=0;i < nargs;i++) {
+    if (cb->flags[i] == CVT_TYPE_MAPPER) {
+      jobject value = (*env)->GetObjectArrayElement(env, array, i);
+      memset(&values[i], 0, sizeof(jvalue));
+      if (cb->arg_jtypes[i] == '*') {
+        values[i].l = value;
+      }
+      else if (value != NULL) {
+        if (cb->arg_jtypes[i] == 'F') {
+          float f;
+          extract_value(env, value, &f, sizeof(f), JNI_FALSE);
+          values[i].d = f;
+        }
+        else {
+          extract_value(env, value, &values[i], cb->java_arg_types[i+3]->size, JNI_FALSE);
+        }
+      }
+      args[i+3] = &values[i];
+    }
+  }
+  return 1;
+}
+
+/* Convert the Java result for the callback's TypeMapper.  Returns zero if
+ * an exception was thrown.
+ */
+static int
+to_native_result(JNIEnv* env, callback* cb, void* resp, void* result) {
+  jobject value = cb->java_rtype == '*'
+    ? *(jobject *)resp : new_object(env, cb->java_rtype, resp, JNI_TRUE);
+  jobject obj = (*env)->CallStaticObjectMethod(env, classCallbackReference,
+                                               MID_CallbackReference_toNativeResult,
+                                               cb->method, cb->to_native, value);
+  if ((*env)->ExceptionCheck(env)) {
+    return 0;
+  }
+  extract_value(env, obj, result, cb->cif.rtype->size, JNI_TRUE);
+  return 1;
+}
+
 static void
 callback_invoke(JNIEnv* env, callback *cb, ffi_cif* cif, void *resp, void **cbargs) {
   jobject self;
@@ -305,10 +533,22 @@ callback_invoke(JNIEnv* env, callback *cb, ffi_cif* cif, void *resp, void **cbar
     if (cb->rflag == CVT_STRUCTURE_BYVAL) {
       resp = alloca(sizeof(jobject));
     }
+    else if (cb->rflag == CVT_TYPE_MAPPER) {
+      // Java result may differ in size from the native result
+      resp = alloca(cb->java_cif.rtype->size > sizeof(ffi_arg)
+                    ? cb->java_cif.rtype->size : sizeof(ffi_arg));
+    }
     else if (cb->cif.rtype->size > cif->rtype->size) {
       resp = alloca(cb->cif.rtype->size);
     }
-    ffi_call(&cb->java_cif, FFI_FN(cb->fptr), resp, args);
+    if (!cb->from_native
+        || from_native_arguments(env, cb, args,
+                                 (jvalue*)alloca(cif->nargs * sizeof(jvalue)))) {
+      ffi_call(&cb->java_cif, FFI_FN(cb->fptr), resp, args);
+      if (cb->rflag == CVT_TYPE_MAPPER && !(*env)->ExceptionCheck(env)) {
+        to_native_result(env, cb, resp, oldresp);
+      }
+    }
     if ((*env)->ExceptionCheck(env)) {
       jthrowable throwable = (*env)->ExceptionOccurred(env);
       (*env)->ExceptionClear(env);
@@ -319,6 +559,9 @@ callback_invoke(JNIEnv* env, callback *cb, ffi_cif* cif, void *resp, void **cbar
         memset(oldresp, 0, cif->rtype->size);
     }
     else switch(cb->rflag) {
+    case CVT_TYPE_MAPPER:
+      // Already converted
+      break;
     case CVT_INTEGER_TYPE:
       if (cb->cif.rtype->size > sizeof(ffi_arg)) {
         *(jlong *)oldresp = getIntegerTypeValue(env, *(void **)resp);
@@ -391,16 +634,26 @@ callback_invoke(JNIEnv* env, callback *cb, ffi_cif* cif, void *resp, void **cbar
 
 static void
 callback_dispatch(ffi_cif* cif, void* resp, void** cbargs, void* user_data) {
-  JavaVM* jvm = ((callback *)user_data)->vm;
+  callback* cb = (callback *)user_data;
+  JavaVM* jvm = cb->vm;
   JNIEnv* env;
   int attached;
   
   attached = (*jvm)->GetEnv(jvm, (void *)&env, JNI_VERSION_1_4) == JNI_OK;
   if (!attached) {
-    if ((*jvm)->AttachCurrentThread(jvm, (void *)&env, NULL) != JNI_OK) {
+    jint status = (cb->thread_flags & CB_DAEMON)
+      ? (*jvm)->AttachCurrentThreadAsDaemon(jvm, (void *)&env, NULL)
+      : (*jvm)->AttachCurrentThread(jvm, (void *)&env, NULL);
+    if (status != JNI_OK) {
       fprintf(stderr, "JNA: Can't attach to current thread\n");
       return;
     }
+    // Leave the thread attached until it exits, if requested; the
+    // thread-specific value ensures it is detached on exit
+    if ((cb->thread_flags & CB_NODETACH)
+        && HAVE_THREAD_KEY() && SET_THREAD_VM(jvm)) {
+      attached = 1;
+    }
   }
   
   // Give the callback its own local frame to ensure all local references
@@ -409,7 +662,10 @@ callback_dispatch(ffi_cif* cif, void* resp, void** cbargs, void* user_data) {
     fprintf(stderr, "JNA: Out of memory: Can't allocate local frame");
   }
   else {
-    callback_invoke(env, (callback *)user_data, cif, resp, cbargs);
+    // Keep the callback from being rebound or freed while in use
+    ATOMIC_INCREMENT(&cb->active);
+    callback_invoke(env, cb, cif, resp, cbargs);
+    ATOMIC_DECREMENT(&cb->active);
     (*env)->PopLocalFrame(env, NULL);
   }
   
@@ -421,7 +677,40 @@ callback_dispatch(ffi_cif* cif, void* resp, void** cbargs, void* user_data) {
 const char* 
 jnidispatch_callback_init(JNIEnv* env) {
 
+  jclass cls;
+
   if (!LOAD_CREF(env, Object, "java/lang/Object")) return "java.lang.Object";
+  if (!LOAD_CREF(env, CallbackReference, "com/sun/jna/CallbackReference"))
+    return "com.sun.jna.CallbackReference";
+  if (!(MID_CallbackReference_fromNativeArguments
+        = (*env)->GetStaticMethodID(env, classCallbackReference,
+                                    "fromNativeArguments",
+                                    "(Ljava/lang/reflect/Method;[Ljava/lang/Class;[Ljava/lang/Object;[Lcom/sun/jna/FromNativeConverter;)V")))
+    return "CallbackReference.fromNativeArguments";
+  if (!(MID_CallbackReference_toNativeResult
+        = (*env)->GetStaticMethodID(env, classCallbackReference,
+                                    "toNativeResult",
+                                    "(Ljava/lang/reflect/Method;Lcom/sun/jna/ToNativeConverter;Ljava/lang/Object;)Ljava/lang/Object;")))
+    return "CallbackReference.toNativeResult";
+  if (!(cls = (*env)->FindClass(env, "com/sun/jna/FromNativeConverter"))
+      || !LOAD_MID(env, MID_FromNativeConverter_nativeType, cls,
+                   "nativeType", "()Ljava/lang/Class;"))
+    return "FromNativeConverter.nativeType";
+  if (!(cls = (*env)->FindClass(env, "com/sun/jna/ToNativeConverter"))
+      || !LOAD_MID(env, MID_ToNativeConverter_nativeType, cls,
+                   "nativeType", "()Ljava/lang/Class;"))
+    return "ToNativeConverter.nativeType";
+  if (!(cls = (*env)->FindClass(env, "java/lang/Class"))
+      || !LOAD_MID(env, MID_Class_isPrimitive, cls,
+                   "isPrimitive", "()Z"))
+    return "Class.isPrimitive";
+
+#ifdef _WIN32
+  tls_thread_key = TlsAlloc();
+#else
+  tls_thread_key_valid =
+    pthread_key_create(&tls_thread_key, detach_thread) == 0;
+#endif
 
   return NULL;
 }
@@ -432,6 +721,21 @@ jnidispatch_callback_dispose(JNIEnv* env) {
     (*env)->DeleteWeakGlobalRef(env, classObject);
     classObject = NULL;
   }
+  if (classCallbackReference) {
+    (*env)->DeleteWeakGlobalRef(env, classCallbackReference);
+    classCallbackReference = NULL;
+  }
+#ifdef _WIN32
+  if (HAVE_THREAD_KEY()) {
+    TlsFree(tls_thread_key);
+    tls_thread_key = TLS_OUT_OF_INDEXES;
+  }
+#else
+  if (HAVE_THREAD_KEY()) {
+    pthread_key_delete(tls_thread_key);
+    tls_thread_key_valid = 0;
+  }
+#endif
 }
 
 #ifdef __cplusplus
@@ -55,6 +55,10 @@ w32_format_error(char* buf, int len) {
 #else
 #include <dlfcn.h>
 #include <errno.h>
+#include <time.h>
+#ifdef __APPLE__
+#include <mach/mach_time.h>
+#endif
 #define LIBNAMETYPE char*
 #ifdef __APPLE__
 #define LIBNAME2CSTR(ENV,JSTR) newCStringUTF8(ENV,JSTR)
@@ -106,6 +110,7 @@ static jboolean preserve_last_error;
 
 #define MASK_CC          com_sun_jna_Function_MASK_CC
 #define THROW_LAST_ERROR com_sun_jna_Function_THROW_LAST_ERROR
+#define CRITICAL_ARRAYS  com_sun_jna_Function_CRITICAL_ARRAYS
 
 /* Cached class, field and method IDs */
 static jclass classObject;
@@ -178,6 +183,11 @@ static jmethodID MID_Native_fromNative;
 static jmethodID MID_Native_nativeType;
 static jmethodID MID_Native_toNativeTypeMapped;
 static jmethodID MID_Native_fromNativeTypeMapped;
+static jmethodID MID_Native_toNativeArray;
+static jmethodID MID_Native_fromNativeArray;
+static jmethodID MID_Native_toNativeArguments;
+static jmethodID MID_Native_bindLazyMethod;
+static jmethodID MID_Native_recordCall;
 static jmethodID MID_Structure_getTypeInfo;
 static jmethodID MID_Structure_newInstance;
 static jmethodID MID_Structure_useMemory;
@@ -273,8 +283,12 @@ dispatch(JNIEnv *env, jobject self, jint flags, jobjectArray arr,
     jobject array;
     void *elems;
     release_t release;
+    // Destination of a critical array pointer, acquired just prior to the call
+    jobject *critical;
   } *array_elements;
   volatile int array_count = 0;
+  volatile int last_error = 0;
+  volatile int update_error = 0;
   ffi_cif cif;
   ffi_type** ffi_types;
   void** ffi_values;
@@ -394,6 +408,7 @@ dispatch(JNIEnv *env, jobject self, jint flags, jobjectArray arr,
           throw_msg = "Buffer arguments must be direct or have a primitive backing array";
           goto cleanup;
         }
+        array_elements[array_count].critical = NULL;
         ++array_count;
       }
     }
@@ -402,6 +417,19 @@ dispatch(JNIEnv *env, jobject self, jint flags, jobjectArray arr,
       void *ptr = NULL;
       release_t release = NULL;
 
+      if (flags & CRITICAL_ARRAYS) {
+        // No other JNI calls are allowed while a critical array is held,
+        // so defer acquisition until all arguments are processed
+        c_args[i].l = NULL;
+        ffi_types[i] = &ffi_type_pointer;
+        ffi_values[i] = &c_args[i].l;
+        array_elements[array_count].array = arg;
+        array_elements[array_count].elems = NULL;
+        array_elements[array_count].critical = &c_args[i].l;
+        array_elements[array_count++].release = (*env)->ReleasePrimitiveArrayCritical;
+        continue;
+      }
+
 #define GET_ELEMS(TYPE) do {ptr=(*env)->Get##TYPE##ArrayElements(env,arg,NULL); release=(void*)(*env)->Release##TYPE##ArrayElements; }while(0)
       switch(array_pt) {
       case 'Z': GET_ELEMS(Boolean); break;
@@ -423,6 +451,7 @@ dispatch(JNIEnv *env, jobject self, jint flags, jobjectArray arr,
       ffi_values[i] = &c_args[i].l;
       array_elements[array_count].array = arg;
       array_elements[array_count].elems = ptr;
+      array_elements[array_count].critical = NULL;
       array_elements[array_count++].release = release;
     }
     else {
@@ -457,6 +486,17 @@ dispatch(JNIEnv *env, jobject self, jint flags, jobjectArray arr,
 
   status = ffi_prep_cif(&cif, abi, nargs, ffi_return_type, ffi_types);
   if (!ffi_error(env, "Native call setup", status)) {
+    for (i=0;i < array_count;i++) {
+      if (array_elements[i].critical) {
+        void *ptr = (*env)->GetPrimitiveArrayCritical(env, array_elements[i].array, NULL);
+        if (!ptr) {
+          throw_type = EOutOfMemory;
+          throw_msg = "Could not obtain memory for primitive buffer";
+          goto cleanup;
+        }
+        array_elements[i].elems = *array_elements[i].critical = ptr;
+      }
+    }
     PSTART();
     if (flags & THROW_LAST_ERROR) {
       SET_LAST_ERROR(0);
@@ -471,17 +511,31 @@ dispatch(JNIEnv *env, jobject self, jint flags, jobjectArray arr,
       }
     }
     else if (preserve_last_error) {
-      update_last_error(env, GET_LAST_ERROR());
+      // Deferred until critical arrays are released
+      last_error = GET_LAST_ERROR();
+      update_error = 1;
     }
     PROTECTED_END(do { throw_type=EError;throw_msg="Invalid memory access";} while(0));
   }
   
  cleanup:
 
+  // Release critical arrays before making any other JNI calls
+  for (i=0;i < array_count;i++) {
+    if (array_elements[i].critical && array_elements[i].elems) {
+      array_elements[i].release(env, array_elements[i].array,
+                                array_elements[i].elems, 0);
+    }
+  }
   // Release array elements
   for (i=0;i < array_count;i++) {
-    array_elements[i].release(env, array_elements[i].array,
-                              array_elements[i].elems, 0);
+    if (!array_elements[i].critical) {
+      array_elements[i].release(env, array_elements[i].array,
+                                array_elements[i].elems, 0);
+    }
+  }
+  if (update_error) {
+    update_last_error(env, last_error);
   }
 
   // Must raise any exception *after* all other JNI operations
@@ -651,9 +705,12 @@ Java_com_sun_jna_CallbackReference_createNativeCallback(JNIEnv *env,
                                                         jobjectArray param_types,
                                                         jclass return_type,
                                                         jint call_conv,
-                                                        jboolean direct) {
+                                                        jint flags,
+                                                        jobjectArray from_native,
+                                                        jobject to_native) {
   callback* cb =
-    create_callback(env, obj, method, param_types, return_type, call_conv, direct);
+    create_callback(env, obj, method, param_types, return_type, call_conv,
+                    flags, from_native, to_native);
   return cb == NULL ? NULL : newJavaPointer(env, cb);
 }
 
@@ -664,6 +721,21 @@ Java_com_sun_jna_CallbackReference_freeNativeCallback(JNIEnv *env,
   free_callback(env, (callback*)L2A(ptr));
 }
 
+JNIEXPORT void JNICALL
+Java_com_sun_jna_CallbackReference_bindNativeCallback(JNIEnv *env,
+                                                      jclass UNUSED(clazz),
+                                                      jlong ptr,
+                                                      jobject obj) {
+  bind_callback(env, (callback*)L2A(ptr), obj);
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_sun_jna_CallbackReference_unbindNativeCallback(JNIEnv *env,
+                                                        jclass UNUSED(clazz),
+                                                        jlong ptr) {
+  return unbind_callback(env, (callback*)L2A(ptr));
+}
+
 /*
  * Class:     com_sun_jna_NativeLibrary
  * Method:    open
@@ -1491,6 +1563,9 @@ update_last_error(JNIEnv* env, int err) {
 jobject
 newJavaWString(JNIEnv *env, const wchar_t* ptr) {
   jstring s = newJavaString(env, (const char*)ptr, JNI_TRUE);
+  if (s == NULL) {
+    return NULL;
+  }
   return (*env)->NewObject(env, classWString, MID_WString_init, s);
 }
 
@@ -1754,6 +1829,17 @@ toNativeTypeMapped(JNIEnv* env, jobject obj, void* valuep, size_t size, jobject
   }
 }
 
+// Extract a converted argument value, zeroing the argument if NULL
+static void
+extract_arg(JNIEnv* env, jobject value, void* valuep, size_t size) {
+  if (value != NULL) {
+    extract_value(env, value, valuep, size, JNI_FALSE);
+  }
+  else {
+    MEMSET(valuep, 0, size);
+  }
+}
+
 static void
 fromNativeTypeMapped(JNIEnv* env, jobject from_native, void* resp, ffi_type* type, jclass javaClass, void* result) {
   int jtype = get_jtype_from_ffi_type(type);
@@ -1933,6 +2019,36 @@ Java_com_sun_jna_Native_initIDs(JNIEnv *env, jclass cls) {
     throwByName(env, EUnsatisfiedLink,
                 "Can't obtain static method fromNative from class com.sun.jna.Native");
   }
+  else if (!(MID_Native_toNativeArray
+             = (*env)->GetStaticMethodID(env, classNative,
+                                         "toNativeArray", "(Ljava/lang/Object;)Lcom/sun/jna/Pointer;"))) {
+    throwByName(env, EUnsatisfiedLink,
+                "Can't obtain static method toNativeArray from class com.sun.jna.Native");
+  }
+  else if (!(MID_Native_fromNativeArray
+             = (*env)->GetStaticMethodID(env, classNative,
+                                         "fromNativeArray", "(Ljava/lang/Object;Lcom/sun/jna/Pointer;)V"))) {
+    throwByName(env, EUnsatisfiedLink,
+                "Can't obtain static method fromNativeArray from class com.sun.jna.Native");
+  }
+  else if (!(MID_Native_toNativeArguments
+             = (*env)->GetStaticMethodID(env, classNative,
+                                         "toNativeArguments", "([Ljava/lang/Object;[I[Ljava/lang/Object;)V"))) {
+    throwByName(env, EUnsatisfiedLink,
+                "Can't obtain static method toNativeArguments from class com.sun.jna.Native");
+  }
+  else if (!(MID_Native_bindLazyMethod
+             = (*env)->GetStaticMethodID(env, classNative,
+                                         "bindLazyMethod", "(Ljava/lang/Class;I)J"))) {
+    throwByName(env, EUnsatisfiedLink,
+                "Can't obtain static method bindLazyMethod from class com.sun.jna.Native");
+  }
+  else if (!(MID_Native_recordCall
+             = (*env)->GetStaticMethodID(env, classNative,
+                                         "recordCall", "(Lcom/sun/jna/Function;JJJ)V"))) {
+    throwByName(env, EUnsatisfiedLink,
+                "Can't obtain static method recordCall from class com.sun.jna.Native");
+  }
   else if (!LOAD_CREF(env, Structure, "com/sun/jna/Structure")) {
     throwByName(env, EUnsatisfiedLink,
                 "Can't obtain class com.sun.jna.Structure");
@@ -2242,6 +2358,44 @@ Java_com_sun_jna_Native_setProtected(JNIEnv *UNUSED(env), jclass UNUSED(classp),
 #endif
 }
 
+// Whether direct-mapped calls are timed
+static volatile jboolean profile_calls = JNI_FALSE;
+
+// Monotonic clock for profiling, in nanoseconds
+static jlong
+nanotime(void) {
+#ifdef _WIN32
+  static LARGE_INTEGER frequency;
+  LARGE_INTEGER count;
+  if (frequency.QuadPart == 0) {
+    QueryPerformanceFrequency(&frequency);
+  }
+  QueryPerformanceCounter(&count);
+  return (jlong)(count.QuadPart / frequency.QuadPart) * 1000000000
+    + (jlong)(count.QuadPart % frequency.QuadPart) * 1000000000 / frequency.QuadPart;
+#elif defined(__APPLE__)
+  static mach_timebase_info_data_t timebase;
+  if (timebase.denom == 0) {
+    mach_timebase_info(&timebase);
+  }
+  return (jlong)(mach_absolute_time() * timebase.numer / timebase.denom);
+#else
+  struct timespec ts;
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return (jlong)ts.tv_sec * 1000000000 + ts.tv_nsec;
+#endif
+}
+
+JNIEXPORT void JNICALL
+Java_com_sun_jna_Native_setCallProfiling(JNIEnv *UNUSED(env), jclass UNUSED(classp), jboolean enable) {
+  profile_calls = enable;
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_sun_jna_Native_nanoTime(JNIEnv *UNUSED(env), jclass UNUSED(classp)) {
+  return nanotime();
+}
+
 jboolean
 is_protected() {
 #ifdef HAVE_PROTECTION  
@@ -2565,8 +2719,121 @@ typedef struct _method_data {
   jobject* to_native;
   jobject  from_native;
   jboolean throw_last_error;
+  jboolean critical_arrays;
+  // Conversions performed in a single call to Java, or NULL if the
+  // method has fewer than two such arguments
+  jintArray upcall_flags;
+  // Function to which calls are attributed when profiling
+  jobject function;
 } method_data;
 
+// Report the phase timings of a direct-mapped call to the profiler,
+// preserving any exception the call is about to raise
+static void
+record_call(JNIEnv* env, method_data* data, jlong start,
+            jlong native_start, jlong native_end) {
+  jlong end = nanotime();
+  jthrowable pending = (*env)->ExceptionOccurred(env);
+  if (pending) {
+    (*env)->ExceptionClear(env);
+  }
+  (*env)->CallStaticVoidMethod(env, classNative, MID_Native_recordCall,
+                               data->function, native_start - start,
+                               native_end - native_start, end - native_end);
+  if ((*env)->ExceptionCheck(env)) {
+    (*env)->ExceptionClear(env);
+  }
+  if (pending) {
+    (*env)->Throw(env, pending);
+    (*env)->DeleteLocalRef(env, pending);
+  }
+}
+
+// Whether the given argument conversion requires calling into Java
+static int
+is_upcall_conversion(int cvt) {
+  switch(cvt) {
+  case CVT_TYPE_MAPPER:
+  case CVT_NATIVE_MAPPED:
+  case CVT_STRUCTURE:
+  case CVT_STRUCTURE_BYVAL:
+  case CVT_WSTRING:
+  case CVT_ARRAY_OBJECT:
+    return 1;
+  default:
+    return 0;
+  }
+}
+
+// Perform all Java-side argument conversions with a single call to Java,
+// returning an array of converted values or NULL if an exception was thrown.
+static jobjectArray
+to_native_arguments(JNIEnv* env, method_data* data, void** args) {
+  unsigned nargs = data->cif.nargs;
+  jobjectArray values = (*env)->NewObjectArray(env, nargs, classObject, NULL);
+  jobjectArray converters = NULL;
+  unsigned i;
+
+  if (values == NULL) {
+    return NULL;
+  }
+  if (data->to_native) {
+    converters = (*env)->NewObjectArray(env, nargs, classObject, NULL);
+    if (converters == NULL) {
+      return NULL;
+    }
+  }
+  for (i=0;i < nargs;i++) {
+    jobject obj;
+    if (!is_upcall_conversion(data->flags[i])) {
+      continue;
+    }
+    if (data->flags[i] == CVT_TYPE_MAPPER) {
+      int jtype = get_jtype_from_ffi_type(data->closure_cif.arg_types[i+2]);
+      obj = jtype == '*'
+        ? *(void **)args[i]
+        : new_object(env, (char)jtype, args[i], JNI_FALSE);
+      (*env)->SetObjectArrayElement(env, converters, i, data->to_native[i]);
+    }
+    else {
+      obj = *(void **)args[i];
+    }
+    (*env)->SetObjectArrayElement(env, values, i, obj);
+  }
+  (*env)->CallStaticVoidMethod(env, classNative, MID_Native_toNativeArguments,
+                               values, data->upcall_flags, converters);
+  return (*env)->ExceptionCheck(env) ? NULL : values;
+}
+
+static int
+is_array_conversion(int cvt) {
+  switch(cvt) {
+  case CVT_ARRAY_BYTE:
+  case CVT_ARRAY_SHORT:
+  case CVT_ARRAY_CHAR:
+  case CVT_ARRAY_INT:
+  case CVT_ARRAY_LONG:
+  case CVT_ARRAY_FLOAT:
+  case CVT_ARRAY_DOUBLE:
+    return 1;
+  default:
+    return 0;
+  }
+}
+
+// Release any primitive arrays held via GetPrimitiveArrayCritical
+static void
+release_critical_arrays(JNIEnv* env, method_data* data, void** objects,
+                        void** elems, release_t* release) {
+  unsigned i;
+  for (i=0;i < data->cif.nargs;i++) {
+    if (is_array_conversion(data->flags[i]) && release[i] && elems[i]) {
+      release[i](env, objects[i], elems[i], 0);
+      release[i] = NULL;
+    }
+  }
+}
+
 // VM vectors to this callback, which calls native code
 static void
 method_handler(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
@@ -2578,11 +2845,18 @@ method_handler(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
   void** volatile objects = NULL;
   release_t* volatile release = NULL;
   void** volatile elems = NULL;
+  jobjectArray volatile values = NULL;
   unsigned i;
+  // Number of arguments which require cleanup
+  volatile unsigned nconverted = data->cif.nargs;
   void* oldresp = resp;
   const char* volatile throw_type = NULL;
   const char* volatile throw_msg = NULL;
   char msg[64];
+  // Phase timings, when profiling
+  volatile jlong start = profile_calls && data->function ? nanotime() : 0;
+  volatile jlong native_start = 0;
+  volatile jlong native_end = 0;
 
   if (data->flags) {
     objects = alloca(data->cif.nargs * sizeof(void*));
@@ -2590,6 +2864,13 @@ method_handler(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
     release = alloca(data->cif.nargs * sizeof(release_t));
     memset(release, 0, data->cif.nargs * sizeof(release_t));
     elems = alloca(data->cif.nargs * sizeof(void*));
+    if (data->upcall_flags) {
+      values = to_native_arguments(env, data, args);
+      if (values == NULL) {
+        nconverted = 0;
+        goto cleanup;
+      }
+    }
     for (i=0;i < data->cif.nargs;i++) {
       if (data->flags[i] == CVT_DEFAULT) {
         continue;
@@ -2617,7 +2898,14 @@ method_handler(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
         *(void **)args[i] = getPointerTypeAddress(env, *(void **)args[i]);
         break;
       case CVT_TYPE_MAPPER:
-        {
+        if (values) {
+          jobject value = (*env)->GetObjectArrayElement(env, values, i);
+          if (cif->arg_types[i+2]->size < data->cif.arg_types[i]->size) {
+            args[i] = alloca(data->cif.arg_types[i]->size);
+          }
+          extract_arg(env, value, args[i], data->cif.arg_types[i]->size);
+        }
+        else {
           void* valuep = args[i];
           int jtype = get_jtype_from_ffi_type(data->closure_cif.arg_types[i+2]);
           jobject obj = jtype == '*'
@@ -2632,19 +2920,29 @@ method_handler(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
         }
         break;
       case CVT_NATIVE_MAPPED:
-        toNative(env, *(void **)args[i], args[i], data->cif.arg_types[i]->size, JNI_FALSE);
+        if (values) {
+          jobject value = (*env)->GetObjectArrayElement(env, values, i);
+          extract_arg(env, value, args[i], data->cif.arg_types[i]->size);
+        }
+        else {
+          toNative(env, *(void **)args[i], args[i], data->cif.arg_types[i]->size, JNI_FALSE);
+        }
         break;
       case CVT_POINTER:
         *(void **)args[i] = getNativeAddress(env, *(void **)args[i]);
         break;
       case CVT_STRUCTURE:
         objects[i] = *(void **)args[i];
-        writeStructure(env, *(void **)args[i]);
+        if (!values) {
+          writeStructure(env, *(void **)args[i]);
+        }
         *(void **)args[i] = getStructureAddress(env, *(void **)args[i]);
         break;
       case CVT_STRUCTURE_BYVAL:
         objects[i] = *(void **)args[i];
-        writeStructure(env, objects[i]);
+        if (!values) {
+          writeStructure(env, objects[i]);
+        }
         args[i] = getStructureAddress(env, objects[i]);
         break;
       case CVT_STRING:
@@ -2652,7 +2950,9 @@ method_handler(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
         break;
       case CVT_WSTRING:
         {
-          jstring s = (*env)->CallObjectMethod(env, *(void **)args[i], MID_Object_toString);
+          jstring s = values
+            ? (*env)->GetObjectArrayElement(env, values, i)
+            : (*env)->CallObjectMethod(env, *(void **)args[i], MID_Object_toString);
           *(void **)args[i] = newWideCString(env, s);
         }
         break;
@@ -2671,6 +2971,7 @@ method_handler(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
             if (ptr == NULL) {
               throw_type = EIllegalArgument;
               throw_msg = "Buffer arguments must be direct or have a primitive backing array";
+              nconverted = i;
               goto cleanup;
             }
           }
@@ -2680,6 +2981,11 @@ method_handler(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
 #define ARRAY(Type)                             \
  do { \
    objects[i] = *(void **)args[i];                                      \
+   if (data->critical_arrays) {                                         \
+     release[i] = (void *)(*env)->ReleasePrimitiveArrayCritical;        \
+     elems[i] = NULL;                                                   \
+     break;                                                             \
+   }                                                                    \
    release[i] = (void *)(*env)->Release##Type##ArrayElements;           \
    elems[i] = *(void **)args[i] = (*env)->Get##Type##ArrayElements(env, objects[i], NULL); } while(0)
       case CVT_ARRAY_BYTE: ARRAY(Byte); break;
@@ -2689,10 +2995,40 @@ method_handler(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
       case CVT_ARRAY_LONG: ARRAY(Long); break;
       case CVT_ARRAY_FLOAT: ARRAY(Float); break;
       case CVT_ARRAY_DOUBLE: ARRAY(Double); break;
+      case CVT_ARRAY_OBJECT:
+        // Let Java marshal the array elements, keeping a reference to
+        // the resulting native memory until the call completes
+        objects[i] = *(void **)args[i];
+        elems[i] = values
+          ? (*env)->GetObjectArrayElement(env, values, i)
+          : (*env)->CallStaticObjectMethod(env, classNative,
+                                           MID_Native_toNativeArray,
+                                           objects[i]);
+        if ((*env)->ExceptionCheck(env)) {
+          nconverted = i;
+          goto cleanup;
+        }
+        *(void **)args[i] = getNativeAddress(env, elems[i]);
+        break;
       default:
         break;
       }
     }
+    if (data->critical_arrays) {
+      // No other JNI calls are allowed while a critical array is held,
+      // so acquire them only once all other arguments are converted
+      for (i=0;i < data->cif.nargs;i++) {
+        if (is_array_conversion(data->flags[i]) && objects[i]) {
+          elems[i] = (*env)->GetPrimitiveArrayCritical(env, objects[i], NULL);
+          if (!elems[i]) {
+            throw_type = EOutOfMemory;
+            throw_msg = "Could not obtain memory for primitive buffer";
+            goto cleanup;
+          }
+          *(void **)args[i] = elems[i];
+        }
+      }
+    }
   }
 
   if (data->rflag == CVT_NATIVE_MAPPED) {
@@ -2709,6 +3045,9 @@ method_handler(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
     resp = alloca(data->cif.rtype->size);
   }
 
+  if (start) {
+    native_start = nanotime();
+  }
   {
     PSTART();
     if (data->throw_last_error) {
@@ -2725,6 +3064,13 @@ method_handler(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
     }
     PROTECTED_END(do { throw_type=EError;throw_msg="Invalid memory access"; } while(0));
   }
+  if (start) {
+    native_end = nanotime();
+  }
+
+  if (data->critical_arrays && data->flags) {
+    release_critical_arrays(env, data, objects, elems, release);
+  }
 
   switch(data->rflag) {
   case CVT_TYPE_MAPPER:
@@ -2759,13 +3105,23 @@ method_handler(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
 
   cleanup:
   if (data->flags) {
-    for (i=0;i < data->cif.nargs;i++) {
+    if (data->critical_arrays) {
+      release_critical_arrays(env, data, objects, elems, release);
+    }
+    for (i=0;i < nconverted;i++) {
       switch(data->flags[i]) {
       case CVT_STRUCTURE:
-        if (objects[i]) {
+        if (objects[i] && !(*env)->ExceptionCheck(env)) {
           (*env)->CallVoidMethod(env, objects[i], MID_Structure_read);
         }
         break;
+      case CVT_ARRAY_OBJECT:
+        if (objects[i] && !(*env)->ExceptionCheck(env)) {
+          (*env)->CallStaticVoidMethod(env, classNative,
+                                       MID_Native_fromNativeArray,
+                                       objects[i], elems[i]);
+        }
+        break;
       case CVT_STRING:
       case CVT_WSTRING:
         // Free allocated native strings
@@ -2779,13 +3135,18 @@ method_handler(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
       case CVT_ARRAY_LONG:
       case CVT_ARRAY_FLOAT:
       case CVT_ARRAY_DOUBLE:
-        if (*(void **)args[i] && release[i])
+        if (*(void **)args[i] && release[i] && elems[i])
           release[i](env, objects[i], elems[i], 0);
         break;
       }
     }
   }
 
+  // Only calls which reached the native function are recorded
+  if (native_end) {
+    record_call(env, data, start, native_start, native_end);
+  }
+
   if (throw_type) {
     throwByName(env, throw_type, throw_msg);
   }
@@ -2798,6 +3159,10 @@ Java_com_sun_jna_Native_unregister(JNIEnv *env, jclass UNUSED(ncls), jclass UNUS
 
   while (count-- > 0) {
     method_data* md = (method_data*)L2A(data[count]);
+    // Lazily bound methods may never have been bound
+    if (!md) {
+      continue;
+    }
     if (md->to_native) {
       unsigned i;
       for (i=0;i < md->cif.nargs;i++) {
@@ -2806,7 +3171,9 @@ Java_com_sun_jna_Native_unregister(JNIEnv *env, jclass UNUSED(ncls), jclass UNUS
       }
     }
     if (md->from_native) (*env)->DeleteWeakGlobalRef(env, md->from_native);
+    if (md->upcall_flags) (*env)->DeleteGlobalRef(env, md->upcall_flags);
     if (md->closure_rclass) (*env)->DeleteWeakGlobalRef(env, md->closure_rclass);
+    if (md->function) (*env)->DeleteGlobalRef(env, md->function);
     free(md->arg_types);
     free(md->closure_arg_types);
     free(md->flags);
@@ -2829,10 +3196,11 @@ Java_com_sun_jna_Native_registerMethod(JNIEnv *env, jclass UNUSED(ncls),
                                        jlong closure_return_type,
                                        jlong return_type,
                                        jclass closure_rclass,
-                                       jlong function, jint cc,
+                                       jlong function, jint call_flags,
                                        jboolean throw_last_error,
                                        jobjectArray to_native,
-                                       jobject from_native)
+                                       jobject from_native,
+                                       jobject function_object)
 {
   int argc = atypes ? (*env)->GetArrayLength(env, atypes) : 0;
   const char* cname = newCStringUTF8(env, name);
@@ -2850,13 +3218,11 @@ Java_com_sun_jna_Native_registerMethod(JNIEnv *env, jclass UNUSED(ncls),
   jlong* closure_types = closure_atypes ? (*env)->GetLongArrayElements(env, closure_atypes, NULL) : NULL;
   jint* cvts = conversions ? (*env)->GetIntArrayElements(env, conversions, NULL) : NULL;
 #if defined(_WIN32) && !defined(_WIN64)
-  if (cc == CALLCONV_STDCALL) abi = FFI_STDCALL;
-#else
-  // avoid compiler warning
-  cc = 0;
+  if ((call_flags & MASK_CC) == CALLCONV_STDCALL) abi = FFI_STDCALL;
 #endif
 
   data->throw_last_error = throw_last_error;
+  data->critical_arrays = (call_flags & CRITICAL_ARRAYS) ? JNI_TRUE : JNI_FALSE;
   data->arg_types = malloc(sizeof(ffi_type*) * argc);
   data->closure_arg_types = malloc(sizeof(ffi_type*) * (argc + 2));
   data->closure_arg_types[0] = &ffi_type_pointer;
@@ -2866,6 +3232,8 @@ Java_com_sun_jna_Native_registerMethod(JNIEnv *env, jclass UNUSED(ncls),
   data->rflag = rconversion;
   data->to_native = NULL;
   data->from_native = from_native ? (*env)->NewWeakGlobalRef(env, from_native) : NULL;
+  data->upcall_flags = NULL;
+  data->function = function_object ? (*env)->NewGlobalRef(env, function_object) : NULL;
 
   for (i=0;i < argc;i++) {
     data->closure_arg_types[i+2] = (ffi_type*)L2A(closure_types[i]);
@@ -2881,6 +3249,26 @@ Java_com_sun_jna_Native_registerMethod(JNIEnv *env, jclass UNUSED(ncls),
       }
     }
   }
+  if (cvts) {
+    // Batch Java-side conversions into a single call when more than one
+    // argument requires them
+    int nupcalls = 0;
+    for (i=0;i < argc;i++) {
+      if (is_upcall_conversion(cvts[i])) {
+        ++nupcalls;
+      }
+    }
+    if (nupcalls > 1) {
+      jintArray flags = (*env)->NewIntArray(env, argc);
+      if (flags != NULL) {
+        for (i=0;i < argc;i++) {
+          jint flag = is_upcall_conversion(cvts[i]) ? cvts[i] : CVT_DEFAULT;
+          (*env)->SetIntArrayRegion(env, flags, i, 1, &flag);
+        }
+        data->upcall_flags = (*env)->NewGlobalRef(env, flags);
+      }
+    }
+  }
   if (types) (*env)->ReleaseLongArrayElements(env, atypes, types, 0);
   if (closure_types) (*env)->ReleaseLongArrayElements(env, closure_atypes, closure_types, 0);
   if (cvts) (*env)->ReleaseIntArrayElements(env, conversions, cvts, 0);
@@ -2911,6 +3299,8 @@ Java_com_sun_jna_Native_registerMethod(JNIEnv *env, jclass UNUSED(ncls),
 
  cleanup:
   if (status != FFI_OK) {
+    if (data->upcall_flags) (*env)->DeleteGlobalRef(env, data->upcall_flags);
+    if (data->function) (*env)->DeleteGlobalRef(env, data->function);
     free(data->arg_types);
     free(data->flags);
     free(data);
@@ -2922,6 +3312,124 @@ Java_com_sun_jna_Native_registerMethod(JNIEnv *env, jclass UNUSED(ncls),
   return A2L(data);
 }
 
+// Registered in place of a native method until its first invocation
+typedef struct _lazy_method {
+  ffi_cif closure_cif;
+  ffi_type** closure_arg_types;
+  ffi_closure* closure;
+  jweak cls;
+  jint index;
+  method_data* volatile data;
+} lazy_method;
+
+// VM vectors to this callback until the method has been bound, which
+// happens on the first invocation unless bound beforehand from Java
+static void
+lazy_method_handler(ffi_cif* UNUSED(cif), void* resp, void** argp, void *cdata) {
+  JNIEnv* env = (JNIEnv*)*(void **)argp[0];
+  lazy_method* lm = (lazy_method*)cdata;
+  method_data* data = lm->data;
+
+  if (data == NULL) {
+    jlong handle = (*env)->CallStaticLongMethod(env, classNative, MID_Native_bindLazyMethod,
+                                                lm->cls, lm->index);
+    if ((*env)->ExceptionCheck(env) || handle == 0) {
+      if (lm->closure_cif.rtype->type != FFI_TYPE_VOID) {
+        memset(resp, 0, lm->closure_cif.rtype->size);
+      }
+      return;
+    }
+    data = (method_data*)L2A(handle);
+    lm->data = data;
+  }
+  method_handler(&data->closure_cif, resp, argp, data);
+}
+
+static void
+free_lazy_method(JNIEnv* env, lazy_method* lm) {
+  if (lm->cls) (*env)->DeleteWeakGlobalRef(env, lm->cls);
+  if (lm->closure) ffi_closure_free(lm->closure);
+  free(lm->closure_arg_types);
+  free(lm);
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_sun_jna_Native_registerLazyMethod(JNIEnv *env, jclass UNUSED(ncls),
+                                           jclass cls, jstring name,
+                                           jstring signature,
+                                           jlongArray closure_atypes,
+                                           jlong closure_return_type,
+                                           jint call_flags, jint index)
+{
+  int argc = closure_atypes ? (*env)->GetArrayLength(env, closure_atypes) : 0;
+  const char* cname = newCStringUTF8(env, name);
+  const char* sig = newCStringUTF8(env, signature);
+  lazy_method* lm = calloc(1, sizeof(lazy_method));
+  jlong* closure_types = closure_atypes ? (*env)->GetLongArrayElements(env, closure_atypes, NULL) : NULL;
+  ffi_type* closure_rtype = (ffi_type*)L2A(closure_return_type);
+  void* code;
+  int abi = FFI_DEFAULT_ABI;
+  int status;
+  int i;
+#if defined(_WIN32) && !defined(_WIN64)
+  if ((call_flags & MASK_CC) == CALLCONV_STDCALL) abi = FFI_STDCALL;
+#else
+  (void)call_flags;
+#endif
+
+  lm->closure_arg_types = malloc(sizeof(ffi_type*) * (argc + 2));
+  lm->closure_arg_types[0] = &ffi_type_pointer;
+  lm->closure_arg_types[1] = &ffi_type_pointer;
+  for (i=0;i < argc;i++) {
+    lm->closure_arg_types[i+2] = (ffi_type*)L2A(closure_types[i]);
+  }
+  if (closure_types) (*env)->ReleaseLongArrayElements(env, closure_atypes, closure_types, 0);
+  lm->cls = (*env)->NewWeakGlobalRef(env, cls);
+  lm->index = index;
+
+  status = ffi_prep_cif(&lm->closure_cif, abi, argc+2, closure_rtype, lm->closure_arg_types);
+  if (ffi_error(env, "Native method mapping", status)) {
+    goto cleanup;
+  }
+  lm->closure = ffi_closure_alloc(sizeof(ffi_closure), &code);
+  status = ffi_prep_closure_loc(lm->closure, &lm->closure_cif, lazy_method_handler, lm, code);
+  if (status != FFI_OK) {
+    throwByName(env, EError, "Native method linkage failed");
+    goto cleanup;
+  }
+
+  {
+    JNINativeMethod m = { (char*)cname, (char*)sig, code };
+    (*env)->RegisterNatives(env, cls, &m, 1);
+    if ((*env)->ExceptionCheck(env)) {
+      status = FFI_BAD_TYPEDEF;
+    }
+  }
+
+ cleanup:
+  if (status != FFI_OK) {
+    free_lazy_method(env, lm);
+    lm = NULL;
+  }
+  free((void *)cname);
+  free((void *)sig);
+
+  return A2L(lm);
+}
+
+JNIEXPORT void JNICALL
+Java_com_sun_jna_Native_freeLazyMethods(JNIEnv *env, jclass UNUSED(ncls), jlongArray handles) {
+  jlong* data = (*env)->GetLongArrayElements(env, handles, NULL);
+  int count = (*env)->GetArrayLength(env, handles);
+
+  while (count-- > 0) {
+    if (data[count]) {
+      free_lazy_method(env, (lazy_method*)L2A(data[count]));
+    }
+  }
+  (*env)->ReleaseLongArrayElements(env, handles, data, 0);
+}
+
 JNIEXPORT void JNICALL
 Java_com_sun_jna_Native_ffi_1call(JNIEnv *UNUSED(env), jclass UNUSED(cls), jlong cif, jlong fptr, jlong resp, jlong args) 
 {
@@ -16,6 +16,7 @@
 #include "ffi.h"
 #include "com_sun_jna_Function.h"
 #include "com_sun_jna_Native.h"
+#include "com_sun_jna_CallbackReference.h"
 #ifdef sun
 #  include <alloca.h>
 #endif
@@ -80,6 +81,14 @@ enum {
   CVT_INTEGER_TYPE = com_sun_jna_Native_CVT_INTEGER_TYPE,
   CVT_POINTER_TYPE = com_sun_jna_Native_CVT_POINTER_TYPE,
   CVT_TYPE_MAPPER = com_sun_jna_Native_CVT_TYPE_MAPPER,
+  CVT_ARRAY_OBJECT = com_sun_jna_Native_CVT_ARRAY_OBJECT,
+};
+
+/* callback creation flags */
+enum {
+  CB_DIRECT = com_sun_jna_CallbackReference_FLAG_DIRECT,
+  CB_DAEMON = com_sun_jna_CallbackReference_FLAG_DAEMON,
+  CB_NODETACH = com_sun_jna_CallbackReference_FLAG_NODETACH,
 };
 
 typedef struct _callback {
@@ -95,10 +104,22 @@ typedef struct _callback {
   int rflag;
   JavaVM* vm;
   jobject object;
+  // Reference to an unbound object, kept until no thread is invoking it
+  jobject released;
+  // Number of native threads currently invoking the callback
+  volatile long active;
   jmethodID methodID;
   char* arg_jtypes;
   jboolean direct;
+  // How to attach native threads which invoke the callback
+  jint thread_flags;
   void* fptr;
+  // TypeMapper conversions (direct callbacks only)
+  jobject method;
+  jobjectArray param_types;
+  jobjectArray from_native;
+  jobject to_native;
+  char java_rtype;
 } callback;
 
 #if defined(SOLARIS2) || defined(__GNUC__)
@@ -154,7 +175,10 @@ extern const char* jnidispatch_callback_init(JNIEnv*);
 extern void jnidispatch_callback_dispose(JNIEnv*);
 extern callback* create_callback(JNIEnv*, jobject, jobject,
                                  jobjectArray, jclass, 
-                                 callconv_t, jboolean);
+                                 callconv_t, jint,
+                                 jobjectArray, jobject);
+extern void bind_callback(JNIEnv*, callback*, jobject);
+extern jboolean unbind_callback(JNIEnv*, callback*);
 extern void free_callback(JNIEnv*, callback*);
 extern void extract_value(JNIEnv*, jobject, void*, size_t, jboolean);
 extern jobject new_object(JNIEnv*, char, void*, jboolean);
@@ -177,6 +201,7 @@ extern void writeStructure(JNIEnv*, jobject);
 extern jclass getNativeType(JNIEnv*, jclass);
 extern void toNative(JNIEnv*, jobject, void*, size_t, jboolean);
 extern jclass fromNative(JNIEnv*, jclass, ffi_type*, void*, jboolean);
+extern int get_jtype_from_ffi_type(ffi_type*);
 
 /* Native memory fault protection */
 #ifdef HAVE_PROTECTION
@@ -38,6 +38,8 @@ typedef __int64 int64_t;
 #include <windows.h>
 #define EXPORT __declspec(dllexport)
 #else
+#include <pthread.h>
+#include <unistd.h>
 #define EXPORT
 #endif
 
@@ -551,6 +553,61 @@ callVoidCallback(void (*func)(void)) {
   (*func)();
 }
 
+typedef struct {
+  void (*func)(void);
+  int n;
+  int ms;
+} thread_data;
+
+#ifdef _WIN32
+static DWORD WINAPI
+thread_function(LPVOID arg) {
+#else
+static void*
+thread_function(void* arg) {
+#endif
+  thread_data* data = (thread_data*)arg;
+  int i;
+  for (i=0;i < data->n;i++) {
+    (*data->func)();
+    if (data->ms > 0) {
+#ifdef _WIN32
+      Sleep(data->ms);
+#else
+      usleep(data->ms * 1000);
+#endif
+    }
+  }
+  return 0;
+}
+
+/* Invoke the callback n times from a new native thread, and wait for that
+ * thread to exit.
+ */
+EXPORT void
+callVoidCallbackThreaded(void (*func)(void), int n, int ms) {
+  thread_data data;
+  data.func = func;
+  data.n = n;
+  data.ms = ms;
+#ifdef _WIN32
+  {
+    HANDLE thread = CreateThread(NULL, 0, thread_function, &data, 0, NULL);
+    if (thread != NULL) {
+      WaitForSingleObject(thread, INFINITE);
+      CloseHandle(thread);
+    }
+  }
+#else
+  {
+    pthread_t thread;
+    if (pthread_create(&thread, NULL, thread_function, &data) == 0) {
+      pthread_join(thread, NULL);
+    }
+  }
+#endif
+}
+
 EXPORT int 
 callBooleanCallback(int (*func)(int arg, int arg2),
                     int arg, int arg2) {
@@ -0,0 +1,417 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.StringTokenizer;
+import java.util.WeakHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/** Precomputed binding information, generated when an application is built
+ * so that it need not be derived by reflection when the application runs.
+ * The manifest records the native layout (field order, offsets and sizes)
+ * of each {@link Structure} class and the method implemented by each
+ * {@link Callback} interface.<p>
+ * Generate a manifest from compiled classes (directories or jar files)
+ * with
+ * <code><pre>
+ * java -cp jna.jar com.sun.jna.BindingManifest -o classes/META-INF/jna-bindings.properties classes
+ * </pre></code>
+ * and package it with the classes it describes.  The manifest must be
+ * generated on the platform on which it will be used; manifests for other
+ * platforms or other versions of JNA are ignored, as are entries which no
+ * longer match the fields of their class.  Structures which customize
+ * their field list or type mapping, or whose size depends on their field
+ * values (e.g. arrays), are not recorded.  Since the field order comes from
+ * the manifest, recorded structures need not call
+ * {@link Structure#setFieldOrder} on VMs which do not preserve the declared
+ * order of fields.<p>
+ * Set the system property <code>jna.nomanifest=true</code> to ignore all
+ * manifests.
+ */
+public final class BindingManifest {
+
+    /** Name of the manifest resource. */
+    public static final String RESOURCE_NAME = "META-INF/jna-bindings.properties";
+
+    private static final String PLATFORM = "jna.platform";
+    private static final String VERSION = "jna.version";
+    private static final String STRUCTURE = "structure.";
+    private static final String CALLBACK = "callback.";
+    // Existing manifests are ignored while generating a new one
+    private static boolean disabled = Boolean.getBoolean("jna.nomanifest");
+    private static final Properties EMPTY = new Properties();
+
+    // Merged manifest entries visible to each class loader
+    private static final Map manifests = new WeakHashMap();
+
+    private BindingManifest() { }
+
+    /** Precomputed layout of a {@link Structure} class. */
+    static class Layout {
+        int size;
+        int alignment;
+        String[] names;
+        String[] types;
+        int[] offsets;
+        int[] sizes;
+
+        /** Returns the public fields of the given class in layout order,
+         * or <code>null</code> if they no longer match this layout.
+         */
+        List getFields(Class cls) {
+            Field[] fields = cls.getFields();
+            List list = new ArrayList(Collections.nCopies(names.length, null));
+            int count = 0;
+            for (int i=0;i < fields.length;i++) {
+                if (Modifier.isStatic(fields[i].getModifiers())) {
+                    continue;
+                }
+                int index = indexOf(fields[i].getName());
+                if (index == -1 || list.get(index) != null
+                    || !types[index].equals(fields[i].getType().getName())) {
+                    return null;
+                }
+                list.set(index, fields[i]);
+                ++count;
+            }
+            return count == names.length ? list : null;
+        }
+
+        private int indexOf(String name) {
+            for (int i=0;i < names.length;i++) {
+                if (names[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /** Returns the precomputed layout of the given {@link Structure} class
+     * with the given alignment, or <code>null</code> if there is none.
+     */
+    static Layout getLayout(Class cls, int alignType) {
+        String value = getManifest(cls).getProperty(STRUCTURE + cls.getName());
+        if (value == null) {
+            return null;
+        }
+        try {
+            StringTokenizer st = new StringTokenizer(value, ";");
+            StringTokenizer header = new StringTokenizer(st.nextToken());
+            if (Integer.parseInt(header.nextToken()) != alignType) {
+                return null;
+            }
+            Layout layout = new Layout();
+            layout.size = Integer.parseInt(header.nextToken());
+            layout.alignment = Integer.parseInt(header.nextToken());
+            int count = st.countTokens();
+            layout.names = new String[count];
+            layout.types = new String[count];
+            layout.offsets = new int[count];
+            layout.sizes = new int[count];
+            for (int i=0;i < count;i++) {
+                StringTokenizer field = new StringTokenizer(st.nextToken());
+                layout.names[i] = field.nextToken();
+                layout.types[i] = field.nextToken();
+                layout.offsets[i] = Integer.parseInt(field.nextToken());
+                layout.sizes[i] = Integer.parseInt(field.nextToken());
+            }
+            return count > 0 ? layout : null;
+        }
+        catch(RuntimeException e) {
+            // Malformed entry; derive the layout instead
+            return null;
+        }
+    }
+
+    /** Returns the precomputed callback method of the given {@link
+     * Callback} class, or <code>null</code> if there is none.
+     */
+    static Method getCallbackMethod(Class cls) {
+        String name = getManifest(cls).getProperty(CALLBACK + cls.getName());
+        if (name == null) {
+            return null;
+        }
+        Method found = null;
+        Method[] methods = cls.getMethods();
+        for (int i=0;i < methods.length;i++) {
+            if (methods[i].getDeclaringClass() == cls
+                && name.equals(methods[i].getName())) {
+                if (found != null) {
+                    return null;
+                }
+                found = methods[i];
+            }
+        }
+        return found;
+    }
+
+    private static String getPlatform() {
+        return Native.getNativeLibraryResourcePath(Platform.getOSType(),
+                                                   System.getProperty("os.arch"),
+                                                   System.getProperty("os.name"));
+    }
+
+    private static Properties getManifest(Class cls) {
+        ClassLoader loader = cls.getClassLoader();
+        if (disabled || loader == null) {
+            return EMPTY;
+        }
+        synchronized(manifests) {
+            Properties props = (Properties)manifests.get(loader);
+            if (props == null) {
+                props = loadManifests(loader);
+                manifests.put(loader, props);
+            }
+            return props;
+        }
+    }
+
+    /** Add the given entries to those in effect for the given loader. */
+    static void addEntries(ClassLoader loader, Properties props) {
+        synchronized(manifests) {
+            Properties merged = (Properties)manifests.get(loader);
+            if (merged == null) {
+                merged = loadManifests(loader);
+                manifests.put(loader, merged);
+            }
+            merged.putAll(props);
+        }
+    }
+
+    /** Merge all manifests visible to the given loader which apply to
+     * this platform.
+     */
+    private static Properties loadManifests(ClassLoader loader) {
+        Properties merged = new Properties();
+        String platform = getPlatform();
+        try {
+            Enumeration e = loader.getResources(RESOURCE_NAME);
+            while (e.hasMoreElements()) {
+                URL url = (URL)e.nextElement();
+                Properties props = new Properties();
+                InputStream is = null;
+                try {
+                    is = url.openStream();
+                    props.load(is);
+                }
+                catch(IOException ex) {
+                    continue;
+                }
+                finally {
+                    if (is != null) {
+                        try { is.close(); } catch(IOException ex) { }
+                    }
+                }
+                if (platform.equals(props.getProperty(PLATFORM))
+                    && Native.VERSION.equals(props.getProperty(VERSION))) {
+                    merged.putAll(props);
+                }
+            }
+        }
+        catch(IOException e) {
+        }
+        return merged;
+    }
+
+    /** Describe the layout of the given {@link Structure} class, or return
+     * <code>null</code> if it can not be precomputed.
+     */
+    static String describeLayout(Class cls) {
+        if (!Structure.class.isAssignableFrom(cls)
+            || Modifier.isAbstract(cls.getModifiers())
+            || !Modifier.isPublic(cls.getModifiers())) {
+            return null;
+        }
+        for (Class c = cls;c != Structure.class;c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod("getFields", new Class[] { boolean.class });
+                return null;
+            }
+            catch(NoSuchMethodException e) {
+            }
+        }
+        Structure s = Structure.newInstance(cls);
+        s.size();
+        Structure.LayoutInfo info = s.layoutInfo();
+        if (info == null || info.variable || info.typeMapper != null
+            || info.fieldOrder != null) {
+            return null;
+        }
+        StringBuffer buf = new StringBuffer();
+        buf.append(info.alignType);
+        buf.append(" ");
+        buf.append(info.size);
+        buf.append(" ");
+        buf.append(info.alignment);
+        for (Iterator i=info.fields.values().iterator();i.hasNext();) {
+            Structure.StructField sf = (Structure.StructField)i.next();
+            buf.append("; ");
+            buf.append(sf.name);
+            buf.append(" ");
+            buf.append(sf.type.getName());
+            buf.append(" ");
+            buf.append(sf.offset);
+            buf.append(" ");
+            buf.append(sf.size);
+        }
+        return buf.toString();
+    }
+
+    /** Generate a manifest describing the given classes.  Classes which
+     * can not be loaded or initialized are skipped, with a warning.
+     */
+    static Properties generate(ClassLoader loader, List classNames, PrintStream log) {
+        Properties props = new Properties();
+        props.setProperty(PLATFORM, getPlatform());
+        props.setProperty(VERSION, Native.VERSION);
+        for (Iterator i=classNames.iterator();i.hasNext();) {
+            String name = (String)i.next();
+            try {
+                Class cls = Class.forName(name, false, loader);
+                if (Structure.class.isAssignableFrom(cls)) {
+                    String layout = describeLayout(cls);
+                    if (layout != null) {
+                        props.setProperty(STRUCTURE + name, layout);
+                    }
+                }
+                else if (Callback.class.isAssignableFrom(cls)
+                         && cls.isInterface()) {
+                    Method m = CallbackReference.getCallbackMethod(cls);
+                    props.setProperty(CALLBACK + name, m.getName());
+                }
+            }
+            catch(Throwable t) {
+                if (log != null) {
+                    log.println("Skipping " + name + ": " + t);
+                }
+            }
+        }
+        return props;
+    }
+
+    /** Write the manifest with entries sorted, so that the output does not
+     * change unless the bindings do.
+     */
+    static void write(Properties props, OutputStream os) throws IOException {
+        List keys = new ArrayList(props.keySet());
+        Collections.sort(keys);
+        StringBuffer buf = new StringBuffer("# JNA binding manifest\n");
+        for (Iterator i=keys.iterator();i.hasNext();) {
+            String key = (String)i.next();
+            buf.append(key);
+            buf.append("=");
+            buf.append(props.getProperty(key));
+            buf.append("\n");
+        }
+        os.write(buf.toString().getBytes("ISO-8859-1"));
+        os.flush();
+    }
+
+    private static void addClassNames(File root, File file, List names)
+        throws IOException {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            for (int i=0;i < files.length;i++) {
+                addClassNames(root, files[i], names);
+            }
+        }
+        else if (file == root) {
+            JarFile jar = new JarFile(file);
+            try {
+                for (Enumeration e = jar.entries();e.hasMoreElements();) {
+                    addClassName(((JarEntry)e.nextElement()).getName(), names);
+                }
+            }
+            finally {
+                jar.close();
+            }
+        }
+        else {
+            String path = file.getPath().substring(root.getPath().length() + 1);
+            addClassName(path.replace(File.separatorChar, '/'), names);
+        }
+    }
+
+    private static void addClassName(String path, List names) {
+        if (path.endsWith(".class")) {
+            path = path.substring(0, path.length() - ".class".length());
+            names.add(path.replace('/', '.'));
+        }
+    }
+
+    /** Generate a manifest for all classes found in the given directories
+     * and jar files.
+     * Usage: <code>BindingManifest [-o output-file] path...</code>
+     */
+    public static void main(String[] args) throws IOException {
+        File output = null;
+        List paths = new ArrayList();
+        for (int i=0;i < args.length;i++) {
+            if ("-o".equals(args[i]) && i < args.length - 1) {
+                output = new File(args[++i]);
+            }
+            else {
+                paths.add(new File(args[i]));
+            }
+        }
+        if (paths.size() == 0) {
+            System.err.println("usage: java " + BindingManifest.class.getName()
+                               + " [-o output-file] classdir-or-jar...");
+            System.exit(1);
+        }
+        disabled = true;
+        List names = new ArrayList();
+        URL[] urls = new URL[paths.size()];
+        for (int i=0;i < urls.length;i++) {
+            File path = (File)paths.get(i);
+            urls[i] = path.toURI().toURL();
+            addClassNames(path, path, names);
+        }
+        ClassLoader loader = new URLClassLoader(urls, BindingManifest.class.getClassLoader());
+        Properties props = generate(loader, names, System.err);
+        if (output != null) {
+            File dir = output.getAbsoluteFile().getParentFile();
+            if (dir != null) {
+                dir.mkdirs();
+            }
+            OutputStream os = new FileOutputStream(output);
+            try {
+                write(props, os);
+            }
+            finally {
+                os.close();
+            }
+        }
+        else {
+            write(props, System.out);
+        }
+    }
+}
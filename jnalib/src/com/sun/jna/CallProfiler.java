@@ -0,0 +1,196 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/** Records the time spent in each native function called through an
+ * interface mapping ({@link Function#invoke}) or a direct mapping ({@link
+ * Native#register}), as {@link CallStatistics} for each function.<p>
+ * Profiling is disabled by default and then costs nothing beyond checking
+ * whether it is enabled.  Enable it with {@link #setEnabled}, or by setting
+ * the system property <code>jna.profile=true</code>.  While enabled, each
+ * call is timed with a native clock, which adds a small fixed overhead to
+ * each call.<p>
+ * When enabled on a VM which provides the platform MBean server (Java 5
+ * or later), the profiler registers itself as an MBean named {@link
+ * #OBJECT_NAME}, which keeps the JNA classes from being unloaded.  Use
+ * {@link #getSnapshot} to examine statistics programmatically.
+ */
+public final class CallProfiler implements CallProfilerMBean {
+
+    /** Name under which the profiler is registered with JMX. */
+    public static final String OBJECT_NAME = "com.sun.jna:type=CallProfiler";
+
+    private static final String[] PHASES = { "marshal", "native", "result" };
+    private static final CallProfiler INSTANCE = new CallProfiler();
+
+    /** Checked on each call, so kept outside the instance. */
+    static volatile boolean enabled;
+
+    private final Map statistics = new HashMap();
+    private boolean registered;
+
+    private CallProfiler() { }
+
+    /** Returns the profiler. */
+    public static CallProfiler getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Start or stop recording calls.  Statistics recorded so far are
+     * kept; use {@link #reset} to discard them.
+     */
+    public synchronized void setEnabled(boolean enable) {
+        if (enable && !registered) {
+            registered = true;
+            registerMBean();
+        }
+        enabled = enable;
+        Native.setCallProfiling(enable);
+    }
+
+    /** Register with the platform MBean server, if there is one.  JMX is
+     * accessed reflectively since it is not available on all supported VMs.
+     */
+    private void registerMBean() {
+        try {
+            Class factory = Class.forName("java.lang.management.ManagementFactory");
+            Object server = factory.getMethod("getPlatformMBeanServer", new Class[0])
+                .invoke(null, new Object[0]);
+            Class nameClass = Class.forName("javax.management.ObjectName");
+            Object name = nameClass.getConstructor(new Class[] { String.class })
+                .newInstance(new Object[] { OBJECT_NAME });
+            Method register = Class.forName("javax.management.MBeanServer")
+                .getMethod("registerMBean", new Class[] { Object.class, nameClass });
+            register.invoke(server, new Object[] { this, name });
+        }
+        catch(Exception e) {
+            // JMX unavailable, or already registered by another copy of
+            // JNA; statistics remain available programmatically
+        }
+    }
+
+    /** Returns the statistics for the function with the given name,
+     * creating them if necessary.
+     */
+    synchronized CallStatistics getStatistics(String name) {
+        CallStatistics stats = (CallStatistics)statistics.get(name);
+        if (stats == null) {
+            stats = new CallStatistics(name);
+            statistics.put(name, stats);
+        }
+        return stats;
+    }
+
+    private synchronized CallStatistics findStatistics(String name) {
+        CallStatistics stats = (CallStatistics)statistics.get(name);
+        if (stats == null) {
+            throw new IllegalArgumentException("No calls recorded for " + name);
+        }
+        return stats;
+    }
+
+    private static int getPhase(String phase) {
+        for (int i=0;i < PHASES.length;i++) {
+            if (PHASES[i].equals(phase)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown phase '" + phase
+                                           + "', expected one of "
+                                           + Arrays.asList(PHASES));
+    }
+
+    /** Returns the statistics for each function with recorded calls,
+     * sorted by function name.
+     */
+    public CallStatistics.Snapshot[] getSnapshot() {
+        List stats;
+        synchronized(this) {
+            stats = new ArrayList(statistics.values());
+        }
+        List snapshots = new ArrayList(stats.size());
+        for (Iterator i=stats.iterator();i.hasNext();) {
+            CallStatistics.Snapshot s = ((CallStatistics)i.next()).getSnapshot();
+            if (s.getCount() > 0) {
+                snapshots.add(s);
+            }
+        }
+        CallStatistics.Snapshot[] result = (CallStatistics.Snapshot[])
+            snapshots.toArray(new CallStatistics.Snapshot[snapshots.size()]);
+        Arrays.sort(result, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                return ((CallStatistics.Snapshot)o1).getName()
+                    .compareTo(((CallStatistics.Snapshot)o2).getName());
+            }
+        });
+        return result;
+    }
+
+    /** Returns the statistics for the given function.
+     * @throws IllegalArgumentException if no calls have been recorded
+     */
+    public CallStatistics.Snapshot getSnapshot(String function) {
+        return findStatistics(function).getSnapshot();
+    }
+
+    public void reset() {
+        List stats;
+        synchronized(this) {
+            stats = new ArrayList(statistics.values());
+        }
+        for (Iterator i=stats.iterator();i.hasNext();) {
+            ((CallStatistics)i.next()).reset();
+        }
+    }
+
+    public String[] getFunctionNames() {
+        CallStatistics.Snapshot[] snapshots = getSnapshot();
+        String[] names = new String[snapshots.length];
+        for (int i=0;i < names.length;i++) {
+            names[i] = snapshots[i].getName();
+        }
+        return names;
+    }
+
+    public String[] getSummary() {
+        CallStatistics.Snapshot[] snapshots = getSnapshot();
+        String[] summary = new String[snapshots.length];
+        for (int i=0;i < summary.length;i++) {
+            summary[i] = snapshots[i].toString();
+        }
+        return summary;
+    }
+
+    public long getCallCount(String function) {
+        return getSnapshot(function).getCount();
+    }
+
+    public double getMeanTime(String function, String phase) {
+        return getSnapshot(function).getMeanTime(getPhase(phase));
+    }
+
+    public long getPercentile(String function, String phase, double fraction) {
+        return getSnapshot(function).getPercentile(getPhase(phase), fraction);
+    }
+}
@@ -0,0 +1,39 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+/** Management interface of {@link CallProfiler}, restricted to types
+ * which any JMX client can display.  Times are in nanoseconds and phases
+ * are named <code>marshal</code>, <code>native</code> or
+ * <code>result</code> (see {@link CallStatistics}).
+ */
+public interface CallProfilerMBean {
+    /** Returns whether calls are being recorded. */
+    boolean isEnabled();
+    /** Start or stop recording calls. */
+    void setEnabled(boolean enabled);
+    /** Discard all recorded calls. */
+    void reset();
+    /** Returns the names of all functions with recorded calls. */
+    String[] getFunctionNames();
+    /** Returns a one-line summary of each function with recorded calls. */
+    String[] getSummary();
+    /** Returns the number of recorded calls to the given function. */
+    long getCallCount(String function);
+    /** Returns the mean time spent in the given phase of calls to the
+     * given function.
+     */
+    double getMeanTime(String function, String phase);
+    /** Returns an upper bound on the time spent in the given phase by the
+     * given fraction of calls to the given function.
+     */
+    long getPercentile(String function, String phase, double fraction);
+}
@@ -0,0 +1,230 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+/** Timing statistics for calls to a single native function, recorded
+ * while {@link CallProfiler} is enabled.  Each call is divided into three
+ * phases: converting the Java arguments to native values ({@link
+ * #MARSHAL}), the native call itself ({@link #NATIVE}) and converting the
+ * native result to a Java value ({@link #RESULT}).  The duration of each
+ * phase is counted in a histogram with power-of-two nanosecond buckets.<p>
+ * Updates are spread across several independently locked stripes so that
+ * threads calling the same function rarely contend; use {@link
+ * #getSnapshot} to obtain a consistent view of the totals.
+ */
+public final class CallStatistics {
+
+    /** Phase in which arguments are converted to native values. */
+    public static final int MARSHAL = 0;
+    /** Phase in which the native function runs. */
+    public static final int NATIVE = 1;
+    /** Phase in which the native result is converted to a Java value. */
+    public static final int RESULT = 2;
+    /** Number of histogram buckets.  Bucket <code>i</code> counts
+     * durations less than 2<sup>i</sup> nanoseconds but not less than
+     * 2<sup>i-1</sup>; the last bucket also counts all longer durations.
+     */
+    public static final int BUCKETS = 40;
+
+    private static final int PHASES = 3;
+    private static final int STRIPES;
+    static {
+        int stripes = 1;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        while (stripes < cpus * 2 && stripes < 64) {
+            stripes *= 2;
+        }
+        STRIPES = stripes;
+    }
+
+    private static class Stripe {
+        long count;
+        final long[] totals = new long[PHASES];
+        final long[][] histograms = new long[PHASES][BUCKETS];
+    }
+
+    private final String name;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    CallStatistics(String name) {
+        this.name = name;
+        for (int i=0;i < stripes.length;i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /** Returns the name of the function, qualified by its library name if
+     * it has one.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /** Returns the histogram bucket for the given duration. */
+    static int getBucket(long nanos) {
+        int bucket = 0;
+        while (nanos > 0 && bucket < BUCKETS - 1) {
+            nanos >>>= 1;
+            ++bucket;
+        }
+        return bucket;
+    }
+
+    /** Record a single call with the given phase durations, in
+     * nanoseconds.
+     */
+    void record(long marshal, long nativeTime, long result) {
+        Stripe s = stripes[System.identityHashCode(Thread.currentThread()) & (STRIPES - 1)];
+        synchronized(s) {
+            ++s.count;
+            s.totals[MARSHAL] += marshal;
+            s.totals[NATIVE] += nativeTime;
+            s.totals[RESULT] += result;
+            ++s.histograms[MARSHAL][getBucket(marshal)];
+            ++s.histograms[NATIVE][getBucket(nativeTime)];
+            ++s.histograms[RESULT][getBucket(result)];
+        }
+    }
+
+    /** Discard all recorded calls. */
+    public void reset() {
+        for (int i=0;i < stripes.length;i++) {
+            Stripe s = stripes[i];
+            synchronized(s) {
+                s.count = 0;
+                for (int p=0;p < PHASES;p++) {
+                    s.totals[p] = 0;
+                    for (int b=0;b < BUCKETS;b++) {
+                        s.histograms[p][b] = 0;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Returns the calls recorded so far. */
+    public Snapshot getSnapshot() {
+        Snapshot snapshot = new Snapshot(name);
+        for (int i=0;i < stripes.length;i++) {
+            Stripe s = stripes[i];
+            synchronized(s) {
+                snapshot.count += s.count;
+                for (int p=0;p < PHASES;p++) {
+                    snapshot.totals[p] += s.totals[p];
+                    for (int b=0;b < BUCKETS;b++) {
+                        snapshot.histograms[p][b] += s.histograms[p][b];
+                    }
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /** Measures the phases of a single call. */
+    static final class Timer {
+        private final CallStatistics statistics;
+        private final long start;
+        private long nativeStart;
+        private long nativeEnd;
+
+        Timer(CallStatistics statistics) {
+            this.statistics = statistics;
+            this.start = Native.nanoTime();
+        }
+
+        void nativeStart() {
+            nativeStart = Native.nanoTime();
+        }
+
+        void nativeEnd() {
+            nativeEnd = Native.nanoTime();
+        }
+
+        /** Record the call, provided it reached native code. */
+        void finish() {
+            if (nativeEnd != 0) {
+                statistics.record(nativeStart - start, nativeEnd - nativeStart,
+                                  Native.nanoTime() - nativeEnd);
+            }
+        }
+    }
+
+    /** Immutable copy of the statistics for a function at a given time. */
+    public static final class Snapshot {
+        private final String name;
+        private long count;
+        private final long[] totals = new long[PHASES];
+        private final long[][] histograms = new long[PHASES][BUCKETS];
+
+        Snapshot(String name) {
+            this.name = name;
+        }
+
+        /** Returns the name of the function. */
+        public String getName() {
+            return name;
+        }
+
+        /** Returns the number of calls. */
+        public long getCount() {
+            return count;
+        }
+
+        /** Returns the total time spent in the given phase, in
+         * nanoseconds.
+         */
+        public long getTotalTime(int phase) {
+            return totals[phase];
+        }
+
+        /** Returns the mean time spent in the given phase, in
+         * nanoseconds.
+         */
+        public double getMeanTime(int phase) {
+            return count == 0 ? 0 : (double)totals[phase] / count;
+        }
+
+        /** Returns the number of calls whose given phase fell into each
+         * histogram bucket (see {@link CallStatistics#BUCKETS}).
+         */
+        public long[] getHistogram(int phase) {
+            return (long[])histograms[phase].clone();
+        }
+
+        /** Returns an upper bound, in nanoseconds, on the time taken by
+         * the given phase for the given fraction (between 0 and 1) of
+         * calls.  The bound is exact to within a factor of two, since
+         * durations are only recorded to the nearest power of two.
+         */
+        public long getPercentile(int phase, double fraction) {
+            if (count == 0) {
+                return 0;
+            }
+            long threshold = (long)Math.ceil(count * fraction);
+            long seen = 0;
+            for (int b=0;b < BUCKETS;b++) {
+                seen += histograms[phase][b];
+                if (seen >= threshold && seen > 0) {
+                    return b == BUCKETS - 1 ? Long.MAX_VALUE : (1L << b) - 1;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        public String toString() {
+            return name + ": " + count + " calls, mean marshal "
+                + (long)getMeanTime(MARSHAL) + "ns, native "
+                + (long)getMeanTime(NATIVE) + "ns (99% < "
+                + getPercentile(NATIVE, 0.99) + "ns), result "
+                + (long)getMeanTime(RESULT) + "ns";
+        }
+    }
+}
@@ -24,6 +24,11 @@ import java.util.Collection;
  * there is no method to deregister the callback (e.g. <code>atexit</code>
  * in the C library), you must ensure that you always keep a live reference
  * to the callback object.<p>
+ * The native trampoline of a GC'd callback may be reused for a new callback
+ * of the same signature (see the <code>jna.callback.pool</code> system
+ * property; set it to zero to disable reuse), so native code which retains
+ * a stale callback pointer may end up invoking an unrelated callback
+ * rather than crashing.<p>
  * A callback should generally never throw an exception, since it doesn't
  * necessarily have an encompassing Java environment to catch it.  Any
  * exceptions thrown will be passed to the default callback exception
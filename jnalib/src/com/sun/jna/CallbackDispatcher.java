@@ -0,0 +1,111 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+/** A {@link CallbackExecutor} which runs tasks in order on a single
+ * daemon thread.  Submitting a task only appends it to a queue, which
+ * grows as needed, so native threads are never blocked waiting for
+ * earlier tasks to complete.
+ */
+public class CallbackDispatcher implements CallbackExecutor {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private Runnable[] queue = new Runnable[INITIAL_CAPACITY];
+    private int head;
+    private int count;
+    private boolean shutdown;
+    private final Thread thread;
+
+    /** Create a dispatcher with a thread of the given name. */
+    public CallbackDispatcher(String name) {
+        thread = new Thread(name) {
+            public void run() {
+                dispatch();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Create a dispatcher with a default thread name. */
+    public CallbackDispatcher() {
+        this("JNA callback dispatcher");
+    }
+
+    /** Queue the given task.
+     * @throws IllegalStateException if the dispatcher has been shut down
+     */
+    public void execute(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException("Task may not be null");
+        }
+        synchronized(this) {
+            if (shutdown) {
+                throw new IllegalStateException("Dispatcher has been shut down");
+            }
+            if (count == queue.length) {
+                Runnable[] q = new Runnable[queue.length * 2];
+                for (int i=0;i < count;i++) {
+                    q[i] = queue[(head + i) % queue.length];
+                }
+                queue = q;
+                head = 0;
+            }
+            queue[(head + count) % queue.length] = task;
+            if (count++ == 0) {
+                notify();
+            }
+        }
+    }
+
+    /** Stop accepting tasks.  Tasks already queued are still run. */
+    public synchronized void shutdown() {
+        shutdown = true;
+        notify();
+    }
+
+    /** Returns whether the given thread is this dispatcher's thread. */
+    public boolean isDispatchThread(Thread t) {
+        return t == thread;
+    }
+
+    private synchronized Runnable next() throws InterruptedException {
+        while (count == 0) {
+            if (shutdown) {
+                return null;
+            }
+            wait();
+        }
+        Runnable task = queue[head];
+        queue[head] = null;
+        head = (head + 1) % queue.length;
+        --count;
+        return task;
+    }
+
+    private void dispatch() {
+        try {
+            Runnable task;
+            while ((task = next()) != null) {
+                try {
+                    task.run();
+                }
+                catch(Throwable t) {
+                    // Callback tasks report their own exceptions; keep
+                    // dispatching regardless
+                }
+            }
+        }
+        catch(InterruptedException e) {
+        }
+    }
+}
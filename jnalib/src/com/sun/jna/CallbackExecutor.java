@@ -0,0 +1,31 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+/** Runs asynchronous invocations of a {@link Callback} which returns
+ * <code>void</code>.  When a callback has an executor, native code which
+ * invokes the callback returns as soon as the arguments have been
+ * converted to their Java types; the callback method itself is invoked by
+ * the executor.<p>
+ * Use {@link Native#setCallbackExecutor} to configure an individual
+ * callback, or {@link Library#OPTION_CALLBACK_EXECUTOR} to configure all
+ * <code>void</code> callbacks declared within a library interface.
+ * Pointer arguments (including those backing {@link Structure} arguments)
+ * must remain valid until the callback has run, and changes to
+ * {@link Structure} arguments are not written back to native memory.
+ * {@link CallbackDispatcher} provides a simple implementation.
+ */
+public interface CallbackExecutor {
+    /** Arrange for the given task to be run, preferably without blocking
+     * the calling thread.
+     */
+    void execute(Runnable task);
+}
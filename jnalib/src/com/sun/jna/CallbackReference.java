@@ -17,10 +17,12 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
@@ -34,6 +36,24 @@ class CallbackReference extends WeakReference {
     static final Map callbackMap = new WeakHashMap();
     static final Map directCallbackMap = new WeakHashMap();
     static final Map allocations = new WeakHashMap();
+    static final Map initializers = new WeakHashMap();
+    static final Map executors = new WeakHashMap();
+    /** Maximum number of unused trampolines retained for each callback
+     * signature, set by the <code>jna.callback.pool</code> system property.
+     * Zero disables reuse, so that stale native callback pointers never
+     * reach a different callback.
+     */
+    static final int MAX_POOLED =
+        Integer.getInteger("jna.callback.pool", 32).intValue();
+    /** Unused trampolines, as lists of native addresses keyed by
+     * {@link Signature}.
+     */
+    private static final Map trampolinePool = new HashMap();
+    /** Unbound trampolines which a native thread was still invoking, as
+     * {@link Signature} and native address pairs, to be pooled once that
+     * thread has returned.
+     */
+    private static final List busyTrampolines = new ArrayList();
     private static final Method PROXY_CALLBACK_METHOD;
     
     static {
@@ -89,13 +109,21 @@ class CallbackReference extends WeakReference {
         }
     }
     
+    static final int FLAG_DIRECT = 0x1;
+    static final int FLAG_DAEMON = 0x2;
+    static final int FLAG_NODETACH = 0x4;
+
     Pointer cbstruct;
+    private Signature signature;
     // Keep a reference to the proxy to avoid premature GC of it
     CallbackProxy proxy;
     Method method;
     private CallbackReference(Callback callback, int callingConvention, boolean direct) {
         super(callback);
         TypeMapper mapper = Native.getTypeMapper(callback.getClass());
+        int flags = getThreadFlags(callback);
+        CallbackExecutor executor = callback instanceof CallbackProxy
+            ? null : getExecutor(callback);
         Class[] nativeParamTypes;
         Class returnType;
 
@@ -103,6 +131,12 @@ class CallbackReference extends WeakReference {
         // we need to fall back to conventional mapping
         String arch = System.getProperty("os.arch").toLowerCase();
         boolean ppc = "ppc".equals(arch) || "powerpc".equals(arch);
+        FromNativeConverter[] fromNative = null;
+        ToNativeConverter toNative = null;
+        // Asynchronous dispatch is performed by the proxy
+        if (executor != null) {
+            direct = false;
+        }
         if (direct) {
             Method m = getCallbackMethod(callback);
             Class[] ptypes = m.getParameterTypes();
@@ -113,15 +147,22 @@ class CallbackReference extends WeakReference {
                     direct = false;
                     break;
                 }
-                // No TypeMapper support in native callback code
-                if (mapper != null
-                    && mapper.getFromNativeConverter(ptypes[i]) != null) {
-                    direct = false;
-                    break;
+                FromNativeConverter fc = getFromNativeConverter(mapper, ptypes[i]);
+                if (fc != null) {
+                    // Native code only handles primitive and Pointer
+                    // native types
+                    if (!isDirectNativeType(fc.nativeType())) {
+                        direct = false;
+                        break;
+                    }
+                    if (fromNative == null) {
+                        fromNative = new FromNativeConverter[ptypes.length];
+                    }
+                    fromNative[i] = fc;
                 }
             }
-            if (mapper != null
-                && mapper.getToNativeConverter(m.getReturnType()) != null) {
+            toNative = getToNativeConverter(mapper, m.getReturnType());
+            if (toNative != null && !isDirectNativeType(toNative.nativeType())) {
                 direct = false;
             }
         }
@@ -130,16 +171,18 @@ class CallbackReference extends WeakReference {
             method = getCallbackMethod(callback);
             nativeParamTypes = method.getParameterTypes();
             returnType = method.getReturnType();
-            cbstruct = createNativeCallback(callback, method,
-                                            nativeParamTypes, returnType,
-                                            callingConvention, true);
+            cbstruct = getNativeCallback(callback, method,
+                                         nativeParamTypes, returnType,
+                                         callingConvention,
+                                         flags | FLAG_DIRECT,
+                                         fromNative, toNative);
         }
         else {
             if (callback instanceof CallbackProxy) {
                 proxy = (CallbackProxy)callback;
             }
             else {
-                proxy = new DefaultCallbackProxy(getCallbackMethod(callback), mapper);
+                proxy = new DefaultCallbackProxy(getCallbackMethod(callback), mapper, executor);
             }
             nativeParamTypes = proxy.getParameterTypes();
             returnType = proxy.getReturnType();
@@ -173,13 +216,289 @@ class CallbackReference extends WeakReference {
                     + " requires custom type conversion";
                 throw new IllegalArgumentException(msg);
             }
-            cbstruct = createNativeCallback(proxy, PROXY_CALLBACK_METHOD,  
-                                            nativeParamTypes, returnType,
-                                            callingConvention, false);
+            cbstruct = getNativeCallback(proxy, PROXY_CALLBACK_METHOD,
+                                         nativeParamTypes, returnType,
+                                         callingConvention, flags,
+                                         null, null);
+        }
+
+    }
+
+    /** Identifies trampolines which differ only in the Java object they
+     * invoke, and may therefore be reused by a callback of the same
+     * signature once the original callback has been freed.
+     */
+    private static final class Signature {
+        private final Method method;
+        private final Class[] parameterTypes;
+        private final Class returnType;
+        private final int callingConvention;
+        private final int flags;
+        private final Object[] converters;
+        private final int hashCode;
+
+        Signature(Method method, Class[] parameterTypes, Class returnType,
+                  int callingConvention, int flags,
+                  FromNativeConverter[] fromNative, ToNativeConverter toNative) {
+            this.method = method;
+            this.parameterTypes = parameterTypes;
+            this.returnType = returnType;
+            this.callingConvention = callingConvention;
+            this.flags = flags;
+            if (fromNative != null || toNative != null) {
+                int count = fromNative != null ? fromNative.length : 0;
+                converters = new Object[count + 1];
+                if (fromNative != null) {
+                    System.arraycopy(fromNative, 0, converters, 0, count);
+                }
+                converters[count] = toNative;
+            }
+            else {
+                converters = null;
+            }
+            hashCode = method.hashCode() * 31 + Arrays.asList(parameterTypes).hashCode()
+                + returnType.hashCode() + callingConvention + flags;
+        }
+        public int hashCode() {
+            return hashCode;
+        }
+        public boolean equals(Object o) {
+            if (!(o instanceof Signature)) {
+                return false;
+            }
+            Signature sig = (Signature)o;
+            return hashCode == sig.hashCode
+                && callingConvention == sig.callingConvention
+                && flags == sig.flags
+                && returnType == sig.returnType
+                && method.equals(sig.method)
+                && Arrays.equals(parameterTypes, sig.parameterTypes)
+                && Arrays.equals(converters, sig.converters);
         }
+    }
+
+    /** Obtain a trampoline invoking the given object, reusing an unused
+     * trampoline of the same signature if one is available.
+     */
+    private Pointer getNativeCallback(Callback obj, Method method,
+                                      Class[] parameterTypes, Class returnType,
+                                      int callingConvention, int flags,
+                                      FromNativeConverter[] fromNative,
+                                      ToNativeConverter toNative) {
+        signature = new Signature(method, parameterTypes, returnType,
+                                  callingConvention, flags,
+                                  fromNative, toNative);
+        releaseBusyCallbacks();
+        Long peer = null;
+        synchronized(trampolinePool) {
+            List pool = (List)trampolinePool.get(signature);
+            if (pool != null && pool.size() > 0) {
+                peer = (Long)pool.remove(pool.size() - 1);
+            }
+        }
+        if (peer != null) {
+            bindNativeCallback(peer.longValue(), obj);
+            return new Pointer(peer.longValue());
+        }
+        return createNativeCallback(obj, method, parameterTypes, returnType,
+                                    callingConvention, flags,
+                                    fromNative, toNative);
+    }
+
+    /** Unbind the given trampoline from its object, then return it to the
+     * pool for its signature, or free it if the pool is full.  A
+     * trampoline which a native thread is still invoking is neither pooled
+     * nor freed until that thread has returned.
+     */
+    private static void releaseNativeCallback(Signature signature, long peer) {
+        // Native code invoking a released trampoline finds no object
+        if (!unbindNativeCallback(peer)) {
+            synchronized(trampolinePool) {
+                busyTrampolines.add(new Object[] { signature, new Long(peer) });
+            }
+            return;
+        }
+        synchronized(trampolinePool) {
+            List pool = (List)trampolinePool.get(signature);
+            if (pool == null) {
+                pool = new ArrayList();
+                trampolinePool.put(signature, pool);
+            }
+            if (pool.size() < MAX_POOLED) {
+                pool.add(new Long(peer));
+                return;
+            }
+        }
+        freeNativeCallback(peer);
+    }
 
+    /** Release any previously busy trampolines which are no longer being
+     * invoked.
+     */
+    private static void releaseBusyCallbacks() {
+        List idle = null;
+        synchronized(trampolinePool) {
+            for (Iterator i=busyTrampolines.iterator();i.hasNext();) {
+                Object[] busy = (Object[])i.next();
+                if (unbindNativeCallback(((Long)busy[1]).longValue())) {
+                    i.remove();
+                    if (idle == null) {
+                        idle = new ArrayList();
+                    }
+                    idle.add(busy);
+                }
+            }
+        }
+        if (idle != null) {
+            for (Iterator i=idle.iterator();i.hasNext();) {
+                Object[] busy = (Object[])i.next();
+                releaseNativeCallback((Signature)busy[0], ((Long)busy[1]).longValue());
+            }
+        }
     }
     
+    /** NativeMapped types take precedence over the TypeMapper. */
+    private static FromNativeConverter getFromNativeConverter(TypeMapper mapper, Class type) {
+        if (mapper == null || NativeMapped.class.isAssignableFrom(type)) {
+            return null;
+        }
+        return mapper.getFromNativeConverter(type);
+    }
+
+    private static ToNativeConverter getToNativeConverter(TypeMapper mapper, Class type) {
+        if (mapper == null || NativeMapped.class.isAssignableFrom(type)) {
+            return null;
+        }
+        return mapper.getToNativeConverter(type);
+    }
+
+    /** Returns whether TypeMapper conversions to or from the given native
+     * type may be performed by a direct callback.
+     */
+    private static boolean isDirectNativeType(Class cls) {
+        return (cls.isPrimitive() && cls != void.class)
+            || cls == Boolean.class || cls == Byte.class
+            || cls == Short.class || cls == Character.class
+            || cls == Integer.class || cls == Long.class
+            || cls == Float.class || cls == Double.class
+            || cls == Pointer.class;
+    }
+
+    /** Convert the TypeMapper-converted arguments of a direct callback,
+     * in place.  Elements without a converter are ignored.
+     */
+    // Called from native code
+    private static void fromNativeArguments(Method method, Class[] types, Object[] args,
+                                            FromNativeConverter[] converters) {
+        Object[] nativeArgs = (Object[])args.clone();
+        for (int i=0;i < args.length;i++) {
+            if (converters[i] != null) {
+                FromNativeContext context =
+                    new CallbackParameterContext(types[i], method, nativeArgs, i);
+                args[i] = converters[i].fromNative(nativeArgs[i], context);
+            }
+        }
+    }
+
+    /** Convert the result of a direct callback for its TypeMapper. */
+    // Called from native code
+    private static Object toNativeResult(Method method, ToNativeConverter converter, Object value) {
+        return converter.toNative(value, new CallbackResultContext(method));
+    }
+
+    /** Returns the flags describing how native threads are attached when
+     * invoking the given callback.
+     */
+    private static int getThreadFlags(Callback callback) {
+        CallbackThreadInitializer init;
+        synchronized(initializers) {
+            init = (CallbackThreadInitializer)initializers.get(callback);
+        }
+        if (init == null) {
+            Map options = Native.getLibraryOptions(callback.getClass());
+            if (options != null) {
+                init = (CallbackThreadInitializer)
+                    options.get(Library.OPTION_CALLBACK_THREAD_INITIALIZER);
+            }
+        }
+        int flags = 0;
+        if (init != null) {
+            if (init.isDaemon()) {
+                flags |= FLAG_DAEMON;
+            }
+            if (!init.isDetach()) {
+                flags |= FLAG_NODETACH;
+            }
+        }
+        return flags;
+    }
+
+    static void setCallbackThreadInitializer(Callback cb, CallbackThreadInitializer initializer) {
+        synchronized(callbackMap) {
+            synchronized(directCallbackMap) {
+                if (callbackMap.get(cb) != null
+                    || directCallbackMap.get(cb) != null) {
+                    throw new IllegalStateException("Callback has already been passed to native code: " + cb);
+                }
+                synchronized(initializers) {
+                    if (initializer != null) {
+                        initializers.put(cb, initializer);
+                    }
+                    else {
+                        initializers.remove(cb);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Returns the executor for asynchronous invocations of the given
+     * callback, if any.  Library options apply only to callbacks which
+     * return <code>void</code>.
+     */
+    private static CallbackExecutor getExecutor(Callback callback) {
+        CallbackExecutor executor;
+        synchronized(executors) {
+            executor = (CallbackExecutor)executors.get(callback);
+        }
+        if (executor == null) {
+            Map options = Native.getLibraryOptions(callback.getClass());
+            if (options != null
+                && getCallbackMethod(callback).getReturnType() == void.class) {
+                executor = (CallbackExecutor)
+                    options.get(Library.OPTION_CALLBACK_EXECUTOR);
+            }
+        }
+        return executor;
+    }
+
+    static void setCallbackExecutor(Callback cb, CallbackExecutor executor) {
+        if (executor != null) {
+            if (cb instanceof CallbackProxy) {
+                throw new IllegalArgumentException("Asynchronous dispatch is not supported for CallbackProxy: " + cb);
+            }
+            if (getCallbackMethod(cb).getReturnType() != void.class) {
+                throw new IllegalArgumentException("Asynchronous dispatch requires a void callback method: " + cb);
+            }
+        }
+        synchronized(callbackMap) {
+            synchronized(directCallbackMap) {
+                if (callbackMap.get(cb) != null
+                    || directCallbackMap.get(cb) != null) {
+                    throw new IllegalStateException("Callback has already been passed to native code: " + cb);
+                }
+                synchronized(executors) {
+                    if (executor != null) {
+                        executors.put(cb, executor);
+                    }
+                    else {
+                        executors.remove(cb);
+                    }
+                }
+            }
+        }
+    }
+
     private Class getNativeType(Class cls) {
         if (Structure.class.isAssignableFrom(cls)) {
             // Make sure we can instantiate an argument of this type
@@ -243,7 +562,11 @@ class CallbackReference extends WeakReference {
         return getCallbackMethod(findCallbackClass(callback.getClass()));
     }
 
-    private static Method getCallbackMethod(Class cls) {
+    static Method getCallbackMethod(Class cls) {
+        Method precomputed = BindingManifest.getCallbackMethod(cls);
+        if (precomputed != null) {
+            return checkMethod(precomputed);
+        }
         // Look at only public methods defined by the Callback class
         Method[] pubMethods = cls.getDeclaredMethods();
         Method[] classMethods = cls.getMethods();
@@ -277,10 +600,19 @@ class CallbackReference extends WeakReference {
         return cbstruct.getPointer(0);
     }
     
+    /** Release the trampoline associated with this callback.  Native code
+     * must no longer invoke it.
+     */
+    synchronized void dispose() {
+        if (cbstruct.peer != 0) {
+            releaseNativeCallback(signature, cbstruct.peer);
+            cbstruct.peer = 0;
+        }
+    }
+
     /** Free native resources associated with this callback. */
     protected void finalize() {
-        freeNativeCallback(cbstruct.peer);
-        cbstruct.peer = 0;
+        dispose();
     }
     
     private Callback getCallback() {
@@ -316,22 +648,63 @@ class CallbackReference extends WeakReference {
         int callingConvention = cb instanceof AltCallingConvention
             ? Function.ALT_CONVENTION : Function.C_CONVENTION;
         Map map = direct ? directCallbackMap : callbackMap;
+        CallbackReference cbref;
         synchronized(map) {
-            CallbackReference cbref = (CallbackReference)map.get(cb);
-            if (cbref == null) {
-                cbref = new CallbackReference(cb, callingConvention, direct);
-                map.put(cb, cbref);
+            cbref = (CallbackReference)map.get(cb);
+        }
+        if (cbref == null) {
+            // Avoid blocking other callbacks while the trampoline is set up
+            CallbackReference ref = new CallbackReference(cb, callingConvention, direct);
+            synchronized(map) {
+                cbref = (CallbackReference)map.get(cb);
+                if (cbref == null) {
+                    map.put(cb, ref);
+                    cbref = ref;
+                }
+            }
+            if (cbref != ref) {
+                ref.dispose();
             }
-            return cbref.getTrampoline();
         }
+        return cbref.getTrampoline();
     }
 
+    /** Invokes a Java callback method on behalf of native code.  How each
+     * argument and the result are converted depends only on the callback
+     * method signature, so the conversions are determined once when the
+     * proxy is created rather than on every invocation.
+     */
     private class DefaultCallbackProxy implements CallbackProxy {
+        /** Argument is passed unchanged. */
+        private static final int ARG_DIRECT = 0;
+        /** Argument uses a fixed {@link FromNativeConverter}. */
+        private static final int ARG_CONVERTED = 1;
+        private static final int ARG_BOOLEAN = 2;
+        private static final int ARG_STRING = 3;
+        private static final int ARG_WSTRING = 4;
+        private static final int ARG_STRING_ARRAY = 5;
+        private static final int ARG_WSTRING_ARRAY = 6;
+        private static final int ARG_CALLBACK = 7;
+        private static final int ARG_STRUCTURE = 8;
+        private static final int ARG_STRUCTURE_BYVAL = 9;
+
         private Method callbackMethod;
+        private Class[] paramTypes;
         private ToNativeConverter toNative;
         private FromNativeConverter[] fromNative;
-        public DefaultCallbackProxy(Method callbackMethod, TypeMapper mapper) {
+        private int[] argKinds;
+        /** Whether the result needs conversion based on its runtime type. */
+        private boolean convertResult;
+        /** Whether any argument may be a Structure needing write-back. */
+        private boolean syncArguments;
+        private ToNativeContext resultContext;
+        /** Runs the callback method asynchronously, if non-null. */
+        private CallbackExecutor executor;
+
+        public DefaultCallbackProxy(Method callbackMethod, TypeMapper mapper,
+                                    CallbackExecutor executor) {
             this.callbackMethod = callbackMethod;
+            this.executor = executor;
             Class[] argTypes = callbackMethod.getParameterTypes();
             Class returnType = callbackMethod.getReturnType();
             fromNative = new FromNativeConverter[argTypes.length];
@@ -349,6 +722,19 @@ class CallbackReference extends WeakReference {
                     fromNative[i] = mapper.getFromNativeConverter(argTypes[i]);
                 }
             }
+            paramTypes = argTypes;
+            argKinds = new int[argTypes.length];
+            for (int i=0;i < argTypes.length;i++) {
+                argKinds[i] = getArgumentKind(argTypes[i], fromNative[i]);
+                if (Structure.class.isAssignableFrom(argTypes[i])
+                    || argTypes[i].isAssignableFrom(Structure.class)) {
+                    syncArguments = true;
+                }
+            }
+            resultContext = new CallbackResultContext(callbackMethod);
+            convertResult = !isDirectResultType(toNative != null
+                                                ? toNative.nativeType()
+                                                : returnType);
             if (!callbackMethod.isAccessible()) {
                 try {
                     callbackMethod.setAccessible(true);
@@ -358,51 +744,160 @@ class CallbackReference extends WeakReference {
                 }
             }
         }
-        
+
+        private int getArgumentKind(Class type, FromNativeConverter converter) {
+            if (converter != null) {
+                return ARG_CONVERTED;
+            }
+            if (type == boolean.class || type == Boolean.class) {
+                return ARG_BOOLEAN;
+            }
+            if (type == String.class) {
+                return ARG_STRING;
+            }
+            if (type == WString.class) {
+                return ARG_WSTRING;
+            }
+            if (type == String[].class) {
+                return ARG_STRING_ARRAY;
+            }
+            if (type == WString[].class) {
+                return ARG_WSTRING_ARRAY;
+            }
+            if (Callback.class.isAssignableFrom(type)) {
+                return ARG_CALLBACK;
+            }
+            if (Structure.class.isAssignableFrom(type)) {
+                return Structure.ByValue.class.isAssignableFrom(type)
+                    ? ARG_STRUCTURE_BYVAL : ARG_STRUCTURE;
+            }
+            return ARG_DIRECT;
+        }
+
+        /** Returns whether values of the given type are returned to native
+         * code unchanged.
+         */
+        private boolean isDirectResultType(Class type) {
+            return (type.isPrimitive() && type != boolean.class)
+                || type == Void.class
+                || type == Character.class
+                || Number.class.isAssignableFrom(type)
+                || (Pointer.class.isAssignableFrom(type)
+                    && !Callback.class.isAssignableFrom(type));
+        }
+
         private Object invokeCallback(Object[] args) {
-            Class[] paramTypes = callbackMethod.getParameterTypes();
             Object[] callbackArgs = new Object[args.length];
             
             // convert basic supported types to appropriate Java parameter types
             for (int i=0;i < args.length;i++) {
-                Class type = paramTypes[i];
                 Object arg = args[i];
-                if (fromNative[i] != null) {
+                switch(argKinds[i]) {
+                case ARG_CONVERTED:
                     FromNativeContext context = 
-                        new CallbackParameterContext(type, callbackMethod, args, i);
-                    callbackArgs[i] = fromNative[i].fromNative(arg, context);
-                }
-                else {
-                    callbackArgs[i] = convertArgument(arg, type);
+                        new CallbackParameterContext(paramTypes[i], callbackMethod, args, i);
+                    arg = fromNative[i].fromNative(arg, context);
+                    break;
+                case ARG_BOOLEAN:
+                    if (arg instanceof Number) {
+                        arg = Function.valueOf(((Number)arg).intValue() != 0);
+                    }
+                    break;
+                case ARG_STRING:
+                    if (arg instanceof Pointer) {
+                        arg = ((Pointer)arg).getString(0);
+                    }
+                    break;
+                case ARG_WSTRING:
+                    if (arg instanceof Pointer) {
+                        arg = new WString(((Pointer)arg).getString(0, true));
+                    }
+                    break;
+                case ARG_STRING_ARRAY:
+                case ARG_WSTRING_ARRAY:
+                    if (arg instanceof Pointer) {
+                        arg = ((Pointer)arg).getStringArray(0, argKinds[i] == ARG_WSTRING_ARRAY);
+                    }
+                    break;
+                case ARG_CALLBACK:
+                    if (arg instanceof Pointer) {
+                        arg = CallbackReference.getCallback(paramTypes[i], (Pointer)arg);
+                    }
+                    break;
+                case ARG_STRUCTURE:
+                case ARG_STRUCTURE_BYVAL:
+                    if (arg instanceof Pointer) {
+                        arg = toStructure((Pointer)arg, paramTypes[i],
+                                          argKinds[i] == ARG_STRUCTURE_BYVAL);
+                    }
+                    break;
+                default:
+                    break;
                 }
+                callbackArgs[i] = arg;
             }
             
+            final Callback cb = getCallback();
+            if (executor != null) {
+                // Arguments have been read from native memory; the native
+                // caller need not wait for the callback itself
+                if (cb != null) {
+                    final Object[] asyncArgs = callbackArgs;
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            invokeMethod(cb, asyncArgs);
+                        }
+                    });
+                }
+                return null;
+            }
             Object result = null;
-            Callback cb = getCallback();
             if (cb != null) {
                 try {
-                    result = convertResult(callbackMethod.invoke(cb, callbackArgs));
+                    result = invokeMethod(cb, callbackArgs);
+                    if (toNative != null) {
+                        result = toNative.toNative(result, resultContext);
+                    }
+                    if (convertResult) {
+                        result = convertResult(result);
+                    }
                 }
                 catch (IllegalArgumentException e) {
                     Native.getCallbackExceptionHandler().uncaughtException(cb, e);
-                }
-                catch (IllegalAccessException e) {
-                    Native.getCallbackExceptionHandler().uncaughtException(cb, e);
-                }
-                catch (InvocationTargetException e) {
-                    Native.getCallbackExceptionHandler().uncaughtException(cb, e.getTargetException());
+                    result = null;
                 }
             }
             // Synch any structure arguments back to native memory
-            for (int i=0;i < callbackArgs.length;i++) {
-                if (callbackArgs[i] instanceof Structure
-                    && !(callbackArgs[i] instanceof Structure.ByValue)) {
-                    ((Structure)callbackArgs[i]).autoWrite();
+            if (syncArguments) {
+                for (int i=0;i < callbackArgs.length;i++) {
+                    if (callbackArgs[i] instanceof Structure
+                        && !(callbackArgs[i] instanceof Structure.ByValue)) {
+                        ((Structure)callbackArgs[i]).autoWrite();
+                    }
                 }
             }
 
             return result;
         }
+        /** Invoke the callback method, passing any exception it throws to
+         * the callback exception handler.
+         */
+        private Object invokeMethod(Callback cb, Object[] args) {
+            try {
+                return callbackMethod.invoke(cb, args);
+            }
+            catch (IllegalArgumentException e) {
+                Native.getCallbackExceptionHandler().uncaughtException(cb, e);
+            }
+            catch (IllegalAccessException e) {
+                Native.getCallbackExceptionHandler().uncaughtException(cb, e);
+            }
+            catch (InvocationTargetException e) {
+                Native.getCallbackExceptionHandler().uncaughtException(cb, e.getTargetException());
+            }
+            return null;
+        }
+
         /** Called from native code.  All arguments are in an array of 
          * Object as the first argument.  Converts all arguments to types
          * required by the actual callback method signature, and converts
@@ -419,51 +914,26 @@ class CallbackReference extends WeakReference {
             }
         }
 
-        /** Convert argument from its basic native type to the given
-         * Java parameter type.
-         */
-        private Object convertArgument(Object value, Class dstType) {
-            if (value instanceof Pointer) {
-                if (dstType == String.class) {
-                    value = ((Pointer)value).getString(0);
-                }
-                else if (dstType == WString.class) {
-                    value = new WString(((Pointer)value).getString(0, true));
-                }
-                else if (dstType == String[].class
-                         || dstType == WString[].class) {
-                    value = ((Pointer)value).getStringArray(0, dstType == WString[].class);
-                }
-                else if (Callback.class.isAssignableFrom(dstType)) {
-                    value = getCallback(dstType, (Pointer)value);
-                }
-                else if (Structure.class.isAssignableFrom(dstType)) {
-                    Structure s = Structure.newInstance(dstType);
-                    // If passed by value, don't hold onto the pointer, which
-                    // is only valid for the duration of the callback call
-                    if (Structure.ByValue.class.isAssignableFrom(dstType)) {
-                        byte[] buf = new byte[s.size()];
-                        ((Pointer)value).read(0, buf, 0, buf.length);
-                        s.getPointer().write(0, buf, 0, buf.length);
-                    }
-                    else {
-                        s.useMemory((Pointer)value);
-                    }
-                    s.read();
-                    value = s;
-                }
+        private Structure toStructure(Pointer value, Class type, boolean byValue) {
+            Structure s = Structure.newInstance(type);
+            // If passed by value, don't hold onto the pointer, which
+            // is only valid for the duration of the callback call
+            if (byValue) {
+                byte[] buf = new byte[s.size()];
+                value.read(0, buf, 0, buf.length);
+                s.getPointer().write(0, buf, 0, buf.length);
             }
-            else if ((boolean.class == dstType || Boolean.class == dstType)
-                     && value instanceof Number) {
-                value = Function.valueOf(((Number)value).intValue() != 0);
+            else {
+                s.useMemory(value);
             }
-            return value;
+            s.read();
+            return s;
         }
         
+        /** Convert a result whose native representation depends on its
+         * runtime type.
+         */
         private Object convertResult(Object value) {
-            if (toNative != null) {
-                value = toNative.toNative(value, new CallbackResultContext(callbackMethod));
-            }
             if (value == null)
                 return null;
             Class cls = value.getClass();
@@ -574,12 +1044,24 @@ class CallbackReference extends WeakReference {
     }
 
     /** Create a native trampoline to delegate execution to the Java callback. 
+     * For direct callbacks, <code>fromNative</code> and <code>toNative</code>
+     * hold any TypeMapper conversions for the arguments and result.
+     */
+    private static native Pointer createNativeCallback(Callback callback,
+                                                       Method method,
+                                                       Class[] parameterTypes,
+                                                       Class returnType,
+                                                       int callingConvention, int flags,
+                                                       FromNativeConverter[] fromNative,
+                                                       ToNativeConverter toNative);
+    /** Make an unbound trampoline invoke the given object. */
+    private static native void bindNativeCallback(long ptr, Callback obj);
+    /** Detach the given trampoline from its object.  Returns whether no
+     * native thread is still invoking the trampoline; otherwise it must
+     * neither be rebound nor freed until a later call returns
+     * <code>true</code>.
      */
-    private static synchronized native Pointer createNativeCallback(Callback callback, 
-                                                                    Method method, 
-                                                                    Class[] parameterTypes,
-                                                                    Class returnType,
-                                                                    int callingConvention, boolean direct);
+    private static native boolean unbindNativeCallback(long ptr);
     /** Free the given callback trampoline. */
-    private static synchronized native void freeNativeCallback(long ptr);
+    private static native void freeNativeCallback(long ptr);
 }
@@ -0,0 +1,57 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+/** Determines how a native thread which is not yet attached to the VM is
+ * attached when it invokes a {@link Callback}.  By default such a thread is
+ * attached for the duration of each callback invocation and detached
+ * afterwards, which creates a new {@link Thread} for every invocation.  A
+ * native library which repeatedly calls back from its own threads may
+ * instead leave those threads attached, in which case each thread is
+ * detached automatically when it exits.<p>
+ * Use {@link Native#setCallbackThreadInitializer} to configure an
+ * individual callback, or {@link Library#OPTION_CALLBACK_THREAD_INITIALIZER}
+ * to configure all callbacks declared within a library interface.  The
+ * setting applies to the thread which first attaches on behalf of the
+ * callback; threads which are already attached are unaffected.
+ */
+public class CallbackThreadInitializer {
+
+    private final boolean daemon;
+    private final boolean detach;
+
+    /** Leave native threads attached as daemon threads until they exit. */
+    public CallbackThreadInitializer() {
+        this(true, false);
+    }
+
+    /** @param daemon whether to attach native threads as daemon threads,
+     * which do not prevent the VM from exiting
+     * @param detach whether to detach native threads when the callback
+     * returns, rather than when the thread exits
+     */
+    public CallbackThreadInitializer(boolean daemon, boolean detach) {
+        this.daemon = daemon;
+        this.detach = detach;
+    }
+
+    /** Returns whether native threads are attached as daemon threads. */
+    public boolean isDaemon() {
+        return daemon;
+    }
+
+    /** Returns whether native threads are detached after each callback
+     * invocation.
+     */
+    public boolean isDetach() {
+        return detach;
+    }
+}
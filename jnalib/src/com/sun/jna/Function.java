@@ -12,6 +12,7 @@ package com.sun.jna;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.Collections;
 import java.util.Map;
 
@@ -30,7 +31,20 @@ import java.util.Map;
  * the native function sets the system error to a non-zero value (errno or
  * GetLastError).  Setting this flag will cause the system error to be cleared
  * prior to native function invocation.
+ * <li>{@link Function#CRITICAL_ARRAYS} Pass primitive arrays without copying
+ * <li>{@link Function#RETAIN_STRINGS} Keep string arguments valid after the
+ * call returns
  * </ul>
+ * <a name=strings></a>
+ * <code>String</code> and {@link WString} arguments are copied to native
+ * memory which is only guaranteed to remain valid until the call returns.
+ * For functions which return a primitive or string value, the copy is made
+ * in per-thread scratch memory which is reused by the next call on the same
+ * thread; functions with other return types (e.g. {@link Pointer}, which
+ * might point into an argument) get memory which remains valid until it is
+ * garbage collected.  Use {@link #RETAIN_STRINGS} for functions which keep
+ * a pointer to a string argument after they return, or pass a
+ * {@link Memory} or {@link StringConstant} whose lifetime you control.
  *
  * @author Sheng Liang, originator
  * @author Todd Fast, suitability modifications
@@ -60,6 +74,20 @@ public class Function extends Pointer {
     private static final int MASK_CC = 0x3;
     /** Whether to throw an exception if last error is non-zero after call. */
     public static final int THROW_LAST_ERROR = (1<<2);
+    /** Pass primitive array arguments by pinning them in place (via JNI
+     * <code>GetPrimitiveArrayCritical</code>) rather than copying them to
+     * and from native memory.  Only use this for short calls which neither
+     * block nor call back into Java, since garbage collection may be
+     * suspended for the duration of the call.
+     */
+    public static final int CRITICAL_ARRAYS = (1<<3);
+    /** Copy <code>String</code> and {@link WString} arguments to memory
+     * which remains valid until garbage collected, rather than to scratch
+     * memory which is reused by subsequent calls (see
+     * <a href="#strings">above</a>).  Use this for functions which keep a
+     * pointer to a string argument after they return.
+     */
+    public static final int RETAIN_STRINGS = (1<<4);
 
     static final Integer INTEGER_TRUE = new Integer(-1);
     static final Integer INTEGER_FALSE = new Integer(0);
@@ -143,6 +171,8 @@ public class Function extends Pointer {
     private final String functionName;
     int callFlags;
     final Map options;
+    // Created when first needed by the profiler
+    private volatile CallStatistics statistics;
 
     /** For internal JNA use. */
     static final String OPTION_INVOKING_METHOD = "invoking-method";
@@ -228,6 +258,20 @@ public class Function extends Pointer {
         return callFlags & MASK_CC;
     }
 
+    /** Returns the profiling statistics for this function, which are
+     * shared by all functions with the same name and library.
+     */
+    CallStatistics getStatistics() {
+        CallStatistics stats = statistics;
+        if (stats == null) {
+            String name = library != null
+                ? library.getName() + "!" + functionName : functionName;
+            stats = CallProfiler.getInstance().getStatistics(name);
+            statistics = stats;
+        }
+        return stats;
+    }
+
     /** Invoke the native function with the given arguments, returning the
      * native result as an Object.
      */
@@ -239,6 +283,33 @@ public class Function extends Pointer {
      * native result as an Object.
      */
     public Object invoke(Class returnType, Object[] inArgs, Map options) {
+        if (CallProfiler.enabled) {
+            CallStatistics.Timer timer = new CallStatistics.Timer(getStatistics());
+            try {
+                return invoke(returnType, inArgs, options, timer);
+            }
+            finally {
+                timer.finish();
+            }
+        }
+        return invoke(returnType, inArgs, options, null);
+    }
+
+    private Object invoke(Class returnType, Object[] inArgs, Map options,
+                          CallStatistics.Timer timer) {
+        TypeMapper mapper = 
+            (TypeMapper)options.get(Library.OPTION_TYPE_MAPPER);
+        Method invokingMethod = (Method)options.get(OPTION_INVOKING_METHOD);
+        boolean allowObjects = Boolean.TRUE.equals(options.get(Library.OPTION_ALLOW_OBJECTS));
+
+        // Primitive and Pointer arguments are passed as-is, so there's no
+        // need to copy or post-process them
+        if (mapper == null && isDirect(inArgs)
+            && (returnType.isPrimitive() || returnType == Pointer.class)) {
+            return invoke(inArgs == null ? EMPTY_ARGS : inArgs, returnType,
+                          allowObjects, timer);
+        }
+
         // Clone the argument array to obtain a scratch space for modified
         // types/values
         Object[] args = { };
@@ -250,15 +321,21 @@ public class Function extends Pointer {
             System.arraycopy(inArgs, 0, args, 0, args.length);
         }
 
-        TypeMapper mapper = 
-            (TypeMapper)options.get(Library.OPTION_TYPE_MAPPER);
-        Method invokingMethod = (Method)options.get(OPTION_INVOKING_METHOD);
-        boolean allowObjects = Boolean.TRUE.equals(options.get(Library.OPTION_ALLOW_OBJECTS));
-        for (int i=0; i < args.length; i++) {
-            args[i] = convertArgument(args, i, invokingMethod,
-                                      mapper, allowObjects);
+        // Temporary argument values are only valid until the call returns
+        ScratchMemory scratch = ScratchMemory.get();
+        int mark = scratch.mark();
+        try {
+            return invoke(returnType, inArgs, args, mapper, invokingMethod,
+                          allowObjects, timer);
+        }
+        finally {
+            scratch.reset(mark);
         }
-        
+    }
+
+    private Object invoke(Class returnType, Object[] inArgs, Object[] args,
+                          TypeMapper mapper, Method invokingMethod,
+                          boolean allowObjects, CallStatistics.Timer timer) {
         Class nativeType = returnType;
         FromNativeConverter resultConverter = null;
         if (NativeMapped.class.isAssignableFrom(returnType)) {
@@ -273,7 +350,13 @@ public class Function extends Pointer {
             }
         }
 
-        Object result = invoke(args, nativeType, allowObjects);
+        boolean scratch = useScratchStrings(nativeType);
+        for (int i=0; i < args.length; i++) {
+            args[i] = convertArgument(args, i, invokingMethod,
+                                      mapper, allowObjects, scratch);
+        }
+
+        Object result = invoke(args, nativeType, allowObjects, timer);
 
         // Convert the result to a custom value/type if appropriate
         if (resultConverter != null) {
@@ -288,39 +371,220 @@ public class Function extends Pointer {
         }
 
         // Sync all memory which might have been modified by the native call
+        syncArguments(inArgs, args);
+
+        return result;
+    }
+
+    private static final Object[] EMPTY_ARGS = { };
+
+    /** Returns whether string arguments may be copied to scratch memory,
+     * which is only valid until the call returns, for a call with the
+     * given native return type.  A result which may be a pointer could
+     * point into an argument, so it gets longer-lived memory.
+     */
+    private boolean useScratchStrings(Class nativeReturnType) {
+        if ((callFlags & RETAIN_STRINGS) != 0) {
+            return false;
+        }
+        return nativeReturnType.isPrimitive()
+            || nativeReturnType == String.class
+            || nativeReturnType == WString.class
+            || nativeReturnType == Boolean.class
+            || nativeReturnType == Character.class
+            || Number.class.isAssignableFrom(nativeReturnType);
+    }
+
+    /** Returns whether all the given arguments may be passed to native code
+     * without conversion, assuming no type mapper.
+     */
+    private static boolean isDirect(Object[] args) {
+        if (args == null) {
+            return true;
+        }
+        if (args.length > MAX_NARGS) {
+            throw new UnsupportedOperationException("Maximum argument count is " + MAX_NARGS);
+        }
+        for (int i=0;i < args.length;i++) {
+            Object arg = args[i];
+            if (arg != null) {
+                Class cls = arg.getClass();
+                if (cls != Integer.class && cls != Long.class
+                    && cls != Pointer.class && cls != Double.class
+                    && cls != Float.class && cls != Short.class
+                    && cls != Byte.class && cls != Character.class
+                    && !(cls.isArray() && cls.getComponentType().isPrimitive())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Invoke the native function on behalf of the method described by the
+     * given plan, using the conversions it has already determined.
+     */
+    Object invoke(CallPlan plan, Object[] inArgs) {
+        if (CallProfiler.enabled) {
+            CallStatistics.Timer timer = new CallStatistics.Timer(getStatistics());
+            try {
+                return invoke(plan, inArgs, timer);
+            }
+            finally {
+                timer.finish();
+            }
+        }
+        return invoke(plan, inArgs, (CallStatistics.Timer)null);
+    }
+
+    private Object invoke(CallPlan plan, Object[] inArgs, CallStatistics.Timer timer) {
+        if (plan.direct && (inArgs == null || isDirect(inArgs))) {
+            Object result = invoke(inArgs == null ? EMPTY_ARGS : inArgs,
+                                   plan.nativeReturnType, plan.allowObjects,
+                                   timer);
+            if (plan.resultConverter != null) {
+                FromNativeContext context =
+                    new MethodResultContext(plan.returnType, this, inArgs, plan.method);
+                result = plan.resultConverter.fromNative(result, context);
+            }
+            return result;
+        }
+
+        Object[] args = { };
         if (inArgs != null) {
-            for (int i=0; i < inArgs.length; i++) {
-                Object inArg = inArgs[i];
-                if (inArg == null)
-                    continue;
-                if (inArg instanceof Structure) {
-                    if (!(inArg instanceof Structure.ByValue)) {
-                        ((Structure)inArg).autoRead();
-                    }
+            if (inArgs.length > MAX_NARGS) {
+                throw new UnsupportedOperationException("Maximum argument count is " + MAX_NARGS);
+            }
+            args = new Object[inArgs.length];
+            System.arraycopy(inArgs, 0, args, 0, args.length);
+        }
+
+        // Temporary argument values are only valid until the call returns
+        ScratchMemory scratch = ScratchMemory.get();
+        int mark = scratch.mark();
+        try {
+            return invoke(plan, inArgs, args, timer);
+        }
+        finally {
+            scratch.reset(mark);
+        }
+    }
+
+    private Object invoke(CallPlan plan, Object[] inArgs, Object[] args,
+                          CallStatistics.Timer timer) {
+        Method invokingMethod = plan.method;
+        int[] kinds = plan.argKinds;
+        boolean scratch = useScratchStrings(plan.nativeReturnType);
+        for (int i=0; i < args.length; i++) {
+            Object arg = args[i];
+            switch(i < kinds.length ? kinds[i] : CallPlan.ARG_GENERIC) {
+            case CallPlan.ARG_DIRECT:
+                break;
+            case CallPlan.ARG_BOOLEAN:
+                if (arg != null) {
+                    args[i] = Boolean.TRUE.equals(arg) ? INTEGER_TRUE : INTEGER_FALSE;
                 }
-                else if (args[i] instanceof PostCallRead) {
-                    ((PostCallRead)args[i]).read();
-                    if (args[i] instanceof PointerArray) {
-                        PointerArray array = (PointerArray)args[i];
-                        if (Structure.ByReference[].class.isAssignableFrom(inArg.getClass())) {
-                            Class type = inArg.getClass().getComponentType();
-                            Structure[] ss = (Structure[])inArg;
-                            for (int si=0;si < ss.length;si++) {
-                                Pointer p = array.getPointer(Pointer.SIZE * si);
-                                ss[si] = Structure.updateStructureByReference(type, ss[si], p);
-                            }
-                        }
-                    }
+                break;
+            case CallPlan.ARG_STRING:
+                if (arg != null) {
+                    args[i] = toNativeString((String)arg, false, scratch);
+                }
+                break;
+            case CallPlan.ARG_WSTRING:
+                if (arg != null) {
+                    args[i] = toNativeString(arg.toString(), true, scratch);
                 }
-                else if (Structure[].class.isAssignableFrom(inArg.getClass())) {
-                    Structure.autoRead((Structure[])inArg);
+                break;
+            case CallPlan.ARG_STRING_CONSTANT:
+                if (arg != null) {
+                    args[i] = ((StringConstant)arg).getPointer();
                 }
+                break;
+            case CallPlan.ARG_CONVERTED:
+                if (arg != null) {
+                    ToNativeContext context =
+                        new MethodParameterContext(this, args, i, invokingMethod);
+                    arg = plan.argConverters[i].toNative(arg, context);
+                }
+                args[i] = convertNativeArgument(arg, i, invokingMethod,
+                                                plan.allowObjects, scratch);
+                break;
+            default:
+                args[i] = convertArgument(args, i, invokingMethod,
+                                          plan.mapper, plan.allowObjects,
+                                          scratch);
+                break;
             }
         }
-                        
+
+        Object result = invoke(args, plan.nativeReturnType, plan.allowObjects,
+                               timer);
+
+        if (plan.resultConverter != null) {
+            FromNativeContext context =
+                new MethodResultContext(plan.returnType, this, inArgs, invokingMethod);
+            result = plan.resultConverter.fromNative(result, context);
+        }
+
+        if (plan.syncArguments) {
+            syncArguments(inArgs, args);
+        }
+
         return result;
     }
 
+    /** Sync all memory which might have been modified by the native call. */
+    private void syncArguments(Object[] inArgs, Object[] args) {
+        if (inArgs != null) {
+            for (int i=0; i < inArgs.length; i++) {
+                syncArgument(inArgs[i], args[i]);
+            }
+        }
+    }
+
+    /** Sync the given original argument with its converted native value. */
+    static void syncArgument(Object inArg, Object arg) {
+        if (inArg == null)
+            return;
+        if (inArg instanceof Structure) {
+            if (!(inArg instanceof Structure.ByValue)) {
+                ((Structure)inArg).autoRead();
+            }
+        }
+        else if (arg instanceof PostCallRead) {
+            ((PostCallRead)arg).read();
+            if (arg instanceof PointerArray) {
+                PointerArray array = (PointerArray)arg;
+                if (Structure.ByReference[].class.isAssignableFrom(inArg.getClass())) {
+                    Class type = inArg.getClass().getComponentType();
+                    Structure[] ss = (Structure[])inArg;
+                    for (int si=0;si < ss.length;si++) {
+                        Pointer p = array.getPointer(Pointer.SIZE * si);
+                        ss[si] = Structure.updateStructureByReference(type, ss[si], p);
+                    }
+                }
+            }
+        }
+        else if (Structure[].class.isAssignableFrom(inArg.getClass())) {
+            Structure.autoRead((Structure[])inArg);
+        }
+    }
+
+    /** Invoke the native function, timing the call if profiling. */
+    private Object invoke(Object[] args, Class returnType, boolean allowObjects,
+                          CallStatistics.Timer timer) {
+        if (timer == null) {
+            return invoke(args, returnType, allowObjects);
+        }
+        timer.nativeStart();
+        try {
+            return invoke(args, returnType, allowObjects);
+        }
+        finally {
+            timer.nativeEnd();
+        }
+    }
+
     /** @see NativeLibrary#NativeLibrary(String,String,long,Map) implementation */
     Object invoke(Object[] args, Class returnType, boolean allowObjects) {
         Object result = null;
@@ -341,10 +605,10 @@ public class Function extends Pointer {
             result = new Character((char)invokeInt(callFlags, args));
         }
         else if (returnType==int.class || returnType==Integer.class) {
-            result = new Integer(invokeInt(callFlags, args));
+            result = valueOf(invokeInt(callFlags, args));
         }
         else if (returnType==long.class || returnType==Long.class) {
-            result = new Long(invokeLong(callFlags, args));
+            result = valueOf(invokeLong(callFlags, args));
         }
         else if (returnType==float.class || returnType==Float.class) {
             result = new Float(invokeFloat(callFlags, args));
@@ -430,8 +694,11 @@ public class Function extends Pointer {
     
     private Object convertArgument(Object[] args, int index,
                                    Method invokingMethod, TypeMapper mapper,
-                                   boolean allowObjects) { 
+                                   boolean allowObjects, boolean scratch) { 
         Object arg = args[index];
+        if (arg instanceof StringConstant) {
+            return ((StringConstant)arg).getPointer();
+        }
         if (arg != null) {
             Class type = arg.getClass();
             ToNativeConverter converter = null;
@@ -452,6 +719,26 @@ public class Function extends Pointer {
                 arg = converter.toNative(arg, context);
             }
         }
+        return convertNativeArgument(arg, index, invokingMethod, allowObjects,
+                                     scratch);
+    }
+
+    /** Copy a string argument to native memory which remains valid at
+     * least until the current call returns, preferring the calling
+     * thread's scratch space, if allowed, over a new allocation.
+     */
+    private static Pointer toNativeString(String s, boolean wide, boolean scratch) {
+        Pointer p = scratch ? ScratchMemory.get().putString(s, wide) : null;
+        return p != null ? p : new NativeString(s, wide).getPointer();
+    }
+
+    /** Convert an argument which has already been mapped to its native
+     * Java type into a value the native dispatch code can handle.
+     */
+    private Object convertNativeArgument(Object arg, int index,
+                                         Method invokingMethod,
+                                         boolean allowObjects,
+                                         boolean scratch) {
         if (arg == null || isPrimitiveArray(arg.getClass())) { 
             return arg;
         }
@@ -495,18 +782,53 @@ public class Function extends Pointer {
         // this method returns.  
         // Convert String to native pointer (const)
         else if (arg instanceof String) {
-            return new NativeString((String)arg, false).getPointer();
+            return toNativeString((String)arg, false, scratch);
         }
         // Convert WString to native pointer (const)
         else if (arg instanceof WString) {
-            return new NativeString(arg.toString(), true).getPointer();
+            return toNativeString(arg.toString(), true, scratch);
         }
         // Default conversion of boolean to int; if you want something
         // different, use a ToNativeConverter
         else if (arg instanceof Boolean) {
             return Boolean.TRUE.equals(arg) ? INTEGER_TRUE : INTEGER_FALSE;
         }
-        else if (String[].class == argClass) {
+        else if (isSupportedArray(argClass)) {
+            return toNativeArray(arg);
+        }
+        else if (argClass.isArray()){
+            throw new IllegalArgumentException("Unsupported array argument type: " 
+                                               + argClass.getComponentType());
+        }
+        else if (allowObjects) {
+            return arg;
+        }
+        else if (!Native.isSupportedNativeType(arg.getClass())) {
+            throw new IllegalArgumentException("Unsupported argument type "
+                                               + arg.getClass().getName()
+                                               + " at parameter " + index
+                                               + " of function " + getName());
+        }
+        return arg;
+    }
+
+    /** Returns whether the given non-primitive array type is supported as
+     * an argument.
+     */
+    static boolean isSupportedArray(Class argClass) {
+        return String[].class == argClass
+            || WString[].class == argClass
+            || Pointer[].class == argClass
+            || NativeMapped[].class.isAssignableFrom(argClass)
+            || Structure[].class.isAssignableFrom(argClass);
+    }
+
+    /** Convert an array of strings, pointers, {@link NativeMapped} or
+     * {@link Structure} into native memory.
+     */
+    static Pointer toNativeArray(Object arg) {
+        Class argClass = arg.getClass();
+        if (String[].class == argClass) {
             return new StringArray((String[])arg);
         }
         else if (WString[].class == argClass) {
@@ -541,20 +863,8 @@ public class Function extends Pointer {
                 return ss[0].getPointer();
             }
         }
-        else if (argClass.isArray()){
-            throw new IllegalArgumentException("Unsupported array argument type: " 
-                                               + argClass.getComponentType());
-        }
-        else if (allowObjects) {
-            return arg;
-        }
-        else if (!Native.isSupportedNativeType(arg.getClass())) {
-            throw new IllegalArgumentException("Unsupported argument type "
-                                               + arg.getClass().getName()
-                                               + " at parameter " + index
-                                               + " of function " + getName());
-        }
-        return arg;
+        throw new IllegalArgumentException("Unsupported array argument type: "
+                                           + argClass.getComponentType());
     }
 
     private boolean isPrimitiveArray(Class argClass) {
@@ -812,6 +1122,140 @@ public class Function extends Pointer {
         return false;
     }
     
+    /** Describes how to invoke a native function on behalf of a given Java
+     * method.  Conversions which depend only on the method signature and
+     * library options are determined once, rather than on every call.
+     * Instances are immutable.
+     */
+    static final class CallPlan {
+        /** Full conversion based on the runtime argument type. */
+        static final int ARG_GENERIC = 0;
+        /** Argument is passed unchanged. */
+        static final int ARG_DIRECT = 1;
+        static final int ARG_BOOLEAN = 2;
+        static final int ARG_STRING = 3;
+        static final int ARG_WSTRING = 4;
+        /** Argument uses a fixed {@link ToNativeConverter}. */
+        static final int ARG_CONVERTED = 5;
+        /** Argument is already encoded in native memory. */
+        static final int ARG_STRING_CONSTANT = 6;
+
+        final Method method;
+        final Class returnType;
+        final Class nativeReturnType;
+        final FromNativeConverter resultConverter;
+        final TypeMapper mapper;
+        final boolean allowObjects;
+        final int[] argKinds;
+        final ToNativeConverter[] argConverters;
+        /** Whether any argument might need updating after the call. */
+        final boolean syncArguments;
+        /** Whether arguments may be passed unchanged when their runtime
+         * types are primitive wrappers or plain Pointers.
+         */
+        final boolean direct;
+
+        CallPlan(Method method, Map options) {
+            this.method = method;
+            this.mapper = (TypeMapper)options.get(Library.OPTION_TYPE_MAPPER);
+            this.allowObjects = Boolean.TRUE.equals(options.get(Library.OPTION_ALLOW_OBJECTS));
+            this.returnType = method.getReturnType();
+
+            Class nativeType = returnType;
+            FromNativeConverter resultConverter = null;
+            if (NativeMapped.class.isAssignableFrom(returnType)) {
+                NativeMappedConverter tc = NativeMappedConverter.getInstance(returnType);
+                resultConverter = tc;
+                nativeType = tc.nativeType();
+            }
+            else if (mapper != null) {
+                resultConverter = mapper.getFromNativeConverter(returnType);
+                if (resultConverter != null) {
+                    nativeType = resultConverter.nativeType();
+                }
+            }
+            this.resultConverter = resultConverter;
+            this.nativeReturnType = nativeType;
+
+            // Varargs may be of any type; always convert them at runtime
+            Class[] ptypes = isVarArgs(method)
+                ? new Class[0] : method.getParameterTypes();
+            argKinds = new int[ptypes.length];
+            argConverters = new ToNativeConverter[ptypes.length];
+            boolean sync = isVarArgs(method);
+            boolean direct = !sync && mapper == null;
+            for (int i=0;i < ptypes.length;i++) {
+                argKinds[i] = getArgumentKind(ptypes[i], i);
+                if (argKinds[i] == ARG_GENERIC || argKinds[i] == ARG_CONVERTED) {
+                    sync = true;
+                }
+                if (argKinds[i] != ARG_DIRECT
+                    && !(argKinds[i] == ARG_GENERIC
+                         && Pointer.class.isAssignableFrom(ptypes[i]))) {
+                    direct = false;
+                }
+            }
+            this.syncArguments = sync;
+            this.direct = direct;
+        }
+
+        /** Only types whose runtime class is known from the declared
+         * type may have their conversion fixed in advance.
+         */
+        private int getArgumentKind(Class type, int index) {
+            Class cls = type.isPrimitive() ? getWrapperClass(type) : type;
+            boolean primitiveArray = 
+                cls.isArray() && cls.getComponentType().isPrimitive();
+            // Array classes report as final, but object arrays are covariant
+            if (cls.isArray() ? !primitiveArray
+                : !Modifier.isFinal(cls.getModifiers())) {
+                return ARG_GENERIC;
+            }
+            if (cls == StringConstant.class) {
+                return ARG_STRING_CONSTANT;
+            }
+            if (NativeMapped.class.isAssignableFrom(cls)) {
+                argConverters[index] = NativeMappedConverter.getInstance(cls);
+                return ARG_CONVERTED;
+            }
+            if (mapper != null) {
+                argConverters[index] = mapper.getToNativeConverter(cls);
+                if (argConverters[index] != null) {
+                    return ARG_CONVERTED;
+                }
+            }
+            if (cls == Boolean.class) {
+                return ARG_BOOLEAN;
+            }
+            if (cls == String.class) {
+                return ARG_STRING;
+            }
+            if (cls == WString.class) {
+                return ARG_WSTRING;
+            }
+            if (primitiveArray || Native.isSupportedNativeType(cls)
+                && !Structure.class.isAssignableFrom(cls)
+                && !Callback.class.isAssignableFrom(cls)
+                && !Pointer.class.isAssignableFrom(cls)) {
+                return ARG_DIRECT;
+            }
+            return ARG_GENERIC;
+        }
+
+        /** Primitive arguments always arrive boxed. */
+        private static Class getWrapperClass(Class type) {
+            if (type == boolean.class) return Boolean.class;
+            if (type == byte.class) return Byte.class;
+            if (type == short.class) return Short.class;
+            if (type == char.class) return Character.class;
+            if (type == int.class) return Integer.class;
+            if (type == long.class) return Long.class;
+            if (type == float.class) return Float.class;
+            if (type == double.class) return Double.class;
+            return type;
+        }
+    }
+
     private static class NativeMappedArray extends Memory implements PostCallRead {
         private final NativeMapped[] original;
         public NativeMappedArray(NativeMapped[] arg) {
@@ -844,4 +1288,33 @@ public class Function extends Pointer {
     static Boolean valueOf(boolean b) {
         return b ? Boolean.TRUE : Boolean.FALSE;
     }
+
+    private static final int CACHE_LOW = -128;
+    private static final int CACHE_HIGH = 1023;
+    private static final Integer[] INTEGERS = new Integer[CACHE_HIGH - CACHE_LOW + 1];
+    private static final Long[] LONGS = new Long[CACHE_HIGH - CACHE_LOW + 1];
+    static {
+        for (int i=0;i < INTEGERS.length;i++) {
+            INTEGERS[i] = new Integer(i + CACHE_LOW);
+            LONGS[i] = new Long(i + CACHE_LOW);
+        }
+    }
+
+    /** Implementation of Integer.valueOf for older VMs.  Small values,
+     * typical of status codes, are shared rather than allocated.
+     */
+    static Integer valueOf(int i) {
+        if (i >= CACHE_LOW && i <= CACHE_HIGH) {
+            return INTEGERS[i - CACHE_LOW];
+        }
+        return new Integer(i);
+    }
+
+    /** Implementation of Long.valueOf for older VMs. */
+    static Long valueOf(long l) {
+        if (l >= CACHE_LOW && l <= CACHE_HIGH) {
+            return LONGS[(int)l - CACHE_LOW];
+        }
+        return new Long(l);
+    }
 }
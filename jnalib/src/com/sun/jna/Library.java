@@ -13,9 +13,9 @@ package com.sun.jna;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.WeakHashMap;
 
 /** Derive from this interface for all native library definitions.
  *
@@ -81,6 +81,40 @@ public interface Library {
     String OPTION_ALLOW_OBJECTS = "allow-objects";
     /** Calling convention for the entire library. */
     String OPTION_CALLING_CONVENTION = "calling-convention";
+    /** Option key for passing primitive arrays without copying (see
+     * {@link Function#CRITICAL_ARRAYS}).  A value of {@link Boolean#TRUE}
+     * applies to all methods in the library; a {@link java.util.Collection}
+     * of method names applies only to those methods.
+     */
+    String OPTION_CRITICAL_ARRAYS = "critical-arrays";
+    /** Option key for keeping string arguments valid after a call returns
+     * (see {@link Function#RETAIN_STRINGS}).  A value of {@link
+     * Boolean#TRUE} applies to all methods in the library; a {@link
+     * java.util.Collection} of method names applies only to those methods.
+     */
+    String OPTION_RETAIN_STRINGS = "retain-strings";
+    /** Option key for a {@link CallbackThreadInitializer} which applies to
+     * callbacks declared within the library interface.
+     */
+    String OPTION_CALLBACK_THREAD_INITIALIZER = "callback-thread-initializer";
+    /** Option key for a {@link CallbackExecutor} which runs callbacks
+     * declared within the library interface asynchronously.  Applies only
+     * to callbacks which return <code>void</code>.
+     */
+    String OPTION_CALLBACK_EXECUTOR = "callback-executor";
+    /** Option key for direct mapping (see {@link Native#register}).  A
+     * value of {@link Boolean#TRUE} defers binding each native method to
+     * its native function until the method is first invoked, so that
+     * registration costs little more than declaring the methods.  Errors
+     * binding a method are reported when it is invoked.
+     */
+    String OPTION_LAZY_BINDING = "lazy-binding";
+    /** Option key for direct mapping (see {@link Native#register}).  Binds
+     * methods as for {@link #OPTION_LAZY_BINDING}, but also binds all
+     * methods in the background using the given {@link Integer} number of
+     * threads, or one per processor if {@link Boolean#TRUE}.
+     */
+    String OPTION_PARALLEL_BINDING = "parallel-binding";
 
     static class Handler implements InvocationHandler {
         
@@ -119,7 +153,8 @@ public interface Library {
         private final Map options;
         private FunctionMapper functionMapper;
         private final InvocationMapper invocationMapper;
-        private final Map functions = new WeakHashMap();
+        // Replaced rather than modified, so lookups need no lock
+        private volatile Map functions = Collections.EMPTY_MAP;
         public Handler(String libname, Class interfaceClass, Map options) {
 
             if (libname != null && "".equals(libname.trim())) {
@@ -161,8 +196,8 @@ public interface Library {
         private static class FunctionInfo {
             InvocationHandler handler;
             Function function;
+            Function.CallPlan plan;
             boolean isVarArgs;
-            Map options;
         }
 
         public Object invoke(Object proxy, Method method, Object[] inArgs)
@@ -183,29 +218,9 @@ public interface Library {
                 return Boolean.FALSE;
             }
             
-            FunctionInfo f = null;
-            synchronized(functions) {
-                f = (FunctionInfo)functions.get(method);
-                if (f == null) {
-                    f = new FunctionInfo();
-                    f.isVarArgs = Function.isVarArgs(method);
-                    if (invocationMapper != null) {
-                        f.handler = invocationMapper.getInvocationHandler(nativeLibrary, method);
-                    }
-                    if (f.handler == null) {
-                        // Find the function to invoke
-                        String methodName = 
-                            functionMapper.getFunctionName(nativeLibrary, method);
-                        if (methodName == null) {
-                            // Just in case the function mapper screwed up
-                            methodName = method.getName();
-                        }
-                        f.function = nativeLibrary.getFunction(methodName, method);
-                        f.options = new HashMap(this.options);
-                        f.options.put(Function.OPTION_INVOKING_METHOD, method);
-                    }
-                    functions.put(method, f);
-                }
+            FunctionInfo f = (FunctionInfo)functions.get(method);
+            if (f == null) {
+                f = getFunctionInfo(method);
             }
             if (f.isVarArgs) {
                 inArgs = Function.concatenateVarArgs(inArgs);
@@ -213,7 +228,36 @@ public interface Library {
             if (f.handler != null) {
                 return f.handler.invoke(proxy, method, inArgs);
             }
-            return f.function.invoke(method.getReturnType(), inArgs, f.options);
+            return f.function.invoke(f.plan, inArgs);
+        }
+
+        /** Look up the native function for the given method and determine
+         * how to invoke it.  The result is cached for subsequent calls.
+         */
+        private synchronized FunctionInfo getFunctionInfo(Method method) {
+            FunctionInfo f = (FunctionInfo)functions.get(method);
+            if (f == null) {
+                f = new FunctionInfo();
+                f.isVarArgs = Function.isVarArgs(method);
+                if (invocationMapper != null) {
+                    f.handler = invocationMapper.getInvocationHandler(nativeLibrary, method);
+                }
+                if (f.handler == null) {
+                    // Find the function to invoke
+                    String methodName = 
+                        functionMapper.getFunctionName(nativeLibrary, method);
+                    if (methodName == null) {
+                        // Just in case the function mapper screwed up
+                        methodName = method.getName();
+                    }
+                    f.function = nativeLibrary.getFunction(methodName, method);
+                    f.plan = new Function.CallPlan(method, this.options);
+                }
+                Map map = new HashMap(functions);
+                map.put(method, f);
+                functions = map;
+            }
+            return f;
         }
     }
 }
@@ -10,6 +10,9 @@
  */
 package com.sun.jna;
 
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.WeakHashMap;
@@ -27,8 +30,17 @@ import java.util.WeakHashMap;
  *		free(buf);
  * </pre>
  *
- * <p>The {@link #finalize} method will free allocated memory when
- * this object is no longer referenced.
+ * <p>Allocated memory is freed when this object is no longer referenced,
+ * or immediately by calling {@link #dispose}.  Unreferenced memory is
+ * freed by a daemon thread, which runs only while allocated memory is
+ * outstanding, or by the next allocation or call to {@link #purge}.
+ * Memory allocated while a {@link MemoryScope} is open is freed when the
+ * scope is disposed.
+ *
+ * <p>Memory is obtained from the {@link MemoryAllocator} installed with
+ * {@link #setAllocator}, if any.  Setting the system property
+ * <code>jna.memory.pool</code> to <code>true</code> installs a
+ * {@link PooledMemoryAllocator} by default.
  *
  * @author Sheng Liang, originator
  * @author Todd Fast, suitability modifications
@@ -38,14 +50,237 @@ import java.util.WeakHashMap;
 public class Memory extends Pointer {
 
     private static Map buffers = new WeakHashMap();
+    private static volatile MemoryAllocator allocator =
+        Boolean.getBoolean("jna.memory.pool") ? new PooledMemoryAllocator() : null;
+
+    private static final ReferenceQueue queue = new ReferenceQueue();
+    // Outstanding allocations, spread across several independently locked
+    // lists so that threads rarely contend when allocating or freeing
+    private static final Reclaimer[] lists;
+    // Resources held for the lifetime of a thread, which do not keep the
+    // cleaner running
+    private static final Reclaimer[] threadLists;
+    static {
+        int count = 1;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        while (count < cpus * 2 && count < 64) {
+            count *= 2;
+        }
+        lists = new Reclaimer[count];
+        threadLists = new Reclaimer[count];
+        for (int i=0;i < count;i++) {
+            lists[i] = new Reclaimer();
+            threadLists[i] = new Reclaimer();
+        }
+    }
+    private static final Object cleanerLock = new Object();
+    private static volatile Thread cleaner;
+    // How long the cleaner waits before checking whether it is still needed
+    private static final long CLEANER_IDLE_TIMEOUT = 1000;
 
     protected long size; // Size of the malloc'ed space
+    private MemoryReference ref;
+
+    /** Releases a native resource once its owner is disposed or becomes
+     * unreachable, without deferring the release to the finalizer thread.
+     */
+    static class Reclaimer extends PhantomReference {
+        // The head of the list to which this belongs, or this if it is a
+        // list head
+        private final Reclaimer list;
+        private Reclaimer prev, next;
+        private boolean released;
+
+        /** Create a list head. */
+        private Reclaimer() {
+            super(null, null);
+            list = this;
+        }
+
+        Reclaimer(Object owner) {
+            this(owner, false);
+        }
+
+        /** Track a resource of the given owner.  A resource held by the
+         * current thread until it exits is not counted as outstanding, so
+         * that it does not keep the cleaner running; it is released by the
+         * cleaner if running, or else by a subsequent allocation or {@link
+         * Memory#purge}.
+         */
+        Reclaimer(Object owner, boolean perThread) {
+            super(owner, queue);
+            Reclaimer[] heads = perThread ? threadLists : lists;
+            list = heads[System.identityHashCode(Thread.currentThread()) & (heads.length - 1)];
+            synchronized(list) {
+                next = list.next;
+                if (next != null) {
+                    next.prev = this;
+                }
+                prev = list;
+                list.next = this;
+            }
+            if (!perThread) {
+                startCleaner();
+            }
+        }
+
+        /** Release the resource, if not already released. */
+        final void dispose() {
+            clear();
+            synchronized(list) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                prev.next = next;
+                if (next != null) {
+                    next.prev = prev;
+                }
+                prev = next = null;
+            }
+            release();
+        }
+
+        /** Release the native resource.  Called at most once, from any
+         * thread.
+         */
+        void release() { }
+    }
+
+    /** Tracks an allocated block, freeing it once the owning
+     * <code>Memory</code> is disposed or becomes unreachable.
+     */
+    private static final class MemoryReference extends Reclaimer {
+        private final long peer;
+        private final long size;
+        private final MemoryAllocator owner;
+        MemoryReference(Memory m, MemoryAllocator owner) {
+            super(m);
+            this.peer = m.peer;
+            this.size = m.size;
+            this.owner = owner;
+        }
+        void release() {
+            if (owner != null) {
+                owner.release(peer, size);
+            }
+            else {
+                free(peer);
+            }
+        }
+    }
+
+    /** Frees the resources of unreachable owners in the background.  The
+     * thread only runs while resources are outstanding, so that it does
+     * not prevent these classes from being unloaded.
+     */
+    private static final class Cleaner extends Thread {
+        Cleaner() {
+            super("JNA Memory Cleaner");
+            setDaemon(true);
+            setContextClassLoader(null);
+        }
+        public void run() {
+            while (true) {
+                try {
+                    Reference r = queue.remove(CLEANER_IDLE_TIMEOUT);
+                    if (r != null) {
+                        ((Reclaimer)r).dispose();
+                        drain();
+                    }
+                }
+                catch(InterruptedException e) {
+                }
+                if (stopIfIdle()) {
+                    return;
+                }
+            }
+        }
+        /** Stop if nothing remains to be released.  The cleaner is
+         * detached first so that an allocation which saw it still running
+         * is guaranteed to be seen here.
+         */
+        private boolean stopIfIdle() {
+            synchronized(cleanerLock) {
+                if (cleaner != this) {
+                    return true;
+                }
+                cleaner = null;
+            }
+            for (int i=0;i < lists.length;i++) {
+                synchronized(lists[i]) {
+                    if (lists[i].next != null) {
+                        synchronized(cleanerLock) {
+                            if (cleaner != null) {
+                                return true;
+                            }
+                            cleaner = this;
+                        }
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /** Returns whether the current thread is the cleaner, which should
+     * not acquire per-thread resources of its own.
+     */
+    static boolean isCleanerThread() {
+        return Thread.currentThread() instanceof Cleaner;
+    }
+
+    private static void startCleaner() {
+        if (cleaner == null) {
+            synchronized(cleanerLock) {
+                if (cleaner == null) {
+                    try {
+                        Thread t = new Cleaner();
+                        t.start();
+                        cleaner = t;
+                    }
+                    catch(SecurityException e) {
+                        // Memory is instead freed on subsequent allocations
+                        // or by purge()
+                    }
+                }
+            }
+        }
+    }
+
+    /** Free the memory of any <code>Memory</code> objects which have
+     * been GC'd.
+     */
+    private static void drain() {
+        Reference r;
+        while ((r = queue.poll()) != null) {
+            ((Reclaimer)r).dispose();
+        }
+    }
 
     /** Force cleanup of memory that has associated NIO Buffers which have
-        been GC'd.
+        been GC'd, and free the memory of any other GC'd instances.
     */
     public static void purge() {
         buffers.size();
+        drain();
+    }
+
+    /** Set the allocator used for subsequently allocated memory.  Memory
+     * is always returned to the allocator from which it was obtained.
+     * @param a allocator to use, or <code>null</code> to use
+     * <code>malloc</code> and <code>free</code> directly
+     */
+    public static void setAllocator(MemoryAllocator a) {
+        allocator = a;
+    }
+
+    /** Returns the current allocator, or <code>null</code> if memory is
+     * obtained directly from <code>malloc</code>.
+     */
+    public static MemoryAllocator getAllocator() {
+        return allocator;
     }
 
     /** Provide a view into the original memory. */
@@ -54,8 +289,8 @@ public class Memory extends Pointer {
             this.size = Memory.this.size - offset;
             this.peer = Memory.this.peer + offset;
         }
-        /** No need to free memory. */
-        protected void finalize() { } 
+        /** The original memory remains valid. */
+        public void dispose() { }
         /** Pass bounds check to parent. */
         protected void boundsCheck(long off, long sz) {
             Memory.this.boundsCheck(this.peer - Memory.this.peer + off, sz);
@@ -66,7 +301,8 @@ public class Memory extends Pointer {
     }
     
     /**
-     * Allocate space in the native heap via a call to C's <code>malloc</code>.
+     * Allocate space in the native heap via a call to C's <code>malloc</code>
+     * or the current {@link MemoryAllocator}.
      *
      * @param size number of <em>bytes</em> of space to allocate
      */
@@ -75,9 +311,13 @@ public class Memory extends Pointer {
         if (size <= 0) {
             throw new IllegalArgumentException("Allocation size must be greater than zero");
         } 
-        peer = malloc(size);
+        drain();
+        MemoryAllocator owner = allocator;
+        peer = owner != null ? owner.allocate(size) : malloc(size);
         if (peer == 0) 
             throw new OutOfMemoryError("Cannot allocate " + size + " bytes");
+        ref = new MemoryReference(this, owner);
+        MemoryScope.track(this);
     }
 
     protected Memory() { }
@@ -133,8 +373,23 @@ public class Memory extends Pointer {
         throw new IllegalArgumentException("Byte boundary must be a power of two");
     }
 
-    protected void finalize() {
-        free(peer);
+    /** Memory is freed by {@link #dispose} or once this object is
+     * unreachable; retained for subclasses which invoke it.
+     */
+    protected void finalize() { }
+
+    /** Free the native memory immediately, rather than waiting for this
+     * object to be GC'd.  Subsequent access to this memory, or to any views
+     * obtained from {@link #share} or {@link #align}, will throw
+     * {@link IllegalStateException}.  Any NIO buffers obtained from this
+     * memory must no longer be used.  Has no effect if the memory has
+     * already been disposed.
+     */
+    public void dispose() {
+        if (ref != null) {
+            ref.dispose();
+            ref = null;
+        }
         peer = 0;
     }
 
@@ -169,6 +424,9 @@ public class Memory extends Pointer {
      *
      */
     protected void boundsCheck(long off, long sz) {
+        if (peer == 0) {
+            throw new IllegalStateException("Memory has been disposed");
+        }
         if (off < 0) {
             throw new IndexOutOfBoundsException("Invalid offset: " + off);
         }
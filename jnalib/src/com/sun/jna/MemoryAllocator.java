@@ -0,0 +1,29 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+/** Provides native memory blocks for {@link Memory} and the classes built
+ * on it ({@link StringArray}, {@link Structure} auto-allocated memory, and
+ * native string arguments).  Install an allocator with
+ * {@link Memory#setAllocator}.
+ *
+ * @see PooledMemoryAllocator
+ */
+public interface MemoryAllocator {
+    /** Allocate a block of at least <code>size</code> bytes, returning its
+     * native address or zero if the request could not be satisfied.
+     */
+    long allocate(long size);
+    /** Return a block previously obtained from {@link #allocate} with the
+     * same <code>size</code>.  Called at most once per block, from any thread.
+     */
+    void release(long peer, long size);
+}
@@ -0,0 +1,106 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Frees all {@link Memory} allocated by the current thread while the
+ * scope is open, as soon as the scope is disposed.  This includes memory
+ * allocated implicitly, e.g. by {@link Structure} or {@link StringArray}.
+ * Scopes may be nested, in which case allocations belong to the innermost
+ * open scope.  Typical usage:
+ * <pre><code>
+ * MemoryScope scope = new MemoryScope();
+ * try {
+ *     // allocate and use memory
+ * }
+ * finally {
+ *     scope.dispose();
+ * }
+ * </code></pre>
+ * Memory allocated within a scope must not be used once the scope has been
+ * disposed.  A scope must be disposed on the thread which created it.
+ */
+public class MemoryScope {
+
+    private static final ThreadLocal current = new ThreadLocal();
+    // Avoid per-allocation thread lookups when no scopes are in use
+    private static volatile int openScopes;
+
+    private final MemoryScope parent;
+    private final List allocations = new ArrayList();
+    private boolean disposed;
+
+    /** Open a new scope on the current thread. */
+    public MemoryScope() {
+        parent = (MemoryScope)current.get();
+        current.set(this);
+        synchronized(MemoryScope.class) {
+            ++openScopes;
+        }
+    }
+
+    /** Record the given allocation in the current thread's scope, if any. */
+    static void track(Memory m) {
+        if (openScopes > 0) {
+            MemoryScope scope = (MemoryScope)current.get();
+            if (scope != null) {
+                scope.allocations.add(m);
+            }
+        }
+    }
+
+    /** Exclude the given allocation from the current thread's scope, for
+     * memory which must outlive it.
+     */
+    static void untrack(Memory m) {
+        if (openScopes > 0) {
+            for (MemoryScope scope = (MemoryScope)current.get();scope != null;scope = scope.parent) {
+                int index = scope.allocations.lastIndexOf(m);
+                if (index != -1) {
+                    scope.allocations.remove(index);
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Free all memory allocated within this scope and close it, along with
+     * any nested scopes which have not yet been disposed.
+     * @throws IllegalStateException if called on a thread other than the
+     * one which created this scope
+     */
+    public void dispose() {
+        if (disposed) {
+            return;
+        }
+        MemoryScope scope = (MemoryScope)current.get();
+        for (MemoryScope s=scope;s != this;s=s.parent) {
+            if (s == null) {
+                throw new IllegalStateException("Memory scope is not open on this thread");
+            }
+        }
+        while (scope != this) {
+            scope.dispose();
+            scope = (MemoryScope)current.get();
+        }
+        current.set(parent);
+        synchronized(MemoryScope.class) {
+            --openScopes;
+        }
+        disposed = true;
+        for (int i=allocations.size()-1;i >= 0;i--) {
+            ((Memory)allocations.get(i)).dispose();
+        }
+        allocations.clear();
+    }
+}
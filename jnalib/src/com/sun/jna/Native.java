@@ -16,7 +16,9 @@ import java.awt.Component;
 import java.awt.GraphicsEnvironment;
 import java.awt.HeadlessException;
 import java.awt.Window;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -34,8 +36,11 @@ import java.net.URISyntaxException;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.security.AccessController;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -65,14 +70,18 @@ import com.sun.jna.Structure.FFIType;
  * regarding execution or load of files (SELinux, for example), you should 
  * probably install the native library in an accessible location and configure 
  * your system accordingly, rather than relying on JNA to extract the library 
- * from its own jar file.
+ * from its own jar file.<p>
+ * If the system property <code>jna.cachedir</code> names a directory, the
+ * library is instead extracted there once, under a name derived from its
+ * contents, and subsequent VMs load the existing copy rather than
+ * extracting it again.  Cached copies are not deleted on exit.
  * @see Library
  * @author Todd Fast, todd.fast@sun.com
  * @author twall@users.sf.net
  */
 public final class Native {
 
-    private static final String VERSION = "3.2.7";
+    static final String VERSION = "3.2.7";
 
     private static String nativeLibraryPath = null;
     private static boolean unpacked;
@@ -117,6 +126,9 @@ public final class Native {
         if (Boolean.getBoolean("jna.protected")) {
             setProtected(true);
         }
+        if (Boolean.getBoolean("jna.profile")) {
+            CallProfiler.getInstance().setEnabled(true);
+        }
     }
     
     /** Ensure our unpacked native library gets cleaned up if this class gets
@@ -221,6 +233,12 @@ public final class Native {
      * instead. 
      */
     public static synchronized native void setPreserveLastError(boolean enable);
+
+    /** Set whether direct-mapped calls are timed (see {@link CallProfiler}). */
+    static native void setCallProfiling(boolean enable);
+
+    /** Returns the value of a monotonic clock, in nanoseconds. */
+    static native long nanoTime();
     
     /** Indicates whether the system last error result is preserved
      * after every invocation.<p>
@@ -301,7 +319,7 @@ public final class Native {
      * override the platform default encoding (if supported).
      */
     public static String toString(byte[] buf) {
-        return toString(buf, System.getProperty("jna.encoding"));
+        return StringCodec.getInstance().decodeTerminated(buf);
     }
 
     /** Obtain a Java String from the given native byte array, using the given
@@ -540,12 +558,7 @@ public final class Native {
      * the default platform encoding (if supported).
      */
     static byte[] getBytes(String s) {
-        try {
-            return getBytes(s, System.getProperty("jna.encoding"));
-        }
-        catch (UnsupportedEncodingException e) {
-            return s.getBytes();
-        }
+        return StringCodec.getInstance().encode(s);
     }
 
     /** Return a byte array corresponding to the given String, using the given
@@ -722,6 +735,17 @@ public final class Native {
             }
         }
         else {
+            String cacheDir = System.getProperty("jna.cachedir");
+            if (cacheDir != null) {
+                try {
+                    lib = getCachedNativeLibrary(new File(cacheDir), resourceName, libname);
+                }
+                catch(IOException e) {
+                    // Fall back to a temporary copy
+                }
+            }
+        }
+        if (lib == null) {
             InputStream is = Native.class.getResourceAsStream(resourceName);
             if (is == null) {
                 throw new Error("Can't obtain jnidispatch InputStream");
@@ -742,7 +766,7 @@ public final class Native {
                 }
                 fos = new FileOutputStream(lib);
                 int count;
-                byte[] buf = new byte[1024];
+                byte[] buf = new byte[8192];
                 while ((count = is.read(buf, 0, buf.length)) > 0) {
                     fos.write(buf, 0, count);
                 }
@@ -762,6 +786,115 @@ public final class Native {
         nativeLibraryPath = lib.getAbsolutePath();
     }
 
+    /** Returns a copy of the given library resource within the given cache
+     * directory, extracting it only if no valid copy exists.  Copies are
+     * named by JNA version and the MD5 digest of their contents, so VMs
+     * using the same library share a single copy.  A new copy is written
+     * to a temporary file and renamed into place once complete, so a copy
+     * is never visible while partially written.
+     */
+    static File getCachedNativeLibrary(File dir, String resourceName, String libname) throws IOException {
+        byte[] content = readResource(resourceName);
+        File versionDir = new File(dir, VERSION);
+        File lib = new File(versionDir, getDigest(content) + "-" + libname);
+        if (isCopyOf(lib, content)) {
+            return lib;
+        }
+        if (!versionDir.mkdirs() && !versionDir.isDirectory()) {
+            throw new IOException("Can't create directory " + versionDir);
+        }
+        // Suffix is required on windows, or library fails to load
+        File tmp = File.createTempFile("jna", libname, versionDir);
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                fos.write(content);
+            }
+            finally {
+                fos.close();
+            }
+            if (!tmp.renameTo(lib)) {
+                // Another VM may have renamed its copy into place first,
+                // since rename does not replace an existing file everywhere
+                if (!isCopyOf(lib, content)) {
+                    lib.delete();
+                    if (!tmp.renameTo(lib)) {
+                        throw new IOException("Can't rename " + tmp + " to " + lib);
+                    }
+                }
+            }
+        }
+        finally {
+            tmp.delete();
+        }
+        return lib;
+    }
+
+    private static byte[] readResource(String resourceName) throws IOException {
+        InputStream is = Native.class.getResourceAsStream(resourceName);
+        if (is == null) {
+            throw new IOException("Can't obtain " + resourceName + " InputStream");
+        }
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int count;
+            while ((count = is.read(buf, 0, buf.length)) > 0) {
+                bos.write(buf, 0, count);
+            }
+            return bos.toByteArray();
+        }
+        finally {
+            try { is.close(); } catch(IOException e) { }
+        }
+    }
+
+    /** Returns whether the given file exists with exactly the given
+     * contents.
+     */
+    private static boolean isCopyOf(File file, byte[] content) {
+        if (!file.isFile() || file.length() != content.length) {
+            return false;
+        }
+        try {
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                byte[] buf = new byte[content.length];
+                int offset = 0;
+                int count;
+                while (offset < buf.length
+                       && (count = fis.read(buf, offset, buf.length - offset)) > 0) {
+                    offset += count;
+                }
+                return Arrays.equals(buf, content);
+            }
+            finally {
+                fis.close();
+            }
+        }
+        catch(IOException e) {
+            return false;
+        }
+    }
+
+    private static String getDigest(byte[] content) throws IOException {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(content);
+            StringBuffer buf = new StringBuffer(digest.length * 2);
+            for (int i=0;i < digest.length;i++) {
+                String hex = Integer.toHexString(digest[i] & 0xFF);
+                if (hex.length() == 1) {
+                    buf.append('0');
+                }
+                buf.append(hex);
+            }
+            return buf.toString();
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new IOException("MD5 digest unavailable");
+        }
+    }
+
     /**
      * Initialize field and method IDs for native methods of this class. 
      * Returns the size of a native pointer.
@@ -1008,6 +1141,32 @@ public final class Native {
     public static UncaughtExceptionHandler getCallbackExceptionHandler() {
         return callbackExceptionHandler;
     }
+
+    /** Set the {@link CallbackThreadInitializer} used to attach native
+     * threads which invoke the given callback, overriding any
+     * {@link Library#OPTION_CALLBACK_THREAD_INITIALIZER} option.  This must
+     * be done before the callback is first passed to native code.
+     * @throws IllegalStateException if the callback has already been
+     * passed to native code
+     */
+    public static void setCallbackThreadInitializer(Callback cb, CallbackThreadInitializer initializer) {
+        CallbackReference.setCallbackThreadInitializer(cb, initializer);
+    }
+
+    /** Set the {@link CallbackExecutor} used to invoke the given callback
+     * asynchronously, overriding any {@link Library#OPTION_CALLBACK_EXECUTOR}
+     * option.  Native code invoking the callback returns as soon as the
+     * arguments have been converted.  This must be done before the
+     * callback is first passed to native code.  A <code>null</code>
+     * executor restores synchronous invocation.
+     * @throws IllegalArgumentException if the callback method does not
+     * return <code>void</code>, or the callback is a {@link CallbackProxy}
+     * @throws IllegalStateException if the callback has already been
+     * passed to native code
+     */
+    public static void setCallbackExecutor(Callback cb, CallbackExecutor executor) {
+        CallbackReference.setCallbackExecutor(cb, executor);
+    }
     
     /** When called from a class static initializer, maps all native methods
      * found within that class to native libraries via the JNA raw calling
@@ -1061,6 +1220,7 @@ public final class Native {
 
     private static Map registeredClasses = new HashMap();
     private static Map registeredLibraries = new HashMap();
+    private static Map lazyBindings = new HashMap();
     private static Object unloader = new Object() {
         protected void finalize() {
             synchronized(registeredClasses) {
@@ -1069,6 +1229,10 @@ public final class Native {
                     unregister((Class)e.getKey(), (long[])e.getValue());
                     i.remove();
                 }
+                for (Iterator i=lazyBindings.values().iterator();i.hasNext();) {
+                    ((LazyBinding)i.next()).unregister();
+                    i.remove();
+                }
             }
         }
     };
@@ -1092,12 +1256,164 @@ public final class Native {
                 registeredClasses.remove(cls);
                 registeredLibraries.remove(cls);
             }
+            else if (lazyBindings.containsKey(cls)) {
+                ((LazyBinding)lazyBindings.remove(cls)).unregister();
+                registeredLibraries.remove(cls);
+            }
         }
     }
 
-    /** Unregister the native methods for the given class. */
+    /** Unregister the native methods for the given class.  Zero handles
+     * are ignored.
+     */
     private static native void unregister(Class cls, long[] handles);
 
+    /** Native methods of a class registered with
+     * {@link Library#OPTION_LAZY_BINDING} or
+     * {@link Library#OPTION_PARALLEL_BINDING}.  Each method is initially
+     * registered to a stub, which binds the method on its first invocation.
+     */
+    private static class LazyBinding {
+        private final Class cls;
+        private final NativeLibrary lib;
+        private final TypeMapper mapper;
+        private final Method[] methods;
+        private final long[] stubs;
+        private final long[] handles;
+        /** Held while binding the method with the same index, so that each
+         * method is bound only once.
+         */
+        private final Object[] bindLocks;
+        /** Next method to be bound in the background. */
+        private int next;
+
+        LazyBinding(Class cls, NativeLibrary lib, TypeMapper mapper, Method[] methods) {
+            this.cls = cls;
+            this.lib = lib;
+            this.mapper = mapper;
+            this.methods = methods;
+            this.stubs = new long[methods.length];
+            this.handles = new long[methods.length];
+            this.bindLocks = new Object[methods.length];
+            for (int i=0;i < bindLocks.length;i++) {
+                bindLocks[i] = new Object();
+            }
+        }
+
+        /** Register a stub for each method, checking only the method
+         * signatures.
+         */
+        void registerStubs() {
+            for (int i=0;i < methods.length;i++) {
+                Method method = methods[i];
+                Class[] ptypes = method.getParameterTypes();
+                long[] closure_atypes = new long[ptypes.length];
+                String sig = "(";
+                for (int t=0;t < ptypes.length;t++) {
+                    int cvt = getConversion(ptypes[t], mapper);
+                    if (cvt == CVT_UNSUPPORTED) {
+                        throw new IllegalArgumentException(ptypes[t] + " is not a supported argument type (in method " + method.getName() + " in " + cls + ")");
+                    }
+                    closure_atypes[t] = getClosureArgumentType(ptypes[t], cvt);
+                    sig += getSignature(ptypes[t]);
+                }
+                Class rclass = method.getReturnType();
+                int rcvt = getConversion(rclass, mapper);
+                if (rcvt == CVT_UNSUPPORTED || rcvt == CVT_ARRAY_OBJECT) {
+                    throw new IllegalArgumentException(rclass + " is not a supported return type (in method " + method.getName() + " in " + cls + ")");
+                }
+                sig += ")" + getSignature(rclass);
+                try {
+                    long stub = registerLazyMethod(cls, method.getName(), sig,
+                                                   closure_atypes,
+                                                   getClosureReturnType(rclass, rcvt),
+                                                   lib.callFlags, i);
+                    synchronized(this) {
+                        stubs[i] = stub;
+                    }
+                }
+                catch(NoSuchMethodError e) {
+                    throw new UnsatisfiedLinkError("No method " + method.getName() + " with signature " + sig + " in " + cls);
+                }
+            }
+        }
+
+        /** Bind the given method, if not already bound, returning its
+         * handle.
+         */
+        long bind(int index) {
+            synchronized(bindLocks[index]) {
+                synchronized(this) {
+                    if (handles[index] != 0) {
+                        return handles[index];
+                    }
+                }
+                long handle = bindMethod(cls, methods[index], lib, mapper);
+                synchronized(this) {
+                    handles[index] = handle;
+                }
+                return handle;
+            }
+        }
+
+        /** Bind all methods not yet invoked using the given number of
+         * daemon threads.  The caller does not wait for binding to
+         * complete, since binding may require the class being registered
+         * to finish initialization.  A method whose binding fails is
+         * bound again on its first invocation, which reports the error.
+         */
+        void bindInBackground(int threads) {
+            for (int i=0;i < threads;i++) {
+                Thread t = new Thread("JNA binding " + cls.getName()) {
+                    public void run() {
+                        int index;
+                        while ((index = nextIndex()) != -1) {
+                            try {
+                                bind(index);
+                            }
+                            catch(Throwable e) {
+                                // Reported on first invocation
+                            }
+                        }
+                    }
+                };
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+
+        private synchronized int nextIndex() {
+            return next < methods.length ? next++ : -1;
+        }
+
+        synchronized void unregister() {
+            // Prevent further background binding
+            next = methods.length;
+            Native.unregister(cls, (long[])handles.clone());
+            freeLazyMethods((long[])stubs.clone());
+        }
+    }
+
+    // Called from native code
+    private static long bindLazyMethod(Class cls, int index) {
+        LazyBinding binding;
+        synchronized(registeredClasses) {
+            binding = (LazyBinding)lazyBindings.get(cls);
+        }
+        if (binding == null) {
+            throw new UnsatisfiedLinkError("Native methods of " + cls + " have been unregistered");
+        }
+        return binding.bind(index);
+    }
+
+    private static native long registerLazyMethod(Class cls, String name,
+                                                  String signature,
+                                                  long[] closure_arg_types,
+                                                  long closure_rtype,
+                                                  int callFlags, int index);
+
+    private static native void freeLazyMethods(long[] handles);
+
     private static String getSignature(Class cls) {
         if (cls.isArray()) {
             return "[" + getSignature(cls.getComponentType());
@@ -1157,6 +1473,7 @@ public final class Native {
     private static final int CVT_INTEGER_TYPE = 19;
     private static final int CVT_POINTER_TYPE = 20;
     private static final int CVT_TYPE_MAPPER = 21;
+    private static final int CVT_ARRAY_OBJECT = 22;
 
     private static int getConversion(Class type, TypeMapper mapper) {
         if (type == Boolean.class) type = boolean.class;
@@ -1205,6 +1522,9 @@ public final class Native {
             case 'D': return CVT_ARRAY_DOUBLE;
             default: break;
             }
+            if (Function.isSupportedArray(type)) {
+                return CVT_ARRAY_OBJECT;
+            }
         }
         if (type.isPrimitive()) {
             return type == boolean.class ? CVT_BOOLEAN : CVT_DEFAULT;
@@ -1243,121 +1563,190 @@ public final class Native {
                 mlist.add(methods[i]);
             }
         }
-        long[] handles = new long[mlist.size()];
+        methods = (Method[])mlist.toArray(new Method[mlist.size()]);
+        int threads = getBindingThreads(lib.getOptions());
+        if (threads > 0
+            || Boolean.TRUE.equals(lib.getOptions().get(Library.OPTION_LAZY_BINDING))) {
+            LazyBinding binding = new LazyBinding(cls, lib, mapper, methods);
+            synchronized(registeredClasses) {
+                lazyBindings.put(cls, binding);
+                registeredLibraries.put(cls, lib);
+            }
+            try {
+                binding.registerStubs();
+            }
+            catch(RuntimeException e) {
+                unregister(cls);
+                throw e;
+            }
+            catch(Error e) {
+                unregister(cls);
+                throw e;
+            }
+            cacheOptions(cls, lib.getOptions(), null);
+            if (threads > 0) {
+                binding.bindInBackground(threads);
+            }
+            return;
+        }
+        long[] handles = new long[methods.length];
         for (int i=0;i < handles.length;i++) {
-            Method method = (Method)mlist.get(i);
-            String sig = "(";
-            Class rclass = method.getReturnType();
-            long rtype, closure_rtype;
-            Class[] ptypes = method.getParameterTypes();
-            long[] atypes = new long[ptypes.length];
-            long[] closure_atypes = new long[ptypes.length];
-            int[] cvt = new int[ptypes.length];
-            ToNativeConverter[] toNative = new ToNativeConverter[ptypes.length];
-            FromNativeConverter fromNative = null;
-            int rcvt = getConversion(rclass, mapper);
-            boolean throwLastError = false;
-            switch (rcvt) {
-            case CVT_UNSUPPORTED:
-                throw new IllegalArgumentException(rclass + " is not a supported return type (in method " + method.getName() + " in " + cls + ")");
-            case CVT_TYPE_MAPPER:
-                fromNative = mapper.getFromNativeConverter(rclass);
-                closure_rtype = FFIType.get(rclass).peer;
-                rtype = FFIType.get(fromNative.nativeType()).peer;
-                break;
-            case CVT_NATIVE_MAPPED:
+            handles[i] = bindMethod(cls, methods[i], lib, mapper);
+        }
+        synchronized(registeredClasses) {
+            registeredClasses.put(cls, handles);
+            registeredLibraries.put(cls, lib);
+        }
+        cacheOptions(cls, lib.getOptions(), null);
+    }
+
+    /** Returns the number of threads requested by
+     * {@link Library#OPTION_PARALLEL_BINDING}, or zero.
+     */
+    private static int getBindingThreads(Map options) {
+        Object option = options.get(Library.OPTION_PARALLEL_BINDING);
+        if (Boolean.TRUE.equals(option)) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        if (option instanceof Integer) {
+            return Math.max(0, ((Integer)option).intValue());
+        }
+        return 0;
+    }
+
+    /** Bind the given native method to its native function, returning a
+     * handle to the native method data.
+     */
+    private static long bindMethod(Class cls, Method method, NativeLibrary lib, TypeMapper mapper) {
+        String sig = "(";
+        Class rclass = method.getReturnType();
+        long rtype;
+        Class[] ptypes = method.getParameterTypes();
+        long[] atypes = new long[ptypes.length];
+        long[] closure_atypes = new long[ptypes.length];
+        int[] cvt = new int[ptypes.length];
+        ToNativeConverter[] toNative = new ToNativeConverter[ptypes.length];
+        FromNativeConverter fromNative = null;
+        int rcvt = getConversion(rclass, mapper);
+        boolean throwLastError = false;
+        switch (rcvt) {
+        case CVT_UNSUPPORTED:
+        case CVT_ARRAY_OBJECT:
+            throw new IllegalArgumentException(rclass + " is not a supported return type (in method " + method.getName() + " in " + cls + ")");
+        case CVT_TYPE_MAPPER:
+            fromNative = mapper.getFromNativeConverter(rclass);
+            rtype = FFIType.get(fromNative.nativeType()).peer;
+            break;
+        case CVT_NATIVE_MAPPED:
+        case CVT_INTEGER_TYPE:
+        case CVT_POINTER_TYPE:
+            rtype = FFIType.get(NativeMappedConverter.getInstance(rclass).nativeType()).peer;
+            break;
+        case CVT_STRUCTURE:
+            rtype = FFIType.get(Pointer.class).peer;
+            break;
+        case CVT_STRUCTURE_BYVAL:
+        default:
+            rtype = FFIType.get(rclass).peer;
+            break;
+        }
+        long closure_rtype = getClosureReturnType(rclass, rcvt);
+        for (int t=0;t < ptypes.length;t++) {
+            Class type = ptypes[t];
+            sig += getSignature(type);
+            cvt[t] = getConversion(type, mapper);
+            if (cvt[t] == CVT_UNSUPPORTED) {
+                throw new IllegalArgumentException(type + " is not a supported argument type (in method " + method.getName() + " in " + cls + ")");
+            }
+            if (cvt[t] == CVT_NATIVE_MAPPED
+                || cvt[t] == CVT_INTEGER_TYPE) {
+                type = NativeMappedConverter.getInstance(type).nativeType();
+            }
+            else if (cvt[t] == CVT_TYPE_MAPPER) {
+                toNative[t] = mapper.getToNativeConverter(type);
+            }
+            // Determine the type that will be passed to the native
+            // function, as well as the type to be passed
+            // from Java initially
+            closure_atypes[t] = getClosureArgumentType(type, cvt[t]);
+            switch(cvt[t]) {
+            case CVT_STRUCTURE_BYVAL:
             case CVT_INTEGER_TYPE:
             case CVT_POINTER_TYPE:
-                closure_rtype = FFIType.get(Pointer.class).peer;
-                rtype = FFIType.get(NativeMappedConverter.getInstance(rclass).nativeType()).peer;
+            case CVT_NATIVE_MAPPED:
+                atypes[t] = FFIType.get(type).peer;
                 break;
-            case CVT_STRUCTURE:
-                closure_rtype = rtype = FFIType.get(Pointer.class).peer;
+            case CVT_TYPE_MAPPER:
+                atypes[t] = FFIType.get(toNative[t].nativeType()).peer;
                 break;
-            case CVT_STRUCTURE_BYVAL:
-                closure_rtype = FFIType.get(Pointer.class).peer;
-                rtype = FFIType.get(rclass).peer;
+            case CVT_DEFAULT:
+                atypes[t] = FFIType.get(type).peer;
                 break;
             default:
-                closure_rtype = rtype = FFIType.get(rclass).peer;
+                atypes[t] = FFIType.get(Pointer.class).peer;
                 break;
             }
-            for (int t=0;t < ptypes.length;t++) {
-                Class type = ptypes[t];
-                sig += getSignature(type);
-                cvt[t] = getConversion(type, mapper);
-                if (cvt[t] == CVT_UNSUPPORTED) {
-                    throw new IllegalArgumentException(type + " is not a supported argument type (in method " + method.getName() + " in " + cls + ")");
-                }
-                if (cvt[t] == CVT_NATIVE_MAPPED
-                    || cvt[t] == CVT_INTEGER_TYPE) {
-                    type = NativeMappedConverter.getInstance(type).nativeType();
-                }
-                else if (cvt[t] == CVT_TYPE_MAPPER) {
-                    toNative[t] = mapper.getToNativeConverter(type);
-                }
-                // Determine the type that will be passed to the native
-                // function, as well as the type to be passed
-                // from Java initially
-                switch(cvt[t]) {
-                case CVT_STRUCTURE_BYVAL:
-                case CVT_INTEGER_TYPE:
-                case CVT_POINTER_TYPE:
-                case CVT_NATIVE_MAPPED:
-                    atypes[t] = FFIType.get(type).peer;
-                    closure_atypes[t] = FFIType.get(Pointer.class).peer;
-                    break;
-                case CVT_TYPE_MAPPER:
-                    if (type.isPrimitive())
-                        closure_atypes[t] = FFIType.get(type).peer;
-                    else
-                        closure_atypes[t] = FFIType.get(Pointer.class).peer;
-                    atypes[t] = FFIType.get(toNative[t].nativeType()).peer;
-                    break;
-                case CVT_DEFAULT:
-                    closure_atypes[t] = atypes[t] = FFIType.get(type).peer;
-                    break;
-                default:
-                    closure_atypes[t] = atypes[t] = FFIType.get(Pointer.class).peer;
-                    break;
-                }
-            }
-            sig += ")";
-            sig += getSignature(rclass);
-            
-            Class[] etypes = method.getExceptionTypes();
-            for (int e=0;e < etypes.length;e++) {
-                if (LastErrorException.class.isAssignableFrom(etypes[e])) {
-                    throwLastError = true;
-                    break;
-                }
+        }
+        sig += ")";
+        sig += getSignature(rclass);
+        
+        Class[] etypes = method.getExceptionTypes();
+        for (int e=0;e < etypes.length;e++) {
+            if (LastErrorException.class.isAssignableFrom(etypes[e])) {
+                throwLastError = true;
+                break;
             }
+        }
 
-            String name = method.getName();
-            FunctionMapper fmapper = (FunctionMapper)lib.getOptions().get(Library.OPTION_FUNCTION_MAPPER);
-            if (fmapper != null) {
-                name = fmapper.getFunctionName(lib, method);
-            }
-            Function f = lib.getFunction(name, method);
-            try {
-                handles[i] = registerMethod(cls, method.getName(),
-                                            sig, cvt,
-                                            closure_atypes, atypes, rcvt,
-                                            closure_rtype, rtype, 
-                                            rclass,
-                                            f.peer, f.getCallingConvention(),
-                                            throwLastError,
-                                            toNative, fromNative);
-            }
-            catch(NoSuchMethodError e) {
-                throw new UnsatisfiedLinkError("No method " + method.getName() + " with signature " + sig + " in " + cls);
-            }
+        String name = method.getName();
+        FunctionMapper fmapper = (FunctionMapper)lib.getOptions().get(Library.OPTION_FUNCTION_MAPPER);
+        if (fmapper != null) {
+            name = fmapper.getFunctionName(lib, method);
         }
-        synchronized(registeredClasses) {
-            registeredClasses.put(cls, handles);
-            registeredLibraries.put(cls, lib);
+        Function f = lib.getFunction(name, method);
+        try {
+            return registerMethod(cls, method.getName(),
+                                  sig, cvt,
+                                  closure_atypes, atypes, rcvt,
+                                  closure_rtype, rtype,
+                                  rclass,
+                                  f.peer, f.callFlags,
+                                  throwLastError,
+                                  toNative, fromNative, f);
+        }
+        catch(NoSuchMethodError e) {
+            throw new UnsatisfiedLinkError("No method " + method.getName() + " with signature " + sig + " in " + cls);
+        }
+    }
+
+    /** Returns the type in which the VM passes an argument with the given
+     * Java type and conversion to a native method.
+     */
+    private static long getClosureArgumentType(Class type, int cvt) {
+        switch(cvt) {
+        case CVT_TYPE_MAPPER:
+            return FFIType.get(type.isPrimitive() ? type : Pointer.class).peer;
+        case CVT_DEFAULT:
+            return FFIType.get(type).peer;
+        default:
+            return FFIType.get(Pointer.class).peer;
+        }
+    }
+
+    /** Returns the type in which a native method returns a value with the
+     * given Java type and conversion to the VM.
+     */
+    private static long getClosureReturnType(Class rclass, int rcvt) {
+        switch(rcvt) {
+        case CVT_NATIVE_MAPPED:
+        case CVT_INTEGER_TYPE:
+        case CVT_POINTER_TYPE:
+        case CVT_STRUCTURE:
+        case CVT_STRUCTURE_BYVAL:
+            return FFIType.get(Pointer.class).peer;
+        default:
+            return FFIType.get(rclass).peer;
         }
-        cacheOptions(cls, lib.getOptions(), null);
     }
 
     /** Take note of options used for a given library mapping, to facilitate
@@ -1402,10 +1791,11 @@ public final class Native {
                                               long rtype,
                                               Class rclass,
                                               long fptr,
-                                              int callingConvention,
+                                              int callFlags,
                                               boolean throwLastError,
                                               ToNativeConverter[] toNative,
-                                              FromNativeConverter fromNative);
+                                              FromNativeConverter fromNative,
+                                              Function function);
     
 
     // Called from native code
@@ -1429,6 +1819,53 @@ public final class Native {
         // NOTE: technically should be FunctionResultContext 
         return cvt.fromNative(o, new FromNativeContext(cls));
     }
+    // Called from native code
+    private static void recordCall(Function f, long marshal, long nativeTime, long result) {
+        f.getStatistics().record(marshal, nativeTime, result);
+    }
+    // Called from native code
+    private static Pointer toNativeArray(Object array) {
+        return Function.toNativeArray(array);
+    }
+    // Called from native code
+    private static void fromNativeArray(Object array, Pointer nativeArray) {
+        Function.syncArgument(array, nativeArray);
+    }
+    /** Perform all Java-side argument conversions for a direct-mapped
+     * method in a single call from native code.  Each non-<code>null</code>
+     * element of <code>args</code> whose conversion is listed in
+     * <code>cvt</code> is replaced by its native-compatible value, which
+     * native code then extracts without further calls into Java.
+     */
+    // Called from native code
+    private static void toNativeArguments(Object[] args, int[] cvt, Object[] converters) {
+        for (int i=0;i < args.length;i++) {
+            Object arg = args[i];
+            if (arg == null) {
+                continue;
+            }
+            switch(cvt[i]) {
+            case CVT_TYPE_MAPPER:
+                args[i] = toNative((ToNativeConverter)converters[i], arg);
+                break;
+            case CVT_NATIVE_MAPPED:
+                args[i] = ((NativeMapped)arg).toNative();
+                break;
+            case CVT_STRUCTURE:
+            case CVT_STRUCTURE_BYVAL:
+                ((Structure)arg).write();
+                break;
+            case CVT_WSTRING:
+                args[i] = arg.toString();
+                break;
+            case CVT_ARRAY_OBJECT:
+                args[i] = toNativeArray(arg);
+                break;
+            default:
+                break;
+            }
+        }
+    }
 
     public static native long ffi_prep_cif(int abi, int nargs, long ffi_return_type, long ffi_types);
     public static native void ffi_call(long cif, long fptr, long resp, long args);
@@ -15,17 +15,22 @@
 package com.sun.jna;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.StringTokenizer;
 
 /**
@@ -39,6 +44,11 @@ import java.util.StringTokenizer;
  * <li><code>jna.library.path</code> User-customizable path
  * <li><code>jna.platform.library.path</code> Platform-specific paths
  * </ol>
+ * The file found for a given library name and search path is remembered,
+ * and loaded directly while the search path and the file's modification
+ * time are unchanged.  If the system property <code>jna.library.cache</code>
+ * names a file, these resolutions are also saved there for use by
+ * subsequent VMs.
  * @author Wayne Meissner, split library loading from Function.java
  */
 public class NativeLibrary {
@@ -46,13 +56,21 @@ public class NativeLibrary {
     private long handle;
     private final String libraryName;
     private final String libraryPath;
-    private final Map functions = new HashMap();
+    // Function name => FunctionEntry chain.  The map is replaced rather than
+    // modified, so lookups need no lock.
+    private volatile Map functions = Collections.EMPTY_MAP;
+    private final Object functionsLock = new Object();
     final int callFlags;
     final Map options;
 
     private static final Map libraries = new HashMap();
     private static final Map searchPaths = Collections.synchronizedMap(new HashMap());
     private static final List librarySearchPath = new LinkedList();
+    /** Resolved library file path and modification time, keyed by
+     * {@link #getResolutionKey}.  Stored as <code>mtime|path</code>.
+     */
+    static final Properties resolvedPaths = new Properties();
+    private static String resolutionCacheFile;
 
     static {
         // Force initialization of native library
@@ -60,8 +78,16 @@ public class NativeLibrary {
             throw new Error("Native library not initialized");
     }
 
-    private static String functionKey(String name, int flags) {
-        return name + "|" + flags;
+    /** Cached {@link Function}s of a given name, by call flags. */
+    private static final class FunctionEntry {
+        final int flags;
+        final Function function;
+        final FunctionEntry next;
+        FunctionEntry(int flags, Function function, FunctionEntry next) {
+            this.flags = flags;
+            this.function = function;
+            this.next = next;
+        }
     }
 
     private NativeLibrary(String libraryName, String libraryPath, long handle, Map options) {
@@ -77,14 +103,12 @@ public class NativeLibrary {
         // Special workaround for w32 kernel32.GetLastError
         // Short-circuit the function to use built-in GetLastError access
         if (Platform.isWindows() && "kernel32".equals(this.libraryName.toLowerCase())) {
-            synchronized(functions) {
-                Function f = new Function(this, "GetLastError", Function.ALT_CONVENTION) {
-                    Object invoke(Object[] args, Class returnType, boolean b) {
-                        return new Integer(Native.getLastError());
-                    }
-                };
-                functions.put(functionKey("GetLastError", callFlags), f);
-            }
+            Function f = new Function(this, "GetLastError", Function.ALT_CONVENTION) {
+                Object invoke(Object[] args, Class returnType, boolean b) {
+                    return new Integer(Native.getLastError());
+                }
+            };
+            cacheFunction("GetLastError", callFlags, f);
         }
     }
 
@@ -109,7 +133,17 @@ public class NativeLibrary {
         }
         
         searchPath.addAll(initPaths("jna.library.path"));
-        String libraryPath = findLibraryPath(libraryName, searchPath);
+        String key = getResolutionKey(libraryName, searchPath);
+        String libraryPath = getResolvedPath(key);
+        if (libraryPath != null) {
+            try {
+                return new NativeLibrary(libraryName, libraryPath, open(libraryPath), options);
+            }
+            catch(UnsatisfiedLinkError e) {
+                setResolvedPath(key, null);
+            }
+        }
+        libraryPath = findLibraryPath(libraryName, searchPath);
         long handle = 0;
         //
         // Only search user specified paths first.  This will also fall back
@@ -164,7 +198,157 @@ public class NativeLibrary {
                                                + e.getMessage());
             }
         }
-        return new NativeLibrary(libraryName, libraryPath, handle, options);
+        NativeLibrary library = new NativeLibrary(libraryName, libraryPath, handle, options);
+        setResolvedPath(key, libraryPath);
+        return library;
+    }
+
+    /** Identifies a library name and every path which would be searched
+     * for it.  Returns <code>null</code> for absolute library paths, which
+     * need no resolution.
+     */
+    private static String getResolutionKey(String libraryName, List searchPath) {
+        if (new File(libraryName).isAbsolute()) {
+            return null;
+        }
+        return System.getProperty("os.arch") + ":" + libraryName
+            + ":" + searchPath + ":" + librarySearchPath;
+    }
+
+    /** Returns the previously resolved file for the given key, provided it
+     * has not been modified since.  Entries which can not be parsed (the
+     * cache file may be written by other VMs or by hand) are discarded.
+     */
+    private static String getResolvedPath(String key) {
+        if (key == null) {
+            return null;
+        }
+        synchronized(resolvedPaths) {
+            loadResolvedPaths();
+            String value = resolvedPaths.getProperty(key);
+            if (value != null) {
+                int sep = value.indexOf('|');
+                if (sep != -1) {
+                    String path = value.substring(sep + 1);
+                    try {
+                        if (Long.parseLong(value.substring(0, sep)) == new File(path).lastModified()) {
+                            return path;
+                        }
+                    }
+                    catch(NumberFormatException e) {
+                        // Unparsable entries are discarded along with
+                        // stale ones
+                    }
+                }
+                setResolvedPath(key, null);
+            }
+            return null;
+        }
+    }
+
+    /** Record the file resolved for the given key, or forget it if
+     * <code>null</code>.  Only files identified by an absolute path are
+     * recorded; names resolved by the system loader are not.
+     */
+    private static void setResolvedPath(String key, String path) {
+        if (key == null) {
+            return;
+        }
+        synchronized(resolvedPaths) {
+            if (path != null) {
+                File file = new File(path);
+                if (!file.isAbsolute() || !file.isFile()) {
+                    return;
+                }
+                resolvedPaths.setProperty(key, file.lastModified() + "|" + path);
+            }
+            else if (resolvedPaths.remove(key) == null) {
+                return;
+            }
+            saveResolvedPaths(path == null ? key : null);
+        }
+    }
+
+    /** Read saved resolutions if <code>jna.library.cache</code> names a file
+     * which has not yet been read, and save any resolutions made before the
+     * file was named which it lacks, since later lookups of those find them
+     * already resolved and so would never save them.
+     */
+    private static void loadResolvedPaths() {
+        String name = System.getProperty("jna.library.cache");
+        if (name == null || name.equals(resolutionCacheFile)) {
+            return;
+        }
+        resolutionCacheFile = name;
+        Properties saved = readResolvedPaths(new File(name));
+        for (Iterator i=saved.keySet().iterator();i.hasNext();) {
+            Object key = i.next();
+            if (!resolvedPaths.containsKey(key)) {
+                resolvedPaths.put(key, saved.get(key));
+            }
+        }
+        if (!saved.keySet().containsAll(resolvedPaths.keySet())) {
+            saveResolvedPaths(null);
+        }
+    }
+
+    private static Properties readResolvedPaths(File file) {
+        Properties props = new Properties();
+        if (file.isFile()) {
+            try {
+                FileInputStream is = new FileInputStream(file);
+                try {
+                    props.load(is);
+                }
+                finally {
+                    is.close();
+                }
+            }
+            catch(IOException e) {
+                // Treat as empty
+            }
+        }
+        return props;
+    }
+
+    /** Save resolutions to the file named by <code>jna.library.cache</code>,
+     * along with any saved by other VMs, less the given invalid key.  The
+     * file is replaced atomically, so other VMs never see a partially
+     * written file.
+     */
+    private static void saveResolvedPaths(String removedKey) {
+        String name = System.getProperty("jna.library.cache");
+        if (name == null) {
+            return;
+        }
+        File file = new File(name).getAbsoluteFile();
+        Properties merged = readResolvedPaths(file);
+        if (removedKey != null) {
+            merged.remove(removedKey);
+        }
+        merged.putAll(resolvedPaths);
+        try {
+            File tmp = File.createTempFile("jna", ".tmp", file.getParentFile());
+            try {
+                FileOutputStream os = new FileOutputStream(tmp);
+                try {
+                    merged.store(os, "JNA library resolution cache");
+                }
+                finally {
+                    os.close();
+                }
+                if (!tmp.renameTo(file)) {
+                    file.delete();
+                    tmp.renameTo(file);
+                }
+            }
+            finally {
+                tmp.delete();
+            }
+        }
+        catch(IOException e) {
+            // The cache is an optimization only
+        }
     }
 
     private String getLibraryName(String libraryName) {
@@ -321,9 +505,25 @@ public class NativeLibrary {
                 flags |= Function.THROW_LAST_ERROR;
             }
         }
+        if (isMethodOption(Library.OPTION_CRITICAL_ARRAYS, method)) {
+            flags |= Function.CRITICAL_ARRAYS;
+        }
+        if (isMethodOption(Library.OPTION_RETAIN_STRINGS, method)) {
+            flags |= Function.RETAIN_STRINGS;
+        }
         return getFunction(name, flags);
     }
 
+    /** Returns whether the given option, which may be {@link Boolean#TRUE}
+     * or a {@link Collection} of method names, applies to the given method.
+     */
+    private boolean isMethodOption(String key, Method method) {
+        Object value = options.get(key);
+        return Boolean.TRUE.equals(value)
+            || (value instanceof Collection
+                && ((Collection)value).contains(method.getName()));
+    }
+
     /**
      * Create a new  @{link Function} that is linked with a native
      * function that follows a given calling flags.
@@ -337,14 +537,36 @@ public class NativeLibrary {
     public Function getFunction(String functionName, int callFlags) {
         if (functionName == null)
             throw new NullPointerException("Function name may not be null");
-        synchronized (functions) {
-            String key = functionKey(functionName, callFlags);
-            Function function = (Function) functions.get(key);
-            if (function == null) {
-                function = new Function(this, functionName, callFlags);
-                functions.put(key, function);
-            }
-            return function;
+        Function function = findFunction(functionName, callFlags);
+        if (function == null) {
+            synchronized(functionsLock) {
+                function = findFunction(functionName, callFlags);
+                if (function == null) {
+                    function = new Function(this, functionName, callFlags);
+                    cacheFunction(functionName, callFlags, function);
+                }
+            }
+        }
+        return function;
+    }
+
+    private Function findFunction(String name, int flags) {
+        FunctionEntry e = (FunctionEntry)functions.get(name);
+        while (e != null) {
+            if (e.flags == flags) {
+                return e.function;
+            }
+            e = e.next;
+        }
+        return null;
+    }
+
+    private void cacheFunction(String name, int flags, Function function) {
+        synchronized(functionsLock) {
+            Map map = new HashMap(functions);
+            map.put(name, new FunctionEntry(flags, function,
+                                            (FunctionEntry)map.get(name)));
+            functions = map;
         }
     }
 
@@ -10,7 +10,6 @@
  */
 package com.sun.jna;
 
-import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Array;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
@@ -739,22 +738,21 @@ v     * @param wide whether to convert from a wide or standard C string
      * @return the <code>String</code> value being pointed to 
      */
     public String getString(long offset) {
-        String encoding = System.getProperty("jna.encoding");
-        if (encoding != null) {
-            long len = indexOf(offset, (byte)0);
-            if (len != -1) {
-                if (len > Integer.MAX_VALUE) {
-                    throw new OutOfMemoryError("String exceeds maximum length: " + len);
-                }
-                byte[] data = getByteArray(offset, (int)len);
-                try {
-                    return new String(data, encoding);
-                }
-                catch(UnsupportedEncodingException e) { 
-                }
-            }
-        }
-        return getString(offset, false);
+        return StringCodec.getInstance().getString(this, offset);
+    }
+
+    /**
+     * Copy native memory to a Java String, reading at most
+     * <code>maxLength</code> bytes.  The string ends at the first NUL byte
+     * within that length, if any, so no terminator is required.  Decodes
+     * using the same encoding as {@link #getString(long)}.
+     *
+     * @param offset byte offset from pointer to obtain the native string
+     * @param maxLength maximum number of bytes to read
+     * @return the <code>String</code> value being pointed to 
+     */
+    public String getString(long offset, int maxLength) {
+        return StringCodec.getInstance().getString(this, offset, maxLength);
     }
 
     public byte[] getByteArray(long offset, int arraySize) {
@@ -0,0 +1,187 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+/** A {@link MemoryAllocator} which recycles small blocks instead of
+ * returning them to the native heap.  Requests are rounded up to a
+ * power-of-two size class; released blocks are cached first in a
+ * per-thread pool and then in a pool shared by all threads, and are only
+ * freed once both are full.  Requests larger than the maximum pooled
+ * size go straight to <code>malloc</code>.  Blocks of unreachable
+ * {@link Memory} freed in the background skip the per-thread pools.<p>
+ * Since blocks are reused, newly allocated memory is not guaranteed to be
+ * zeroed (as is also the case with <code>malloc</code>).
+ */
+public class PooledMemoryAllocator implements MemoryAllocator {
+
+    /** Smallest size class. */
+    public static final int MIN_BLOCK_SIZE = 16;
+    /** Default largest pooled block size. */
+    public static final int DEFAULT_MAX_BLOCK_SIZE = 4096;
+    /** Default number of cached blocks per size class and thread. */
+    public static final int DEFAULT_THREAD_CACHE_SIZE = 32;
+
+    /** Cached blocks for each size class. */
+    private static class Pool {
+        private final long[][] blocks;
+        private final int[] counts;
+        private final int capacity;
+        Pool(int nclasses, int capacity) {
+            this.blocks = new long[nclasses][capacity];
+            this.counts = new int[nclasses];
+            this.capacity = capacity;
+        }
+        long take(int sizeClass) {
+            int count = counts[sizeClass];
+            if (count == 0) {
+                return 0;
+            }
+            counts[sizeClass] = --count;
+            return blocks[sizeClass][count];
+        }
+        boolean put(int sizeClass, long peer) {
+            int count = counts[sizeClass];
+            if (count == capacity) {
+                return false;
+            }
+            blocks[sizeClass][count] = peer;
+            counts[sizeClass] = count + 1;
+            return true;
+        }
+        void clear() {
+            for (int i=0;i < counts.length;i++) {
+                while (counts[i] > 0) {
+                    Memory.free(blocks[i][--counts[i]]);
+                }
+            }
+        }
+    }
+
+    /** A thread's pool, as held by the thread. */
+    private static class LocalPool {
+        final Pool pool;
+        LocalPool(Pool pool) {
+            this.pool = pool;
+            new LocalPoolReclaimer(this);
+        }
+    }
+
+    /** Frees any blocks still cached by a thread which has exited. */
+    private static class LocalPoolReclaimer extends Memory.Reclaimer {
+        private final Pool pool;
+        LocalPoolReclaimer(LocalPool owner) {
+            super(owner, true);
+            this.pool = owner.pool;
+        }
+        void release() {
+            pool.clear();
+        }
+    }
+
+    private final int maxBlockSize;
+    private final int nclasses;
+    private final Pool shared;
+    private final ThreadLocal local;
+
+    /** Create an allocator with the default block size limit and cache
+     * sizes.
+     */
+    public PooledMemoryAllocator() {
+        this(DEFAULT_MAX_BLOCK_SIZE, DEFAULT_THREAD_CACHE_SIZE);
+    }
+
+    /** Create an allocator which pools blocks of up to
+     * <code>maxBlockSize</code> bytes, caching up to
+     * <code>threadCacheSize</code> blocks per size class in each thread
+     * (and four times that many in the shared pool).
+     */
+    public PooledMemoryAllocator(int maxBlockSize, final int threadCacheSize) {
+        if (maxBlockSize < MIN_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Maximum block size must be at least " + MIN_BLOCK_SIZE);
+        }
+        if (threadCacheSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        int n = 1;
+        while ((MIN_BLOCK_SIZE << (n-1)) < maxBlockSize) {
+            ++n;
+        }
+        this.nclasses = n;
+        this.maxBlockSize = MIN_BLOCK_SIZE << (n-1);
+        this.shared = new Pool(n, threadCacheSize * 4);
+        this.local = new ThreadLocal() {
+            protected Object initialValue() {
+                return new LocalPool(new Pool(nclasses, threadCacheSize));
+            }
+        };
+    }
+
+    /** Returns the size class for the given size, or -1 if blocks of that
+     * size are not pooled.
+     */
+    private int sizeClass(long size) {
+        if (size > maxBlockSize) {
+            return -1;
+        }
+        int index = 0;
+        while ((MIN_BLOCK_SIZE << index) < size) {
+            ++index;
+        }
+        return index;
+    }
+
+    public long allocate(long size) {
+        int index = sizeClass(size);
+        if (index == -1) {
+            return Memory.malloc(size);
+        }
+        long peer = ((LocalPool)local.get()).pool.take(index);
+        if (peer == 0) {
+            synchronized(shared) {
+                peer = shared.take(index);
+            }
+            if (peer == 0) {
+                peer = Memory.malloc(MIN_BLOCK_SIZE << index);
+            }
+        }
+        return peer;
+    }
+
+    public void release(long peer, long size) {
+        int index = sizeClass(size);
+        if (index == -1) {
+            Memory.free(peer);
+            return;
+        }
+        // Blocks freed in the background go where allocating threads can
+        // reach them
+        if (!Memory.isCleanerThread()
+            && ((LocalPool)local.get()).pool.put(index, peer)) {
+            return;
+        }
+        synchronized(shared) {
+            if (shared.put(index, peer)) {
+                return;
+            }
+        }
+        Memory.free(peer);
+    }
+
+    /** Return all blocks cached by the current thread and by the shared
+     * pool to the native heap.
+     */
+    public void trim() {
+        ((LocalPool)local.get()).pool.clear();
+        synchronized(shared) {
+            shared.clear();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+/** Provides a per-thread region of native memory for temporary argument
+ * values which need only remain valid for the duration of a function
+ * call.  Space is handed out by advancing an offset; callers record
+ * {@link #mark} before converting arguments and {@link #reset} to it once
+ * the call returns, so nested calls on the same thread (e.g. from within
+ * a callback) are handled in stack order.
+ */
+final class ScratchMemory {
+
+    /** Size of each thread's scratch region. */
+    static final int SIZE = 8192;
+    private static final int ALIGN = 8;
+
+    private static final ThreadLocal local = new ThreadLocal() {
+        protected Object initialValue() {
+            return new ScratchMemory();
+        }
+    };
+
+    /** Frees a thread's region once the thread has exited.  The region
+     * does not count as outstanding memory, so it does not keep the
+     * memory cleaner running.
+     */
+    private static final class Region extends Memory.Reclaimer {
+        private final long peer;
+        Region(ScratchMemory owner, long peer) {
+            super(owner, true);
+            this.peer = peer;
+        }
+        void release() {
+            Memory.free(peer);
+        }
+    }
+
+    private long peer;
+    private int offset;
+
+    /** Returns the scratch region for the current thread. */
+    static ScratchMemory get() {
+        return (ScratchMemory)local.get();
+    }
+
+    int mark() {
+        return offset;
+    }
+
+    void reset(int mark) {
+        offset = mark;
+    }
+
+    /** Copy the given string into scratch space as a NUL-terminated
+     * <code>char</code> or <code>wchar_t</code> array.
+     * @return a pointer to the copy, or <code>null</code> if there is
+     * insufficient space remaining
+     */
+    Pointer putString(String s, boolean wide) {
+        if (wide) {
+            long len = (s.length() + 1L) * Native.WCHAR_SIZE;
+            Pointer p = allocate(len);
+            if (p != null) {
+                p.setString(0, s, true);
+            }
+            return p;
+        }
+        byte[] data = Native.getBytes(s);
+        Pointer p = allocate(data.length + 1L);
+        if (p != null) {
+            p.write(0, data, 0, data.length);
+            p.setByte(data.length, (byte)0);
+        }
+        return p;
+    }
+
+    private Pointer allocate(long size) {
+        if (size > SIZE - offset) {
+            return null;
+        }
+        if (peer == 0) {
+            peer = Memory.malloc(SIZE);
+            if (peer == 0) {
+                return null;
+            }
+            new Region(this, peer);
+        }
+        Pointer p = new Pointer(peer + offset);
+        offset += (int)((size + ALIGN - 1) & ~(ALIGN - 1));
+        return p;
+    }
+}
@@ -0,0 +1,195 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+
+/** Converts between Java Strings and native <code>char</code> strings
+ * using the encoding named by the system property
+ * <code>jna.encoding</code>, or the platform default encoding if that
+ * property is unset or names an unsupported encoding.<p>
+ * The named encoding is resolved once and reused for as long as the
+ * property value is unchanged.  Encodings which represent ASCII characters
+ * as single identical bytes (e.g. UTF-8 and the ISO-8859 family) convert
+ * pure ASCII strings without invoking a charset encoder or decoder.
+ */
+final class StringCodec {
+
+    private static final String PROPERTY = "jna.encoding";
+    private static final Charset PLATFORM_CHARSET = getPlatformCharset();
+    private static volatile StringCodec current =
+        new StringCodec(System.getProperty(PROPERTY));
+
+    /** Value of <code>jna.encoding</code> this codec was created for. */
+    private final String encoding;
+    /** Canonical name of the resolved charset, or <code>null</code> to use
+     * the platform default.
+     */
+    private final String charsetName;
+    private final boolean asciiCompatible;
+    /** Whether native code decodes with the same charset. */
+    private final boolean platformDefault;
+
+    private StringCodec(String encoding) {
+        this.encoding = encoding;
+        Charset charset = null;
+        if (encoding != null) {
+            try {
+                charset = Charset.forName(encoding);
+            }
+            catch(IllegalArgumentException e) {
+                // Illegal or unsupported; use the platform default
+            }
+        }
+        this.charsetName = charset != null ? charset.name() : null;
+        this.platformDefault = charset == null || charset.equals(PLATFORM_CHARSET);
+        this.asciiCompatible = isAsciiCompatible();
+    }
+
+    private static Charset getPlatformCharset() {
+        String name = new InputStreamReader(new ByteArrayInputStream(new byte[0])).getEncoding();
+        try {
+            return Charset.forName(name);
+        }
+        catch(IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /** Returns the codec for the current value of <code>jna.encoding</code>. */
+    static StringCodec getInstance() {
+        String encoding = System.getProperty(PROPERTY);
+        StringCodec codec = current;
+        if (encoding != codec.encoding
+            && (encoding == null || !encoding.equals(codec.encoding))) {
+            current = codec = new StringCodec(encoding);
+        }
+        return codec;
+    }
+
+    private boolean isAsciiCompatible() {
+        byte[] ascii = new byte[128];
+        char[] chars = new char[ascii.length];
+        for (int i=0;i < ascii.length;i++) {
+            ascii[i] = (byte)i;
+            chars[i] = (char)i;
+        }
+        byte[] encoded = encodeSlow(new String(chars));
+        if (encoded.length != ascii.length) {
+            return false;
+        }
+        for (int i=0;i < ascii.length;i++) {
+            if (encoded[i] != ascii[i]) {
+                return false;
+            }
+        }
+        return new String(chars).equals(decodeSlow(ascii, 0, ascii.length));
+    }
+
+    /** Encode the given String, without a NUL terminator. */
+    byte[] encode(String s) {
+        if (asciiCompatible) {
+            int len = s.length();
+            byte[] bytes = new byte[len];
+            for (int i=0;i < len;i++) {
+                char ch = s.charAt(i);
+                if (ch >= 0x80) {
+                    return encodeSlow(s);
+                }
+                bytes[i] = (byte)ch;
+            }
+            return bytes;
+        }
+        return encodeSlow(s);
+    }
+
+    private byte[] encodeSlow(String s) {
+        if (charsetName != null) {
+            try {
+                return s.getBytes(charsetName);
+            }
+            catch(UnsupportedEncodingException e) {
+            }
+        }
+        return s.getBytes();
+    }
+
+    /** Decode <code>len</code> bytes starting at <code>off</code>. */
+    String decode(byte[] buf, int off, int len) {
+        if (asciiCompatible) {
+            char[] chars = new char[len];
+            int i = 0;
+            while (i < len && buf[off + i] >= 0) {
+                chars[i] = (char)buf[off + i];
+                ++i;
+            }
+            if (i == len) {
+                return new String(chars, 0, len);
+            }
+        }
+        return decodeSlow(buf, off, len);
+    }
+
+    private String decodeSlow(byte[] buf, int off, int len) {
+        if (charsetName != null) {
+            try {
+                return new String(buf, off, len, charsetName);
+            }
+            catch(UnsupportedEncodingException e) {
+            }
+        }
+        return new String(buf, off, len);
+    }
+
+    /** Decode the given bytes up to the first NUL, or the entire array if
+     * there is none.
+     */
+    String decodeTerminated(byte[] buf) {
+        if (asciiCompatible) {
+            // NUL bytes only ever encode NUL characters
+            int len = 0;
+            while (len < buf.length && buf[len] != 0) {
+                ++len;
+            }
+            return decode(buf, 0, len);
+        }
+        String s = decodeSlow(buf, 0, buf.length);
+        int term = s.indexOf(0);
+        return term != -1 ? s.substring(0, term) : s;
+    }
+
+    /** Read the NUL-terminated string at the given location. */
+    String getString(Pointer p, long offset) {
+        if (platformDefault) {
+            // Native code decodes using the platform default
+            return p.getString(offset, false);
+        }
+        long len = p.indexOf(offset, (byte)0);
+        if (len == -1) {
+            return p.getString(offset, false);
+        }
+        if (len > Integer.MAX_VALUE) {
+            throw new OutOfMemoryError("String exceeds maximum length: " + len);
+        }
+        byte[] data = p.getByteArray(offset, (int)len);
+        return decode(data, 0, data.length);
+    }
+
+    /** Read a string of at most <code>maxLength</code> bytes at the given
+     * location, ending at the first NUL if one occurs within that length.
+     */
+    String getString(Pointer p, long offset, int maxLength) {
+        return decodeTerminated(p.getByteArray(offset, maxLength));
+    }
+}
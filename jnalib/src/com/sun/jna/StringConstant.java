@@ -0,0 +1,112 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** A string which is encoded into native memory once, for use as a
+ * <code>const char*</code> (or <code>const wchar_t*</code>) argument
+ * which is passed repeatedly.  Unlike a <code>String</code> argument, no
+ * conversion or allocation takes place when the constant is passed to a
+ * native function, with either interface or direct mapping.  Declare the
+ * parameter as <code>StringConstant</code> (or pass one where an
+ * <code>Object</code> or varargs argument is expected).<p>
+ * The native encoding is determined when the constant is created, using
+ * <code>jna.encoding</code> in the same way as a <code>String</code>
+ * argument.  Native code must not modify the string.  The native memory
+ * is not freed by an enclosing {@link MemoryScope}.
+ */
+public final class StringConstant extends PointerType {
+
+    /** Maximum number of constants retained by {@link #intern}. */
+    public static final int MAX_INTERNED = 256;
+
+    private static final Map interned = new Cache();
+    private static final Map internedWide = new Cache();
+
+    /** Retains the most recently used constants. */
+    private static class Cache extends LinkedHashMap {
+        Cache() {
+            super(16, .75f, true);
+        }
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            return size() > MAX_INTERNED;
+        }
+    }
+
+    private String value;
+    private boolean wide;
+
+    /** Wraps a NULL pointer. */
+    public StringConstant() {
+    }
+
+    /** Create a constant NUL-terminated <code>char</code> string. */
+    public StringConstant(String value) {
+        this(value, false);
+    }
+
+    /** Create a constant NUL-terminated string, as an array of
+     * <code>wchar_t</code> if <code>wide</code> is true, or of
+     * <code>char</code> otherwise.
+     */
+    public StringConstant(String value, boolean wide) {
+        super(new NativeString(value, wide).getPointer());
+        // Constants remain valid beyond any enclosing memory scope
+        MemoryScope.untrack((Memory)getPointer());
+        this.value = value;
+        this.wide = wide;
+    }
+
+    /** Returns a shared constant for the given <code>char</code> string.
+     * The most recently used {@link #MAX_INTERNED} constants are cached.
+     */
+    public static StringConstant intern(String value) {
+        return intern(value, false);
+    }
+
+    /** Returns a shared constant for the given string, as an array of
+     * <code>wchar_t</code> if <code>wide</code> is true.
+     * The most recently used {@link #MAX_INTERNED} constants of each kind
+     * are cached.
+     */
+    public static StringConstant intern(String value, boolean wide) {
+        Map cache = wide ? internedWide : interned;
+        synchronized(cache) {
+            StringConstant s = (StringConstant)cache.get(value);
+            if (s == null) {
+                s = new StringConstant(value, wide);
+                cache.put(value, s);
+            }
+            return s;
+        }
+    }
+
+    /** Constants may not be modified. */
+    public void setPointer(Pointer p) {
+        throw new UnsupportedOperationException("String constants are immutable");
+    }
+
+    /** Returns whether the string is stored as <code>wchar_t</code>. */
+    public boolean isWide() {
+        return wide;
+    }
+
+    /** Returns the string value. */
+    public String toString() {
+        if (value == null) {
+            Pointer p = getPointer();
+            return p == null ? "NULL" : p.getString(0, wide);
+        }
+        return value;
+    }
+}
@@ -10,10 +10,14 @@
  */
 package com.sun.jna;
 
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -133,13 +137,21 @@ public abstract class Structure {
 
     private static final int MAX_GNUC_ALIGNMENT = isSPARC ? 8 : Native.LONG_SIZE;
     protected static final int CALCULATE_SIZE = -1;
+    // Layouts shared by all instances of a given Structure class.  Each
+    // layout refers to the class through its fields, so layouts are held
+    // weakly (by the instances using them) to let the class be unloaded.
+    private static final Map layoutInfo = new WeakHashMap();
+    // Whether primitive fields bypass generic value conversion
+    private static final boolean DIRECT_ACCESS =
+        !"false".equals(System.getProperty("jna.structure.accessors"));
 
     // This field is accessed by native code
     private Pointer memory;
     private int size = CALCULATE_SIZE;
     private int alignType;
     private int structAlignment;
-    private final Map structFields = new LinkedHashMap();
+    private Map structFields = Collections.EMPTY_MAP;
+    private LayoutInfo layout;
     // Keep track of java strings which have been converted to C strings
     private final Map nativeStrings = new HashMap();
     private TypeMapper typeMapper;
@@ -149,6 +161,14 @@ public abstract class Structure {
     private boolean autoRead = true;
     private boolean autoWrite = true;
     private Structure[] array;
+    // Field values last synchronized with native memory, when tracking
+    // changes
+    private boolean trackChanges;
+    private Pointer syncedMemory;
+    private LayoutInfo syncedLayout;
+    private boolean[] synced;
+    private long[] syncedBits;
+    private Object[] syncedValues;
 
     protected Structure() {
         this((Pointer)null);
@@ -183,6 +203,11 @@ public abstract class Structure {
         return structFields;
     }
 
+    /** Return the layout currently in use, if any. */
+    LayoutInfo layoutInfo() {
+        return layout;
+    }
+
     /** Change the type mapping for this structure.  May cause the structure
      * to be resized and any existing memory to be reallocated.
      * If <code>null</code>, the default mapper for the
@@ -310,6 +335,7 @@ public abstract class Structure {
 
     public void clear() {
         memory.clear(size());
+        resetSynced();
     }
 
     /** Return a {@link Pointer} object to this structure.  Note that if you
@@ -424,7 +450,13 @@ public abstract class Structure {
         }
         try {
             for (Iterator i=structFields.values().iterator();i.hasNext();) {
-                readField((StructField)i.next());
+                StructField sf = (StructField)i.next();
+                if (sf.accessor != 0) {
+                    readDirect(sf);
+                }
+                else {
+                    readField(sf);
+                }
             }
         }
         finally {
@@ -527,11 +559,12 @@ public abstract class Structure {
         // TODO: process against current value here
         
         if (readConverter != null) {
-            result = readConverter.fromNative(result, structField.context);
+            result = readConverter.fromNative(result, new StructureReadContext(this, structField.field));
         }
 
         // Update the value on the field
         setField(structField, result);
+        updateSynced(structField);
         return result;
     }
 
@@ -558,7 +591,7 @@ public abstract class Structure {
             // Write all fields, except those marked 'volatile'
             for (Iterator i=structFields.values().iterator();i.hasNext();) {
                 StructField sf = (StructField)i.next();
-                if (!sf.isVolatile) {
+                if (!sf.isVolatile && isChanged(sf)) {
                     writeField(sf);
                 }
             }
@@ -599,6 +632,11 @@ public abstract class Structure {
         if (structField.isReadOnly) 
             return;
 
+        if (structField.accessor != 0) {
+            writeDirect(structField);
+            return;
+        }
+
         // Get the offset of the field
         int offset = structField.offset;
 
@@ -644,6 +682,172 @@ public abstract class Structure {
                 + ", which is not supported within a Structure";
             throw new IllegalArgumentException(msg);
         }
+        updateSynced(structField);
+    }
+
+    /** Returns whether the given field may differ from the value last
+     * synchronized with native memory.  Always true unless tracking changes.
+     */
+    private boolean isChanged(StructField sf) {
+        if (!sf.trackable || !checkSyncState()) {
+            return true;
+        }
+        int index = sf.index;
+        if (!synced[index]) {
+            return true;
+        }
+        if (sf.accessor != 0) {
+            return getFieldBits(sf) != syncedBits[index];
+        }
+        return getField(sf) != syncedValues[index];
+    }
+
+    /** Record the current value of the given field as being synchronized
+     * with native memory.
+     */
+    private void updateSynced(StructField sf) {
+        if (!trackChanges || !sf.trackable || !checkSyncState()) {
+            return;
+        }
+        int index = sf.index;
+        if (sf.accessor != 0) {
+            syncedBits[index] = getFieldBits(sf);
+        }
+        else {
+            syncedValues[index] = getField(sf);
+        }
+        synced[index] = true;
+    }
+
+    /** Discard recorded values if the memory or layout has changed since
+     * they were recorded.
+     * @return whether changes are being tracked
+     */
+    private boolean checkSyncState() {
+        if (!trackChanges || this instanceof Union) {
+            return false;
+        }
+        if (synced == null || syncedMemory != memory || syncedLayout != layout) {
+            int count = structFields.size();
+            synced = new boolean[count];
+            syncedBits = new long[count];
+            syncedValues = new Object[count];
+            syncedMemory = memory;
+            syncedLayout = layout;
+        }
+        return true;
+    }
+
+    /** Discard recorded values after native memory has been modified
+     * other than by reading or writing fields, including the values of
+     * nested structures which share this structure's memory.
+     */
+    private void resetSynced() {
+        synced = null;
+        for (Iterator i=structFields.values().iterator();i.hasNext();) {
+            StructField sf = (StructField)i.next();
+            if (Structure.class.isAssignableFrom(sf.type)
+                && !ByReference.class.isAssignableFrom(sf.type)) {
+                Structure s = (Structure)getField(sf);
+                if (s != null) {
+                    s.resetSynced();
+                }
+            }
+        }
+    }
+
+    /** Return the raw bits of a primitive field's current value. */
+    private long getFieldBits(StructField sf) {
+        Field f = sf.field;
+        try {
+            switch(sf.accessor) {
+            case 'Z': return f.getBoolean(this) ? 1 : 0;
+            case 'B': return f.getByte(this);
+            case 'S': return f.getShort(this);
+            case 'C': return f.getChar(this);
+            case 'I': return f.getInt(this);
+            case 'J': return f.getLong(this);
+            case 'F': return Float.floatToRawIntBits(f.getFloat(this));
+            case 'D': return Double.doubleToRawLongBits(f.getDouble(this));
+            default:
+                throw new IllegalStateException("Unknown field accessor: " + sf.accessor);
+            }
+        }
+        catch(IllegalAccessException e) {
+            throw new Error("Exception reading field '"
+                            + sf.name + "' in " + getClass()
+                            + ": " + e);
+        }
+    }
+
+    /** Return the JNI signature character for the given primitive type. */
+    private static char getAccessor(Class type) {
+        if (type == boolean.class) return 'Z';
+        if (type == byte.class) return 'B';
+        if (type == short.class) return 'S';
+        if (type == char.class) return 'C';
+        if (type == int.class) return 'I';
+        if (type == long.class) return 'J';
+        if (type == float.class) return 'F';
+        if (type == double.class) return 'D';
+        return 0;
+    }
+
+    /** Copy a primitive field from native memory directly into its Java
+     * field, bypassing boxing and the generic type dispatch in
+     * {@link Pointer#getValue}.
+     */
+    private void readDirect(StructField sf) {
+        Field f = sf.field;
+        long offset = sf.offset;
+        try {
+            switch(sf.accessor) {
+            case 'Z': f.setBoolean(this, memory.getInt(offset) != 0); break;
+            case 'B': f.setByte(this, memory.getByte(offset)); break;
+            case 'S': f.setShort(this, memory.getShort(offset)); break;
+            case 'C': f.setChar(this, memory.getChar(offset)); break;
+            case 'I': f.setInt(this, memory.getInt(offset)); break;
+            case 'J': f.setLong(this, memory.getLong(offset)); break;
+            case 'F': f.setFloat(this, memory.getFloat(offset)); break;
+            case 'D': f.setDouble(this, memory.getDouble(offset)); break;
+            default:
+                throw new IllegalStateException("Unknown field accessor: " + sf.accessor);
+            }
+            updateSynced(sf);
+        }
+        catch(IllegalAccessException e) {
+            throw new Error("Unexpectedly unable to write to field '"
+                            + sf.name + "' within " + getClass()
+                            + ": " + e);
+        }
+    }
+
+    /** Copy a primitive Java field directly into native memory, bypassing
+     * boxing and the generic type dispatch in {@link Pointer#setValue}.
+     */
+    private void writeDirect(StructField sf) {
+        Field f = sf.field;
+        long offset = sf.offset;
+        try {
+            switch(sf.accessor) {
+            case 'Z': memory.setInt(offset, f.getBoolean(this) ? -1 : 0); break;
+            case 'B': memory.setByte(offset, f.getByte(this)); break;
+            case 'S': memory.setShort(offset, f.getShort(this)); break;
+            case 'C': memory.setChar(offset, f.getChar(this)); break;
+            case 'I': memory.setInt(offset, f.getInt(this)); break;
+            case 'J': memory.setLong(offset, f.getLong(this)); break;
+            case 'F': memory.setFloat(offset, f.getFloat(this)); break;
+            case 'D': memory.setDouble(offset, f.getDouble(this)); break;
+            default:
+                throw new IllegalStateException("Unknown field accessor: " + sf.accessor);
+            }
+            updateSynced(sf);
+        }
+        catch(IllegalAccessException e) {
+            throw new Error("Exception reading field '"
+                            + sf.name + "' in " + getClass()
+                            + ": " + e);
+        }
     }
 
     private boolean hasFieldOrder() {
@@ -725,6 +929,11 @@ public abstract class Structure {
      * determined (usually due to fields in the derived class not yet
      * being initialized).
      * <p>
+     * Layouts which do not depend on per-instance field values are cached
+     * on a per-class basis while any instance using them is reachable, so
+     * that only the first instance of a given configuration pays for
+     * analyzing the class.
+     * <p>
      * If the <code>force</code> parameter is <code>true</code> will throw
      * an {@link IllegalStateException} if the size can not be determined.
      * @throws IllegalStateException an array field is not initialized
@@ -732,17 +941,169 @@ public abstract class Structure {
      * encountered
      */
     int calculateSize(boolean force) {
-        // TODO: maybe cache this information on a per-class basis
-        // so that we don't have to re-analyze this static information each
-        // time a struct is allocated.
+        LayoutInfo info = getCachedLayout();
+        if (info != null) {
+            initializeFields(info);
+            // Converted field values may require a different layout than
+            // the one cached; such an instance gets its own
+            if (!matchesConvertedFields(info)) {
+                info = deriveLayout(force);
+                if (info == null) {
+                    return CALCULATE_SIZE;
+                }
+            }
+        }
+        else {
+            info = deriveLayout(force);
+            if (info == null) {
+                return CALCULATE_SIZE;
+            }
+            if (!info.variable) {
+                cacheLayout(info);
+            }
+        }
+        this.layout = info;
+        this.structFields = info.fields;
+        this.structAlignment = info.alignment;
+
+        // Update native FFI type information, if needed
+        if (this instanceof ByValue) {
+            getTypeInfo();
+        }
+        if (this.memory != null
+            && !(this.memory instanceof AutoAllocated)) {
+            // Ensure we've set bounds on the memory used
+            this.memory = this.memory.share(0, info.size);
+        }
+        return info.size;
+    }
+
+    /** Look up a previously derived layout which applies to this instance. */
+    private LayoutInfo getCachedLayout() {
+        List order = hasFieldOrder() ? getFieldOrder() : null;
+        synchronized(layoutInfo) {
+            List infos = (List)layoutInfo.get(getClass());
+            if (infos != null) {
+                for (Iterator i=infos.iterator();i.hasNext();) {
+                    LayoutInfo info = (LayoutInfo)((Reference)i.next()).get();
+                    if (info == null) {
+                        i.remove();
+                    }
+                    else if (info.matches(alignType, typeMapper, order)) {
+                        return info;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Save the given layout for use by other instances of this class.  A
+     * layout replaces any existing one with the same alignment and field
+     * order, so that per-instance type mappers can't grow the cache without
+     * bound.
+     */
+    private void cacheLayout(LayoutInfo info) {
+        synchronized(layoutInfo) {
+            List infos = (List)layoutInfo.get(getClass());
+            if (infos == null) {
+                infos = new ArrayList(1);
+                layoutInfo.put(getClass(), infos);
+            }
+            for (Iterator i=infos.iterator();i.hasNext();) {
+                LayoutInfo old = (LayoutInfo)((Reference)i.next()).get();
+                if (old == null
+                    || old.matches(info.alignType, old.typeMapper, info.fieldOrder)) {
+                    i.remove();
+                }
+            }
+            infos.add(new WeakReference(info));
+        }
+    }
+
+    /** Provide default values for any nested structure or {@link
+     * NativeMapped} fields which have not been explicitly initialized, as
+     * would have been done when the layout was first derived.
+     */
+    private void initializeFields(LayoutInfo info) {
+        for (int i=0;i < info.defaults.length;i++) {
+            StructField sf = info.defaults[i];
+            if (getField(sf) == null) {
+                if (NativeMapped.class.isAssignableFrom(sf.type)) {
+                    setField(sf, NativeMappedConverter.getInstance(sf.type).defaultValue());
+                }
+                else {
+                    setField(sf, newInstance(sf.type));
+                }
+            }
+        }
+    }
+
+    /** Returns whether the current values of this structure's converted
+     * ({@link NativeMapped} or {@link TypeMapper}) fields have the native
+     * types, sizes and alignments recorded in the given layout.
+     */
+    private boolean matchesConvertedFields(LayoutInfo info) {
+        for (int i=0;i < info.converted.length;i++) {
+            StructField sf = info.converted[i];
+            Object value = getField(sf);
+            Class nativeType = sf.nativeType;
+            try {
+                if (!NativeMapped.class.isAssignableFrom(sf.type)) {
+                    value = sf.writeConverter.toNative(value, new StructureWriteContext(this, sf.field));
+                    nativeType = value != null ? value.getClass() : Pointer.class;
+                    if (nativeType != sf.nativeType) {
+                        return false;
+                    }
+                }
+                if (Native.getNativeSize(nativeType, value) != sf.size
+                    || getNativeAlignment(nativeType, value, sf.index == 0) != sf.alignment) {
+                    return false;
+                }
+            }
+            catch(IllegalArgumentException e) {
+                // Let a full derivation report the problem
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Analyze this structure's fields to determine their native types,
+     * sizes and offsets.  Returns <code>null</code> if the layout can not
+     * yet be determined.
+     */
+    LayoutInfo deriveLayout(boolean force) {
+        return deriveLayout(force, true);
+    }
 
-        structAlignment = 1;
+    /** Derive the layout, using sizes and offsets recorded in a {@link
+     * BindingManifest} if allowed and available.
+     */
+    private LayoutInfo deriveLayout(boolean force, boolean useManifest) {
+        LayoutInfo info = new LayoutInfo();
+        info.alignType = alignType;
+        info.typeMapper = typeMapper;
+        if (hasFieldOrder()) {
+            info.fieldOrder = new ArrayList(getFieldOrder());
+        }
         int calculatedSize = 0;
-        List fields = getFields(force);
+        // Use a layout computed at build time, if one applies
+        BindingManifest.Layout precomputed =
+            useManifest && typeMapper == null && !hasFieldOrder()
+            ? BindingManifest.getLayout(getClass(), alignType) : null;
+        List fields = precomputed != null ? precomputed.getFields(getClass()) : null;
+        if (fields == null) {
+            precomputed = null;
+            fields = getFields(force);
+        }
         if (fields == null) {
-            return CALCULATE_SIZE;
+            return null;
         }
 
+        Map structFields = new LinkedHashMap();
+        List defaults = new ArrayList();
+        List converted = new ArrayList();
         boolean firstField = true;
         for (Iterator i=fields.iterator();i.hasNext();firstField=false) {
             Field field = (Field)i.next();
@@ -796,9 +1157,17 @@ public abstract class Structure {
                     if (force) {
                         throw new IllegalStateException("Array fields must be initialized");
                     }
-                    return CALCULATE_SIZE;
+                    return null;
                 }
             }
+            if (Structure.class.isAssignableFrom(type)
+                && !(ByReference.class.isAssignableFrom(type))) {
+                defaults.add(structField);
+            }
+            // Array lengths are determined by each instance
+            if (type.isArray()) {
+                info.variable = true;
+            }
             Class nativeType = type;
             if (NativeMapped.class.isAssignableFrom(type)) {
                 NativeMappedConverter tc = NativeMappedConverter.getInstance(type);
@@ -806,10 +1175,10 @@ public abstract class Structure {
                     value = tc.defaultValue();
                     setField(structField, value);
                 }
+                defaults.add(structField);
                 nativeType = tc.nativeType();
                 structField.writeConverter = tc;
                 structField.readConverter = tc;
-                structField.context = new StructureReadContext(this, field);
             }
             else if (typeMapper != null) {
                 ToNativeConverter writeConverter = typeMapper.getToNativeConverter(type);
@@ -820,50 +1189,93 @@ public abstract class Structure {
                     nativeType = value != null ? value.getClass() : Pointer.class;
                     structField.writeConverter = writeConverter;
                     structField.readConverter = readConverter;
-                    structField.context = new StructureReadContext(this, field);
                 }
                 else if (writeConverter != null || readConverter != null) {
                     String msg = "Structures require bidirectional type conversion for " + type;
                     throw new IllegalArgumentException(msg);
                 }
             }
-            try {
-                structField.size = Native.getNativeSize(nativeType, value);
-                fieldAlignment = getNativeAlignment(nativeType, value, firstField);
+            if (precomputed != null) {
+                structField.size = precomputed.sizes[structFields.size()];
+                // A nested structure's own layout may have changed
+                if (value instanceof Structure
+                    && !(value instanceof ByReference)
+                    && ((Structure)value).size() != structField.size) {
+                    return deriveLayout(force, false);
+                }
+                if (structField.writeConverter != null) {
+                    fieldAlignment = getNativeAlignment(nativeType, value, firstField);
+                }
             }
-            catch(IllegalArgumentException e) {
-                // Might simply not yet have a type mapper set
-                if (!force && typeMapper == null) {
-                    return CALCULATE_SIZE;
+            else {
+                try {
+                    structField.size = Native.getNativeSize(nativeType, value);
+                    fieldAlignment = getNativeAlignment(nativeType, value, firstField);
                 }
-                String msg = "Invalid Structure field in " + getClass() + ", field name '" + structField.name + "', " + structField.type + ": " + e.getMessage();
-                throw new IllegalArgumentException(msg);
+                catch(IllegalArgumentException e) {
+                    // Might simply not yet have a type mapper set
+                    if (!force && typeMapper == null) {
+                        return null;
+                    }
+                    String msg = "Invalid Structure field in " + getClass() + ", field name '" + structField.name + "', " + structField.type + ": " + e.getMessage();
+                    throw new IllegalArgumentException(msg);
+                }
+            }
+            // The native type of a converted field is derived from this
+            // instance's value, so must be checked before the layout is
+            // shared with another instance
+            if (structField.writeConverter != null) {
+                structField.nativeType = nativeType;
+                structField.alignment = fieldAlignment;
+                converted.add(structField);
+            }
+            if (DIRECT_ACCESS && type.isPrimitive()
+                && structField.readConverter == null
+                && structField.writeConverter == null) {
+                structField.accessor = getAccessor(type);
+            }
+            // Only immutable values may be compared against a previous write
+            structField.trackable = structField.accessor != 0
+                || (structField.writeConverter == null
+                    && (type == String.class || type == WString.class
+                        || type == Pointer.class));
+            // A nested structure whose own layout varies makes ours vary
+            if (value instanceof Structure
+                && !(value instanceof ByReference)
+                && ((Structure)value).hasVariableLayout()) {
+                info.variable = true;
             }
 
-            // Align fields as appropriate
-            structAlignment = Math.max(structAlignment, fieldAlignment);
-            if ((calculatedSize % fieldAlignment) != 0) {
-                calculatedSize += fieldAlignment - (calculatedSize % fieldAlignment);
+            if (precomputed != null) {
+                structField.offset = precomputed.offsets[structFields.size()];
+                calculatedSize = structField.offset + structField.size;
+            }
+            else {
+                // Align fields as appropriate
+                info.alignment = Math.max(info.alignment, fieldAlignment);
+                if ((calculatedSize % fieldAlignment) != 0) {
+                    calculatedSize += fieldAlignment - (calculatedSize % fieldAlignment);
+                }
+                structField.offset = calculatedSize;
+                calculatedSize += structField.size;
             }
-            structField.offset = calculatedSize;
-            calculatedSize += structField.size;
 
             // Save the field in our list
+            structField.index = structFields.size();
             structFields.put(structField.name, structField);
         }
 
+        if (precomputed != null) {
+            info.alignment = precomputed.alignment;
+            calculatedSize = precomputed.size;
+        }
         if (calculatedSize > 0) {
-            int size = calculateAlignedSize(calculatedSize);
-            // Update native FFI type information, if needed
-            if (this instanceof ByValue) {
-                getTypeInfo();
-            }
-            if (this.memory != null
-                && !(this.memory instanceof AutoAllocated)) {
-                // Ensure we've set bounds on the memory used
-                this.memory = this.memory.share(0, size);
-            }
-            return size;
+            info.size = calculateAlignedSize(calculatedSize, info.alignment);
+            info.fields = Collections.unmodifiableMap(structFields);
+            info.defaults = (StructField[])defaults.toArray(new StructField[defaults.size()]);
+            info.converted = (StructField[])converted.toArray(new StructField[converted.size()]);
+            deriveBulkAccess(info);
+            return info;
         }
 
         throw new IllegalArgumentException("Structure " + getClass()
@@ -871,7 +1283,70 @@ public abstract class Structure {
                                            + "all fields are public)");
     }
 
-    int calculateAlignedSize(int calculatedSize) {
+    // Methods whose customization requires arrays to be transferred one
+    // element at a time
+    private static final String[] ARRAY_HOOKS = {
+        "read", "write", "autoRead", "autoWrite",
+        "readField", "readField", "writeField", "writeField", "writeField",
+    };
+    private static final Class[][] ARRAY_HOOK_PARAMS = {
+        {}, {}, {}, {},
+        { StructField.class }, { String.class },
+        { StructField.class }, { String.class }, { String.class, Object.class },
+    };
+
+    /** Returns whether a subclass overrides the given method. */
+    private boolean overrides(String name, Class[] params) {
+        for (Class cls=getClass();cls != Structure.class;cls=cls.getSuperclass()) {
+            try {
+                cls.getDeclaredMethod(name, params);
+                return true;
+            }
+            catch(NoSuchMethodException e) {
+            }
+            catch(SecurityException e) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Determine whether arrays of this structure may be transferred in
+     * bulk, which requires that every field be a directly-accessible
+     * primitive and that reading and writing not be customized.
+     */
+    private void deriveBulkAccess(LayoutInfo info) {
+        if (this instanceof Union || this instanceof ByValue) {
+            return;
+        }
+        for (int i=0;i < ARRAY_HOOKS.length;i++) {
+            if (overrides(ARRAY_HOOKS[i], ARRAY_HOOK_PARAMS[i])) {
+                return;
+            }
+        }
+        int written = 0;
+        for (Iterator i=info.fields.values().iterator();i.hasNext();) {
+            StructField sf = (StructField)i.next();
+            if (sf.accessor == 0) {
+                return;
+            }
+            if (!sf.isVolatile && !sf.isReadOnly) {
+                written += sf.size;
+            }
+        }
+        info.bulk = (StructField[])info.fields.values().toArray(new StructField[info.fields.size()]);
+        info.partialWrite = written < info.size;
+    }
+
+    /** Returns whether this structure's layout depends on the values of
+     * its fields (e.g. array lengths) and thus can not be shared with other
+     * instances.
+     */
+    boolean hasVariableLayout() {
+        return layout == null || layout.variable;
+    }
+
+    int calculateAlignedSize(int calculatedSize, int structAlignment) {
         // Structure size must be an integral multiple of its alignment,
         // add padding if necessary.
         if (alignType != ALIGN_NONE) {
@@ -1045,7 +1520,11 @@ public abstract class Structure {
         for (int i=1;i < array.length;i++) {
             array[i] = Structure.newInstance(getClass());
             array[i].useMemory(memory.share(i*size, size));
-            array[i].read();
+        }
+        if (!readArray(array, 1, false)) {
+            for (int i=1;i < array.length;i++) {
+                array[i].read();
+            }
         }
 
         if (!(this instanceof ByValue)) {
@@ -1132,6 +1611,26 @@ public abstract class Structure {
         setAutoWrite(auto);
     }
 
+    /** Set whether {@link #write} skips fields whose values have not
+        changed since they were last written to or read from native memory.
+        Primitive, {@link String}, {@link WString} and {@link Pointer} fields
+        are compared against the last synchronized value; all other fields
+        are always written.  This avoids redundant writes when the same
+        structure is repeatedly passed to native code, but assumes native
+        memory is not modified except through this object's
+        <code>read</code>/<code>write</code> methods; {@link #clear}
+        discards the recorded values.  Has no effect on a {@link Union}.
+    */
+    public void setTrackChanges(boolean track) {
+        this.trackChanges = track;
+        this.synced = null;
+    }
+
+    /** Returns whether unchanged fields are skipped by {@link #write}. */
+    public boolean getTrackChanges() {
+        return this.trackChanges;
+    }
+
     /** Set whether the structure is read from native memory prior to
         a native function call.
     */
@@ -1189,7 +1688,11 @@ public abstract class Structure {
         }
     }
 
-    class StructField extends Object {
+    /** Layout information for a single field.  Instances may be shared by
+     * any number of structures, so must not be modified once the owning
+     * {@link LayoutInfo} has been derived.
+     */
+    static class StructField extends Object {
         public String name;
         public Class type;
         public Field field;
@@ -1199,7 +1702,51 @@ public abstract class Structure {
         public boolean isReadOnly;
         public FromNativeConverter readConverter;
         public ToNativeConverter writeConverter;
-        public FromNativeContext context;
+        /** JNI signature of a primitive field which may be accessed
+         * directly, or zero if the generic conversion path is required.
+         */
+        public char accessor;
+        /** Position of this field within the layout. */
+        public int index;
+        /** Whether writes may be skipped when the value is unchanged. */
+        public boolean trackable;
+        /** Native type and alignment of a converted field's value when
+         * the layout was derived.
+         */
+        public Class nativeType;
+        public int alignment;
+    }
+
+    /** Immutable description of a structure's native layout, shared by all
+     * instances of a given class which use the same alignment, type mapper
+     * and field order.
+     */
+    static class LayoutInfo {
+        int size = CALCULATE_SIZE;
+        int alignment = 1;
+        Map fields;
+        int alignType;
+        TypeMapper typeMapper;
+        List fieldOrder;
+        /** Whether the layout depends on field values, e.g. array lengths. */
+        boolean variable;
+        /** Fields which get default values on each new instance. */
+        StructField[] defaults;
+        /** Fields whose native type depends on their converted value. */
+        StructField[] converted;
+        /** Fields for bulk array transfer, or null if not supported. */
+        StructField[] bulk;
+        /** Whether a write leaves some bytes (padding, volatile or final
+         * fields) untouched.
+         */
+        boolean partialWrite;
+
+        boolean matches(int alignType, TypeMapper typeMapper, List fieldOrder) {
+            return this.alignType == alignType
+                && this.typeMapper == typeMapper
+                && (this.fieldOrder == null
+                    ? fieldOrder == null : this.fieldOrder.equals(fieldOrder));
+        }
     }
     /** This class auto-generates an ffi_type structure appropriate for a given
      * structure for use by libffi.  The lifecycle of this structure is easier
@@ -1372,7 +1919,7 @@ public abstract class Structure {
         if (ss[0].array == ss) {
             ss[0].autoRead();
         }
-        else {
+        else if (!readArray(ss, 0, true)) {
             for (int si=0;si < ss.length;si++) {
                 ss[si].autoRead();
             }
@@ -1381,6 +1928,9 @@ public abstract class Structure {
 
     public void autoRead() {
         if (getAutoRead()) {
+            if (array != null && readArray(array, 0, true)) {
+                return;
+            }
             read();
             if (array != null) {
                 for (int i=1;i < array.length;i++) {
@@ -1395,7 +1945,7 @@ public abstract class Structure {
         if (ss[0].array == ss) {
             ss[0].autoWrite();
         }
-        else {
+        else if (!writeArray(ss, 0, true)) {
             for (int si=0;si < ss.length;si++) {
                 ss[si].autoWrite();
             }
@@ -1404,6 +1954,9 @@ public abstract class Structure {
 
     public void autoWrite() {
         if (getAutoWrite()) {
+            if (array != null && writeArray(array, 0, true)) {
+                return;
+            }
             write();
             if (array != null) {
                 for (int i=1;i < array.length;i++) {
@@ -1412,4 +1965,145 @@ public abstract class Structure {
             }
         }
     }
+
+    /** Returns the layout shared by the given contiguous array elements if
+     * they may be transferred with a single bulk copy, or null if they must
+     * be handled individually.
+     */
+    private static LayoutInfo getBulkLayout(Structure[] ss, int start) {
+        if (ss.length - start < 2 || ss[start] == null) {
+            return null;
+        }
+        LayoutInfo info = ss[start].layout;
+        if (info == null || info.bulk == null) {
+            return null;
+        }
+        Pointer base = ss[start].getPointer();
+        // The copy goes through the first element's memory, which must
+        // cover all of the elements
+        if (base instanceof Memory
+            && ((Memory)base).size() < (long)info.size*(ss.length-start)) {
+            return null;
+        }
+        for (int i=start;i < ss.length;i++) {
+            Structure s = ss[i];
+            if (s == null || s.layout != info || s.trackChanges
+                || s.getPointer().peer != base.peer + (long)info.size*(i-start)
+                || (!(base instanceof Memory) && s.getPointer() instanceof Memory)) {
+                return null;
+            }
+        }
+        return info;
+    }
+
+    private static ByteBuffer bulkBuffer(Pointer base, int size, boolean read) {
+        byte[] buf = new byte[size];
+        if (read) {
+            base.read(0, buf, 0, size);
+        }
+        return ByteBuffer.wrap(buf).order(ByteOrder.nativeOrder());
+    }
+
+    /** Read the given array elements, starting at <code>start</code>, from
+     * native memory with a single copy.
+     * @return false if the elements must be read individually
+     */
+    static boolean readArray(Structure[] ss, int start, boolean auto) {
+        LayoutInfo info = getBulkLayout(ss, start);
+        if (info == null) {
+            return false;
+        }
+        for (int i=start;auto && i < ss.length;i++) {
+            if (!ss[i].getAutoRead()) {
+                return false;
+            }
+        }
+        int size = info.size;
+        ByteBuffer buf = bulkBuffer(ss[start].getPointer(), size * (ss.length - start), true);
+        StructField[] fields = info.bulk;
+        try {
+            for (int i=start;i < ss.length;i++) {
+                Structure s = ss[i];
+                int base = (i - start) * size;
+                for (int fi=0;fi < fields.length;fi++) {
+                    StructField sf = fields[fi];
+                    Field f = sf.field;
+                    int offset = base + sf.offset;
+                    switch(sf.accessor) {
+                    case 'Z': f.setBoolean(s, buf.getInt(offset) != 0); break;
+                    case 'B': f.setByte(s, buf.get(offset)); break;
+                    case 'S': f.setShort(s, buf.getShort(offset)); break;
+                    case 'C': f.setChar(s, Native.WCHAR_SIZE == 4 ? (char)buf.getInt(offset) : buf.getChar(offset)); break;
+                    case 'I': f.setInt(s, buf.getInt(offset)); break;
+                    case 'J': f.setLong(s, buf.getLong(offset)); break;
+                    case 'F': f.setFloat(s, buf.getFloat(offset)); break;
+                    case 'D': f.setDouble(s, buf.getDouble(offset)); break;
+                    default:
+                        throw new IllegalStateException("Unknown field accessor: " + sf.accessor);
+                    }
+                }
+            }
+        }
+        catch(IllegalAccessException e) {
+            throw new Error("Unexpectedly unable to write to field in "
+                            + ss[start].getClass() + ": " + e);
+        }
+        return true;
+    }
+
+    /** Write the given array elements, starting at <code>start</code>, to
+     * native memory with a single copy.
+     * @return false if the elements must be written individually
+     */
+    static boolean writeArray(Structure[] ss, int start, boolean auto) {
+        LayoutInfo info = getBulkLayout(ss, start);
+        if (info == null) {
+            return false;
+        }
+        for (int i=start;auto && i < ss.length;i++) {
+            if (!ss[i].getAutoWrite()) {
+                return false;
+            }
+        }
+        int size = info.size;
+        int length = size * (ss.length - start);
+        // Preserve bytes which an ordinary write would leave untouched
+        ByteBuffer buf = bulkBuffer(ss[start].getPointer(), length, info.partialWrite);
+        StructField[] fields = info.bulk;
+        try {
+            for (int i=start;i < ss.length;i++) {
+                Structure s = ss[i];
+                int base = (i - start) * size;
+                for (int fi=0;fi < fields.length;fi++) {
+                    StructField sf = fields[fi];
+                    if (sf.isVolatile || sf.isReadOnly) {
+                        continue;
+                    }
+                    Field f = sf.field;
+                    int offset = base + sf.offset;
+                    switch(sf.accessor) {
+                    case 'Z': buf.putInt(offset, f.getBoolean(s) ? -1 : 0); break;
+                    case 'B': buf.put(offset, f.getByte(s)); break;
+                    case 'S': buf.putShort(offset, f.getShort(s)); break;
+                    case 'C':
+                        if (Native.WCHAR_SIZE == 4) buf.putInt(offset, f.getChar(s));
+                        else buf.putChar(offset, f.getChar(s));
+                        break;
+                    case 'I': buf.putInt(offset, f.getInt(s)); break;
+                    case 'J': buf.putLong(offset, f.getLong(s)); break;
+                    case 'F': buf.putFloat(offset, f.getFloat(s)); break;
+                    case 'D': buf.putDouble(offset, f.getDouble(s)); break;
+                    default:
+                        throw new IllegalStateException("Unknown field accessor: " + sf.accessor);
+                    }
+                }
+            }
+        }
+        catch(IllegalAccessException e) {
+            throw new Error("Exception reading field in "
+                            + ss[start].getClass() + ": " + e);
+        }
+        ss[start].getPointer().write(0, buf.array(), 0, length);
+        return true;
+    }
 }
@@ -190,13 +190,31 @@ public abstract class Union extends Structure {
     /** Adjust the size to be the size of the largest element, and ensure
      * all fields begin at offset zero. 
      */
+    LayoutInfo deriveLayout(boolean force) {
+        LayoutInfo info = super.deriveLayout(force);
+        if (info != null) {
+            int fsize = 0;
+            for (Iterator i=info.fields.values().iterator();i.hasNext();) {
+                StructField f = (StructField)i.next();
+                f.offset = 0;
+                if (f.size > fsize) {
+                    fsize = f.size;
+                }
+            }
+            info.size = calculateAlignedSize(fsize, info.alignment);
+        }
+        return info;
+    }
+
+    /** Identify the largest field, which determines the union's native
+     * type information.
+     */
     int calculateSize(boolean force) {
         int size = super.calculateSize(force);
         if (size != CALCULATE_SIZE) {
             int fsize = 0;
             for (Iterator i=fields().values().iterator();i.hasNext();) {
                 StructField f = (StructField)i.next();
-                f.offset = 0;
                 if (f.size > fsize
                     // Prefer aggregate types to simple types, since they
                     // will have more complex packing rules (some platforms
@@ -209,7 +227,6 @@ public abstract class Union extends Structure {
                     biggestField = f;
                 }
             }
-            size = calculateAlignedSize(fsize);
             if (size > 0) {
                 // Update native FFI type information, if needed
                 if (this instanceof ByValue) {
@@ -12,6 +12,7 @@
  */
 package com.sun.jna;
 
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.DoubleBuffer;
@@ -20,6 +21,7 @@ import java.nio.IntBuffer;
 import java.nio.LongBuffer;
 import java.nio.ShortBuffer;
 import java.util.Arrays;
+import java.util.Collections;
 
 import com.sun.jna.ArgumentsMarshalTest.TestLibrary.CheckFieldAlignment;
 
@@ -288,6 +290,59 @@ public class ArgumentsMarshalTest extends TestCase {
         assertEquals("Argument not mapped", MAGIC, lib.returnInt32Argument(arg));
     }
     
+    public interface StringConstantLibrary extends Library {
+        String returnStringArgument(StringConstant s);
+        WString returnWStringArgument(StringConstant s);
+    }
+    protected StringConstantLibrary loadStringConstantLibrary() {
+        return (StringConstantLibrary)
+            Native.loadLibrary("testlib", StringConstantLibrary.class);
+    }
+    public void testStringConstantArgument() {
+        StringConstantLibrary lib = loadStringConstantLibrary();
+        StringConstant s = StringConstant.intern(MAGIC);
+        assertSame("Interned constant not reused", s, StringConstant.intern(MAGIC));
+        assertEquals("Expect string magic", MAGIC, lib.returnStringArgument(s));
+        assertEquals("Expect string magic", MAGIC, lib.returnStringArgument(s));
+        assertNull("Expect null pointer", lib.returnStringArgument(null));
+
+        StringConstant w = StringConstant.intern(MAGIC, true);
+        assertNotSame("Wide and narrow constants should differ", s, w);
+        assertEquals("Expect wide string magic", MAGIC,
+                     lib.returnWStringArgument(w).toString());
+    }
+
+    public interface CriticalArrayLibrary extends Library {
+        int fillInt8Buffer(byte[] buf, int len, byte value);
+        int fillInt32Buffer(int[] buf, int len, int value);
+        int fillDoubleBuffer(double[] buf, int len, double value);
+    }
+    protected CriticalArrayLibrary loadCriticalArrayLibrary() {
+        return (CriticalArrayLibrary)
+            Native.loadLibrary("testlib", CriticalArrayLibrary.class,
+                               Collections.singletonMap(Library.OPTION_CRITICAL_ARRAYS, Boolean.TRUE));
+    }
+    public void testCriticalArrayArguments() {
+        CriticalArrayLibrary lib = loadCriticalArrayLibrary();
+        byte[] bbuf = new byte[1024];
+        final byte BMAGIC = (byte)0xED;
+        assertEquals("Wrong return value", bbuf.length,
+                     lib.fillInt8Buffer(bbuf, bbuf.length, BMAGIC));
+        int[] ibuf = new int[1024];
+        final int IMAGIC = 0xABEDCF23;
+        assertEquals("Wrong return value", ibuf.length,
+                     lib.fillInt32Buffer(ibuf, ibuf.length, IMAGIC));
+        double[] dbuf = new double[1024];
+        final double DMAGIC = -118.625;
+        assertEquals("Wrong return value", dbuf.length,
+                     lib.fillDoubleBuffer(dbuf, dbuf.length, DMAGIC));
+        for (int i=0;i < 1024;i++) {
+            assertEquals("Bad byte value at index " + i, BMAGIC, bbuf[i]);
+            assertEquals("Bad int value at index " + i, IMAGIC, ibuf[i]);
+            assertEquals("Bad double value at index " + i, DMAGIC, dbuf[i], 0);
+        }
+    }
+
     public void testPointerArgumentReturn() {
         assertEquals("Expect null pointer",
                      null, lib.returnPointerArgument(null));
@@ -303,6 +358,50 @@ public class ArgumentsMarshalTest extends TestCase {
         assertEquals("Expect string magic", MAGIC, lib.returnStringArgument(MAGIC));
     }
 
+    public void testTemporaryStringArgumentMemory() {
+        StringBuffer buf = new StringBuffer();
+        while (buf.length() <= ScratchMemory.SIZE) {
+            buf.append(MAGIC);
+        }
+        String large = buf.toString();
+        assertEquals("Wrong value for string exceeding scratch space",
+                     large, lib.returnStringArgument(large));
+        for (int i=0;i < ScratchMemory.SIZE / MAGIC.length();i++) {
+            assertEquals("Wrong value for repeated string argument",
+                         MAGIC, lib.returnStringArgument(MAGIC));
+        }
+        assertEquals("Scratch space not reclaimed after call",
+                     0, ScratchMemory.get().mark());
+    }
+
+    public interface StringPointerLibrary extends Library {
+        Pointer returnStringArgument(String s);
+    }
+    protected StringPointerLibrary loadStringPointerLibrary() {
+        return (StringPointerLibrary)
+            Native.loadLibrary("testlib", StringPointerLibrary.class);
+    }
+    public void testStringArgumentOutlivesPointerResult() {
+        StringPointerLibrary plib = loadStringPointerLibrary();
+        Pointer p = plib.returnStringArgument(MAGIC);
+        assertEquals("Wrong string returned", MAGIC, p.getString(0));
+        lib.returnStringArgument("overwrite");
+        assertEquals("String argument memory reused by a later call",
+                     MAGIC, p.getString(0));
+    }
+
+    public void testRetainStringsOption() throws Exception {
+        Method m = TestLibrary.class.getMethod("returnStringArgument", new Class[] { String.class });
+        NativeLibrary nlib =
+            NativeLibrary.getInstance("testlib", Collections.singletonMap(Library.OPTION_RETAIN_STRINGS,
+                                                                          Collections.singleton(m.getName())));
+        assertTrue("Option should apply to named method",
+                   (nlib.getFunction(m.getName(), m).callFlags & Function.RETAIN_STRINGS) != 0);
+        m = TestLibrary.class.getMethod("returnInt32Argument", new Class[] { int.class });
+        assertEquals("Option should not apply to other methods",
+                     0, nlib.getFunction(m.getName(), m).callFlags & Function.RETAIN_STRINGS);
+    }
+
     public void testWStringArgumentReturn() {
         assertEquals("Expect null pointer", null, lib.returnStringArgument(null));
         assertEquals("Expect string magic", MAGIC, lib.returnStringArgument(MAGIC).toString());
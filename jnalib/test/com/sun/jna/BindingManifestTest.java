@@ -0,0 +1,161 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+import junit.framework.TestCase;
+
+public class BindingManifestTest extends TestCase {
+
+    public static class GeneratedStructure extends Structure {
+        public byte b;
+        public double d;
+        public Pointer p;
+        public NativeLong l;
+    }
+
+    public static class PrecomputedStructure extends Structure {
+        public int first;
+        public int second;
+    }
+
+    public static class StaleStructure extends Structure {
+        public int first;
+        public int second;
+    }
+
+    public static class NestingStructure extends Structure {
+        public int first;
+        public GeneratedStructure inner;
+    }
+
+    public static class VariableStructure extends Structure {
+        public int count;
+        public byte[] data = new byte[4];
+    }
+
+    public interface TestCallback extends Callback {
+        void first(int arg);
+        void second(int arg);
+    }
+
+    public interface SingleMethodCallback extends Callback {
+        void invoke(int arg);
+    }
+
+    private static Properties manifest(String key, String value) {
+        Properties props = new Properties();
+        props.setProperty(key, value);
+        return props;
+    }
+
+    private static int getAlignType(Class cls) {
+        return Structure.newInstance(cls).layoutInfo().alignType;
+    }
+
+    public void testGenerateManifest() throws Exception {
+        ClassLoader loader = getClass().getClassLoader();
+        Properties props = BindingManifest.generate(loader, Arrays.asList(new String[] {
+            GeneratedStructure.class.getName(),
+            VariableStructure.class.getName(),
+            TestCallback.class.getName(),
+            SingleMethodCallback.class.getName(),
+            getClass().getName(),
+        }), null);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        BindingManifest.write(props, os);
+        Properties loaded = new Properties();
+        loaded.load(new ByteArrayInputStream(os.toByteArray()));
+        assertEquals("Manifest not preserved when written", props, loaded);
+
+        assertNotNull("Missing platform", loaded.getProperty("jna.platform"));
+        assertNotNull("Missing version", loaded.getProperty("jna.version"));
+        assertNull("Variable layout should not be recorded",
+                   loaded.getProperty("structure." + VariableStructure.class.getName()));
+        assertNull("Unrelated class should not be recorded",
+                   loaded.getProperty("structure." + getClass().getName()));
+        assertEquals("Wrong callback method", "invoke",
+                     loaded.getProperty("callback." + SingleMethodCallback.class.getName()));
+        assertNull("Invalid callback should not be recorded",
+                   loaded.getProperty("callback." + TestCallback.class.getName()));
+
+        String value = loaded.getProperty("structure." + GeneratedStructure.class.getName());
+        assertNotNull("Structure layout not recorded", value);
+        BindingManifest.addEntries(loader, manifest("structure." + GeneratedStructure.class.getName(), value));
+        BindingManifest.Layout layout =
+            BindingManifest.getLayout(GeneratedStructure.class,
+                                      getAlignType(GeneratedStructure.class));
+        assertNotNull("Recorded layout not found", layout);
+        GeneratedStructure s = new GeneratedStructure();
+        assertEquals("Wrong size", s.size(), layout.size);
+        assertEquals("Wrong field count", 4, layout.names.length);
+        String[] names = { "b", "d", "p", "l" };
+        for (int i=0;i < names.length;i++) {
+            assertEquals("Wrong field order", names[i], layout.names[i]);
+            Structure.StructField sf = (Structure.StructField)s.fields().get(names[i]);
+            assertEquals("Wrong offset for " + names[i], sf.offset, layout.offsets[i]);
+            assertEquals("Wrong size for " + names[i], sf.size, layout.sizes[i]);
+        }
+    }
+
+    public void testUsePrecomputedLayout() {
+        String key = "structure." + PrecomputedStructure.class.getName();
+        int alignType = Structure.ALIGN_NONE;
+        // Deliberately differs from the computed layout
+        BindingManifest.addEntries(getClass().getClassLoader(),
+                                   manifest(key, alignType + " 16 4; first int 4 4; second int 8 4"));
+        PrecomputedStructure s = new PrecomputedStructure();
+        s.setAlignType(alignType);
+        assertEquals("Precomputed size not used", 16, s.size());
+        Structure.StructField sf = (Structure.StructField)s.fields().get("second");
+        assertEquals("Precomputed offset not used", 8, sf.offset);
+        s.second = 42;
+        s.write();
+        assertEquals("Field not written at precomputed offset", 42, s.getPointer().getInt(8));
+    }
+
+    public void testIgnoreStaleLayout() {
+        String key = "structure." + StaleStructure.class.getName();
+        int alignType = Structure.ALIGN_NONE;
+        BindingManifest.addEntries(getClass().getClassLoader(),
+                                   manifest(key, alignType + " 16 8; first long 0 8; second int 8 4"));
+        StaleStructure s = new StaleStructure();
+        s.setAlignType(alignType);
+        assertEquals("Stale layout should be ignored", 8, s.size());
+    }
+
+    public void testIgnoreChangedNestedLayout() {
+        String key = "structure." + NestingStructure.class.getName();
+        int alignType = getAlignType(GeneratedStructure.class);
+        BindingManifest.addEntries(getClass().getClassLoader(),
+                                   manifest(key, alignType + " 12 4; first int 0 4; inner "
+                                            + GeneratedStructure.class.getName() + " 4 8"));
+        NestingStructure s = new NestingStructure();
+        Structure.StructField sf = (Structure.StructField)s.fields().get("inner");
+        assertEquals("Nested size should be derived", s.inner.size(), sf.size);
+        assertTrue("Structure size should be derived", s.size() > 12);
+    }
+
+    public void testUsePrecomputedCallbackMethod() throws Exception {
+        BindingManifest.addEntries(getClass().getClassLoader(),
+                                   manifest("callback." + TestCallback.class.getName(), "second"));
+        assertEquals("Precomputed callback method not used",
+                     TestCallback.class.getMethod("second", new Class[] { int.class }),
+                     CallbackReference.getCallbackMethod(TestCallback.class));
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(BindingManifestTest.class);
+    }
+}
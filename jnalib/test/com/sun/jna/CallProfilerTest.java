@@ -0,0 +1,154 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import junit.framework.TestCase;
+
+public class CallProfilerTest extends TestCase {
+
+    public interface TestLibrary extends Library {
+        int returnInt32Argument(int arg);
+        double returnDoubleArgument(double arg);
+    }
+
+    public static class DirectTestLibrary {
+        public static native long returnInt64Argument(long arg);
+        static {
+            Native.register("testlib");
+        }
+    }
+
+    private static final int CALLS = 100;
+
+    private TestLibrary lib;
+    private CallProfiler profiler;
+
+    protected void setUp() {
+        lib = (TestLibrary)Native.loadLibrary("testlib", TestLibrary.class);
+        profiler = CallProfiler.getInstance();
+        profiler.reset();
+    }
+
+    protected void tearDown() {
+        profiler.setEnabled(false);
+        profiler.reset();
+        lib = null;
+    }
+
+    private static long sum(long[] histogram) {
+        long total = 0;
+        for (int i=0;i < histogram.length;i++) {
+            total += histogram[i];
+        }
+        return total;
+    }
+
+    private void assertCalls(String function, int count) {
+        CallStatistics.Snapshot s = profiler.getSnapshot(function);
+        assertEquals("Wrong call count for " + function, count, s.getCount());
+        for (int phase=CallStatistics.MARSHAL;phase <= CallStatistics.RESULT;phase++) {
+            assertEquals("Histogram does not match call count",
+                         count, sum(s.getHistogram(phase)));
+            assertTrue("Negative time", s.getTotalTime(phase) >= 0);
+        }
+    }
+
+    public void testDisabledByDefault() {
+        assertFalse("Profiling should be disabled by default", profiler.isEnabled());
+        lib.returnInt32Argument(0);
+        assertEquals("No calls should be recorded", 0, profiler.getSnapshot().length);
+    }
+
+    public void testRecordInterfaceMappedCalls() {
+        profiler.setEnabled(true);
+        for (int i=0;i < CALLS;i++) {
+            assertEquals("Wrong result", i, lib.returnInt32Argument(i));
+        }
+        lib.returnDoubleArgument(0);
+        profiler.setEnabled(false);
+        lib.returnInt32Argument(0);
+
+        assertCalls("testlib!returnInt32Argument", CALLS);
+        assertCalls("testlib!returnDoubleArgument", 1);
+        assertEquals("Wrong function names", 2, profiler.getFunctionNames().length);
+    }
+
+    public void testRecordDirectMappedCalls() {
+        profiler.setEnabled(true);
+        for (int i=0;i < CALLS;i++) {
+            assertEquals("Wrong result", i, DirectTestLibrary.returnInt64Argument(i));
+        }
+        profiler.setEnabled(false);
+        DirectTestLibrary.returnInt64Argument(0);
+
+        assertCalls("testlib!returnInt64Argument", CALLS);
+    }
+
+    public void testReset() {
+        profiler.setEnabled(true);
+        lib.returnInt32Argument(0);
+        profiler.reset();
+        assertEquals("Reset should discard recorded calls",
+                     0, profiler.getSnapshot().length);
+        lib.returnInt32Argument(0);
+        assertCalls("testlib!returnInt32Argument", 1);
+    }
+
+    public void testHistogram() {
+        CallStatistics stats = new CallStatistics("test");
+        stats.record(0, 1, 1000);
+        stats.record(0, 2, 1000);
+        stats.record(0, 3, 1000);
+        stats.record(0, 1000, 1000);
+        CallStatistics.Snapshot s = stats.getSnapshot();
+        assertEquals("Wrong count", 4, s.getCount());
+        assertEquals("Wrong total", 1006, s.getTotalTime(CallStatistics.NATIVE));
+        assertEquals("Wrong mean", 1000, s.getMeanTime(CallStatistics.RESULT), 0);
+        long[] histogram = s.getHistogram(CallStatistics.NATIVE);
+        assertEquals("Wrong bucket for 1ns", 1, histogram[1]);
+        assertEquals("Wrong bucket for 2-3ns", 2, histogram[2]);
+        assertEquals("Wrong bucket for 1000ns", 1, histogram[10]);
+        assertEquals("Wrong bucket for 0ns", 4, s.getHistogram(CallStatistics.MARSHAL)[0]);
+        assertEquals("Wrong median bound", 3, s.getPercentile(CallStatistics.NATIVE, 0.5));
+        assertEquals("Wrong maximum bound", 1023, s.getPercentile(CallStatistics.NATIVE, 1));
+        assertEquals("Longest durations share the last bucket",
+                     CallStatistics.BUCKETS - 1, CallStatistics.getBucket(Long.MAX_VALUE));
+    }
+
+    public void testManagementInterface() throws Exception {
+        profiler.setEnabled(true);
+        lib.returnInt32Argument(0);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(CallProfiler.OBJECT_NAME);
+        assertTrue("Profiler not registered", server.isRegistered(name));
+        assertEquals("Wrong enabled state", Boolean.TRUE,
+                     server.getAttribute(name, "Enabled"));
+        Object count = server.invoke(name, "getCallCount",
+                                     new Object[] { "testlib!returnInt32Argument" },
+                                     new String[] { String.class.getName() });
+        assertEquals("Wrong call count", new Long(1), count);
+        assertEquals("Wrong summary", 1,
+                     ((String[])server.getAttribute(name, "Summary")).length);
+        try {
+            profiler.getMeanTime("testlib!returnInt32Argument", "bogus");
+            fail("Unknown phase should be rejected");
+        }
+        catch(IllegalArgumentException e) {
+        }
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(CallProfilerTest.class);
+    }
+}
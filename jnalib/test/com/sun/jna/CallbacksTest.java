@@ -15,8 +15,12 @@ package com.sun.jna;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.WeakHashMap;
 
 import junit.framework.TestCase;
@@ -67,6 +71,7 @@ public class CallbacksTest extends TestCase {
             void callback();
         }
         void callVoidCallback(VoidCallback c);
+        void callVoidCallbackThreaded(VoidCallback c, int count, int ms);
         interface VoidCallbackCustom extends Callback {
             void customMethodName();
         }
@@ -259,6 +264,81 @@ public class CallbacksTest extends TestCase {
         }
         assertEquals("Callback trampoline not freed", 0, cbstruct.peer);
     }
+
+    public void testReuseTrampolineOfSameSignature() {
+        final boolean[] called = { false, false };
+        TestLibrary.VoidCallback cb = new TestLibrary.VoidCallback() {
+            public void callback() {
+                called[0] = true;
+            }
+        };
+        lib.callVoidCallback(cb);
+        assertTrue("Callback not called", called[0]);
+        Map refs = CallbackReference.callbackMap.containsKey(cb)
+            ? CallbackReference.callbackMap : CallbackReference.directCallbackMap;
+        CallbackReference ref;
+        synchronized(refs) {
+            ref = (CallbackReference)refs.remove(cb);
+        }
+        Pointer trampoline = ref.getTrampoline();
+        ref.dispose();
+        assertEquals("Trampoline not released", 0, ref.cbstruct.peer);
+
+        TestLibrary.VoidCallback cb2 = new TestLibrary.VoidCallback() {
+            public void callback() {
+                called[1] = true;
+            }
+        };
+        lib.callVoidCallback(cb2);
+        assertTrue("Callback using pooled trampoline not called", called[1]);
+        synchronized(refs) {
+            ref = (CallbackReference)refs.get(cb2);
+        }
+        assertEquals("Trampoline of same signature not reused", trampoline,
+                     ref.getTrampoline());
+    }
+
+    private static Map getCallbackMap(Callback cb) {
+        return CallbackReference.callbackMap.containsKey(cb)
+            ? CallbackReference.callbackMap : CallbackReference.directCallbackMap;
+    }
+
+    private static Pointer getTrampoline(Callback cb) {
+        Map refs = getCallbackMap(cb);
+        synchronized(refs) {
+            return ((CallbackReference)refs.get(cb)).getTrampoline();
+        }
+    }
+
+    public void testDoNotReuseTrampolineWhileInvoked() {
+        final Pointer[] trampolines = new Pointer[2];
+        TestLibrary.VoidCallback cb = new TestLibrary.VoidCallback() {
+            public void callback() {
+                Map refs = getCallbackMap(this);
+                CallbackReference ref;
+                synchronized(refs) {
+                    ref = (CallbackReference)refs.remove(this);
+                }
+                trampolines[0] = ref.getTrampoline();
+                ref.dispose();
+                TestLibrary.VoidCallback cb2 = new TestLibrary.VoidCallback() {
+                    public void callback() { }
+                };
+                lib.callVoidCallback(cb2);
+                trampolines[1] = getTrampoline(cb2);
+            }
+        };
+        lib.callVoidCallback(cb);
+        assertNotNull("Callback not called", trampolines[0]);
+        assertFalse("Trampoline reused while still being invoked",
+                    trampolines[0].equals(trampolines[1]));
+        TestLibrary.VoidCallback cb3 = new TestLibrary.VoidCallback() {
+            public void callback() { }
+        };
+        lib.callVoidCallback(cb3);
+        assertEquals("Trampoline not reused once idle", trampolines[0],
+                     getTrampoline(cb3));
+    }
     
     public void testFindCallbackInterface() {
         TestLibrary.Int32Callback cb = new TestLibrary.Int32Callback() {
@@ -801,6 +881,112 @@ public class CallbacksTest extends TestCase {
         lib.callVoidCallback(cb);
     }
 
+    public void testCallbackFromNativeThreadDetachedByDefault() {
+        final Set threads = new HashSet();
+        TestLibrary.VoidCallback cb = new TestLibrary.VoidCallback() {
+            public void callback() {
+                threads.add(Thread.currentThread());
+            }
+        };
+        final int COUNT = 3;
+        lib.callVoidCallbackThreaded(cb, COUNT, 0);
+        assertEquals("Native thread should be attached for each callback",
+                     COUNT, threads.size());
+    }
+
+    public void testCallbackFromNativeThreadRemainsAttached() throws Exception {
+        final List threads = new ArrayList();
+        TestLibrary.VoidCallback cb = new TestLibrary.VoidCallback() {
+            public void callback() {
+                threads.add(Thread.currentThread());
+            }
+        };
+        Native.setCallbackThreadInitializer(cb, new CallbackThreadInitializer());
+        final int COUNT = 3;
+        lib.callVoidCallbackThreaded(cb, COUNT, 0);
+        assertEquals("Wrong number of callbacks", COUNT, threads.size());
+        Thread thread = (Thread)threads.get(0);
+        for (int i=1;i < COUNT;i++) {
+            assertSame("Native thread should remain attached",
+                       thread, threads.get(i));
+        }
+        assertTrue("Native thread should be attached as daemon",
+                   thread.isDaemon());
+        long start = System.currentTimeMillis();
+        while (thread.isAlive()) {
+            if (System.currentTimeMillis() - start > 5000) {
+                fail("Native thread not detached on exit");
+            }
+            Thread.sleep(10);
+        }
+        try {
+            Native.setCallbackThreadInitializer(cb, null);
+            fail("Initializer may not change once callback is in use");
+        }
+        catch(IllegalStateException e) {
+        }
+    }
+
+    public void testAsynchronousCallback() throws Exception {
+        final List threads = new ArrayList();
+        TestLibrary.VoidCallback cb = new TestLibrary.VoidCallback() {
+            public void callback() {
+                synchronized(threads) {
+                    threads.add(Thread.currentThread());
+                    threads.notifyAll();
+                }
+            }
+        };
+        CallbackDispatcher dispatcher = new CallbackDispatcher();
+        try {
+            Native.setCallbackExecutor(cb, dispatcher);
+            final int COUNT = 3;
+            for (int i=0;i < COUNT;i++) {
+                lib.callVoidCallback(cb);
+            }
+            long start = System.currentTimeMillis();
+            synchronized(threads) {
+                while (threads.size() < COUNT) {
+                    if (System.currentTimeMillis() - start > 5000) {
+                        fail("Asynchronous callback not invoked");
+                    }
+                    threads.wait(100);
+                }
+            }
+            for (int i=0;i < COUNT;i++) {
+                assertTrue("Callback should run on the dispatch thread",
+                           dispatcher.isDispatchThread((Thread)threads.get(i)));
+            }
+            try {
+                Native.setCallbackExecutor(cb, null);
+                fail("Executor may not change once callback is in use");
+            }
+            catch(IllegalStateException e) {
+            }
+        }
+        finally {
+            dispatcher.shutdown();
+        }
+    }
+
+    public void testAsynchronousCallbackRequiresVoidResult() {
+        TestLibrary.Int32Callback cb = new TestLibrary.Int32Callback() {
+            public int callback(int arg, int arg2) {
+                return arg + arg2;
+            }
+        };
+        try {
+            Native.setCallbackExecutor(cb, new CallbackExecutor() {
+                public void execute(Runnable task) {
+                    task.run();
+                }
+            });
+            fail("Asynchronous dispatch requires a void callback");
+        }
+        catch(IllegalArgumentException e) {
+        }
+    }
+
     public static interface CallbackTestLibrary extends Library {
         final TypeMapper _MAPPER = new DefaultTypeMapper() {
             {
@@ -18,6 +18,8 @@ import java.nio.DoubleBuffer;
 import java.nio.IntBuffer;
 import java.nio.LongBuffer;
 import java.nio.ShortBuffer;
+import java.util.Collections;
+import java.util.Map;
 
 /** Exercise a range of native methods.
  *
@@ -40,23 +42,19 @@ public class DirectArgumentsMarshalTest extends ArgumentsMarshalTest {
         public native String returnStringArgument(String s);
         public native WString returnWStringArgument(WString s);
         public native Pointer returnPointerArgument(Pointer p);
-        public String returnStringArrayElement(String[] args, int which) {throw new UnsupportedOperationException();}
-        public WString returnWideStringArrayElement(WString[] args, int which) {throw new UnsupportedOperationException();}
-        public Pointer returnPointerArrayElement(Pointer[] args, int which) {throw new UnsupportedOperationException();}
-        public TestPointerType returnPointerArrayElement(TestPointerType[] args, int which) {throw new UnsupportedOperationException();}
-        public CheckFieldAlignment returnPointerArrayElement(CheckFieldAlignment.ByReference[] args, int which) {throw new UnsupportedOperationException();}
-        public int returnRotatedArgumentCount(String[] args) {throw new UnsupportedOperationException();}
+        public native String returnStringArrayElement(String[] args, int which);
+        public native WString returnWideStringArrayElement(WString[] args, int which);
+        public native Pointer returnPointerArrayElement(Pointer[] args, int which);
+        public native TestPointerType returnPointerArrayElement(TestPointerType[] args, int which);
+        public native CheckFieldAlignment returnPointerArrayElement(CheckFieldAlignment.ByReference[] args, int which);
+        public native int returnRotatedArgumentCount(String[] args);
 
         public native long checkInt64ArgumentAlignment(int i, long j, int i2, long j2);
         public native double checkDoubleArgumentAlignment(float i, double j, float i2, double j2);
         public native Pointer testStructurePointerArgument(CheckFieldAlignment p);
         public native double testStructureByValueArgument(CheckFieldAlignment.ByValue p);
-        public int testStructureArrayInitialization(CheckFieldAlignment[] p, int len) {
-            throw new UnsupportedOperationException();
-        }
-        public void modifyStructureArray(CheckFieldAlignment[] p, int length) {
-            throw new UnsupportedOperationException(); 
-        }
+        public native int testStructureArrayInitialization(CheckFieldAlignment[] p, int len);
+        public native void modifyStructureArray(CheckFieldAlignment[] p, int length);
             
         public native int fillInt8Buffer(byte[] buf, int len, byte value);
         public native int fillInt16Buffer(short[] buf, int len, short value);
@@ -108,6 +106,32 @@ public class DirectArgumentsMarshalTest extends ArgumentsMarshalTest {
         return new DirectNativeMappedLibrary();
     }
 
+    public static class DirectStringConstantLibrary implements StringConstantLibrary {
+        public native String returnStringArgument(StringConstant s);
+        public native WString returnWStringArgument(StringConstant s);
+        static {
+            Native.register("testlib");
+        }
+    }
+    protected StringConstantLibrary loadStringConstantLibrary() {
+        return new DirectStringConstantLibrary();
+    }
+
+    public static class DirectCriticalArrayLibrary implements CriticalArrayLibrary {
+        public native int fillInt8Buffer(byte[] buf, int len, byte value);
+        public native int fillInt32Buffer(int[] buf, int len, int value);
+        public native int fillDoubleBuffer(double[] buf, int len, double value);
+        static {
+            // Only pin the byte array argument
+            Map options = Collections.singletonMap(Library.OPTION_CRITICAL_ARRAYS,
+                                                   Collections.singleton("fillInt8Buffer"));
+            Native.register(NativeLibrary.getInstance("testlib", options));
+        }
+    }
+    protected CriticalArrayLibrary loadCriticalArrayLibrary() {
+        return new DirectCriticalArrayLibrary();
+    }
+
     // This test crashes on w32 IBM J9 unless -Xint is used
     // (jvmwi3260-20080415_18762)
     public void testWideCharArgument() {
@@ -127,16 +151,85 @@ public class DirectArgumentsMarshalTest extends ArgumentsMarshalTest {
         super.testWStringArgumentReturn();
     }
 
-    // Override tests not yet supported
-    public void testStringArrayArgument() { }
-    public void testWriteStructureArrayArgumentMemory() { }
-    public void testUninitializedStructureArrayArgument() { }
-    public void testRejectNoncontiguousStructureArrayArgument() { }
-    public void testWideStringArrayArgument() { }
-    public void testPointerArrayArgument() { }
-    public void testNativeMappedArrayArgument() { }
-    public void testStructureByReferenceArrayArgument() { }
-    public void testModifiedCharArrayArgument() { }
+    public static class LazyTestLibrary {
+        public static native boolean returnBooleanArgument(boolean arg);
+        public static native int returnInt32Argument(int arg);
+        public static native long returnLongArgument(long arg);
+        public static native float returnFloatArgument(float arg);
+        public static native double returnDoubleArgument(double arg);
+        public static native String returnStringArgument(String arg);
+        public static native int missingFunction(int arg);
+        static {
+            Native.register(NativeLibrary.getInstance("testlib", Collections.singletonMap(Library.OPTION_LAZY_BINDING, Boolean.TRUE)));
+        }
+    }
+
+    public static class ParallelTestLibrary {
+        public static native boolean returnBooleanArgument(boolean arg);
+        public static native int returnInt32Argument(int arg);
+        public static native long returnLongArgument(long arg);
+        public static native float returnFloatArgument(float arg);
+        public static native double returnDoubleArgument(double arg);
+        public static native String returnStringArgument(String arg);
+        public static native int missingFunction(int arg);
+        static {
+            Native.register(NativeLibrary.getInstance("testlib", Collections.singletonMap(Library.OPTION_PARALLEL_BINDING, new Integer(2))));
+        }
+    }
+
+    public void testLazyBinding() {
+        for (int i=0;i < 2;i++) {
+            assertTrue("Wrong boolean", LazyTestLibrary.returnBooleanArgument(true));
+            assertEquals("Wrong int", 42, LazyTestLibrary.returnInt32Argument(42));
+            assertEquals("Wrong long", 0x123456789L, LazyTestLibrary.returnLongArgument(0x123456789L));
+            assertEquals("Wrong float", 1.5f, LazyTestLibrary.returnFloatArgument(1.5f), 0);
+            assertEquals("Wrong double", 2.5, LazyTestLibrary.returnDoubleArgument(2.5), 0);
+            assertEquals("Wrong string", "lazy", LazyTestLibrary.returnStringArgument("lazy"));
+        }
+        try {
+            LazyTestLibrary.missingFunction(0);
+            fail("Missing function should fail when invoked");
+        }
+        catch(UnsatisfiedLinkError e) {
+        }
+    }
+
+    public void testParallelBinding() throws Exception {
+        final Throwable[] errors = { null };
+        Thread[] threads = new Thread[4];
+        for (int t=0;t < threads.length;t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i=0;i < 100;i++) {
+                            assertTrue("Wrong boolean", ParallelTestLibrary.returnBooleanArgument(true));
+                            assertEquals("Wrong int", i, ParallelTestLibrary.returnInt32Argument(i));
+                            assertEquals("Wrong long", i, ParallelTestLibrary.returnLongArgument(i));
+                            assertEquals("Wrong float", i, ParallelTestLibrary.returnFloatArgument(i), 0);
+                            assertEquals("Wrong double", i, ParallelTestLibrary.returnDoubleArgument(i), 0);
+                            assertEquals("Wrong string", "parallel", ParallelTestLibrary.returnStringArgument("parallel"));
+                        }
+                    }
+                    catch(Throwable e) {
+                        errors[0] = e;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (int t=0;t < threads.length;t++) {
+            threads[t].join();
+        }
+        if (errors[0] != null) {
+            throw new Error("Parallel binding failed: " + errors[0], errors[0]);
+        }
+        try {
+            ParallelTestLibrary.missingFunction(0);
+            fail("Missing function should fail when invoked");
+        }
+        catch(UnsatisfiedLinkError e) {
+        }
+    }
 
     public static void main(java.lang.String[] argList) {
         junit.textui.TestRunner.run(DirectArgumentsMarshalTest.class);
@@ -42,6 +42,7 @@ public class DirectCallbacksTest extends CallbacksTest {
         public native Int32CallbackX returnCallback();
         public native Int32CallbackX returnCallbackArgument(Int32CallbackX cb);
         public native void callVoidCallback(VoidCallback c);
+        public native void callVoidCallbackThreaded(VoidCallback c, int count, int ms);
 
         public native int callInt32Callback(CustomCallback cb, int arg1, int arg2);
         public native void callCallbackInStruct(CbStruct s);
@@ -67,6 +68,22 @@ public class DirectCallbacksTest extends CallbacksTest {
         return new DirectCallbackTestLibrary();
     }
 
+    public void testCallbackWithTypeMapperUsesDirectMapping() {
+        CallbackTestLibrary lib = loadCallbackTestLibrary();
+        CallbackTestLibrary.DoubleCallback cb = new CallbackTestLibrary.DoubleCallback() {
+            public double callback(double arg, double arg2) {
+                return arg + arg2;
+            }
+        };
+        assertEquals("Incorrect result of callback invocation",
+                     3, lib.callInt32Callback(cb, 1, 2), 0);
+        CallbackReference ref = (CallbackReference)
+            CallbackReference.directCallbackMap.get(cb);
+        assertNotNull("Callback should be direct-mapped", ref);
+        assertNull("TypeMapper conversions should not require a proxy",
+                   ref.proxy);
+    }
+
     // Currently unsupported tests
     public void testCallStringArrayCallback() { }
     public void testCallbackExceptionHandlerWithCallbackProxy() { }
@@ -157,6 +157,39 @@ public class DirectTypeMapperTest extends TestCase {
                     lib.returnInt32Argument(false));
     }
 
+    public static class DirectTestLibraryMultipleArguments {
+        public native long checkInt64ArgumentAlignment(String i, StringBuffer j, String i2, StringBuffer j2);
+        static {
+            DefaultTypeMapper mapper = new DefaultTypeMapper();
+            mapper.addToNativeConverter(String.class, new ToNativeConverter() {
+                public Object toNative(Object arg, ToNativeContext ctx) {
+                    return Integer.valueOf((String)arg, 16);
+                }
+                public Class nativeType() {
+                    return Integer.class;
+                }
+            });
+            mapper.addToNativeConverter(StringBuffer.class, new ToNativeConverter() {
+                public Object toNative(Object arg, ToNativeContext ctx) {
+                    return Long.valueOf(arg.toString(), 16);
+                }
+                public Class nativeType() {
+                    return Long.class;
+                }
+            });
+            Map options = new HashMap();
+            options.put(Library.OPTION_TYPE_MAPPER, mapper);
+            Native.register(NativeLibrary.getInstance("testlib", options));
+        }
+    }
+    public void testMultipleArgumentConversions() {
+        DirectTestLibraryMultipleArguments lib = new DirectTestLibraryMultipleArguments();
+        long value = lib.checkInt64ArgumentAlignment("10101010", new StringBuffer("1111111111111111"),
+                                                     "01010101", new StringBuffer("2222222222222222"));
+        assertEquals("Multiple converted arguments not passed correctly",
+                     0x3333333344444444L, value);
+    }
+
     public static void main(String[] args) {
         junit.textui.TestRunner.run(DirectTypeMapperTest.class);
     }
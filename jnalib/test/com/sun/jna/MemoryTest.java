@@ -137,6 +137,192 @@ public class MemoryTest extends TestCase {
         assertNull("Memory not GC'd after buffer GC'd\n", ref.get());
     }
 
+    public void testPooledAllocatorReusesBlocks() {
+        PooledMemoryAllocator pool = new PooledMemoryAllocator(256, 4);
+        try {
+            long peer = pool.allocate(24);
+            pool.release(peer, 24);
+            assertEquals("Block in same size class not reused",
+                         peer, pool.allocate(32));
+            pool.release(peer, 32);
+            long large = pool.allocate(1024);
+            assertTrue("Unpooled block should be allocated", large != 0);
+            pool.release(large, 1024);
+        }
+        finally {
+            pool.trim();
+        }
+    }
+
+    public void testMemoryUsesInstalledAllocator() {
+        final int[] counts = { 0, 0 };
+        MemoryAllocator allocator = new MemoryAllocator() {
+            public long allocate(long size) {
+                ++counts[0];
+                return Memory.malloc(size);
+            }
+            public void release(long peer, long size) {
+                ++counts[1];
+                Memory.free(peer);
+            }
+        };
+        MemoryAllocator old = Memory.getAllocator();
+        Memory m;
+        Memory.setAllocator(allocator);
+        try {
+            m = new Memory(10);
+        }
+        finally {
+            Memory.setAllocator(old);
+        }
+        assertEquals("Allocator not used", 1, counts[0]);
+        m.setInt(0, 42);
+        assertEquals("Wrong value read from allocated memory", 42, m.getInt(0));
+        m.dispose();
+        assertEquals("Memory not returned to its allocator", 1, counts[1]);
+        assertFalse("Memory should be invalid after release", m.valid());
+        m.dispose();
+        assertEquals("Memory released more than once", 1, counts[1]);
+    }
+
+    public void testDispose() {
+        Memory m = new Memory(16);
+        Pointer shared = m.share(8);
+        shared.setInt(0, 1);
+        m.dispose();
+        assertFalse("Memory should be invalid after dispose", m.valid());
+        try {
+            m.getInt(0);
+            fail("Access to disposed memory should fail");
+        }
+        catch(IllegalStateException e) { }
+        try {
+            shared.getInt(0);
+            fail("Access to view of disposed memory should fail");
+        }
+        catch(IllegalStateException e) { }
+    }
+
+    public void testFreeUnreferencedMemoryWithoutFinalizer() throws Exception {
+        final int[] released = { 0 };
+        MemoryAllocator allocator = new MemoryAllocator() {
+            public long allocate(long size) {
+                return Memory.malloc(size);
+            }
+            public void release(long peer, long size) {
+                ++released[0];
+                Memory.free(peer);
+            }
+        };
+        MemoryAllocator old = Memory.getAllocator();
+        Memory.setAllocator(allocator);
+        try {
+            new Memory(10);
+        }
+        finally {
+            Memory.setAllocator(old);
+        }
+        for (int i=0;i < 100 && released[0] == 0;i++) {
+            System.gc();
+            Thread.sleep(10);
+            Memory.purge();
+        }
+        assertEquals("Unreferenced memory not freed", 1, released[0]);
+    }
+
+    public void testFreeUnreferencedMemoryInBackground() throws Exception {
+        final int[] released = { 0 };
+        MemoryAllocator allocator = new MemoryAllocator() {
+            public long allocate(long size) {
+                return Memory.malloc(size);
+            }
+            public synchronized void release(long peer, long size) {
+                ++released[0];
+                Memory.free(peer);
+            }
+        };
+        MemoryAllocator old = Memory.getAllocator();
+        Memory.setAllocator(allocator);
+        try {
+            new Memory(10);
+        }
+        finally {
+            Memory.setAllocator(old);
+        }
+        // No further allocations or explicit purge
+        for (int i=0;i < 100;i++) {
+            System.gc();
+            Thread.sleep(10);
+            synchronized(allocator) {
+                if (released[0] != 0) {
+                    break;
+                }
+            }
+        }
+        synchronized(allocator) {
+            assertEquals("Unreferenced memory not freed in the background", 1, released[0]);
+        }
+    }
+
+    private static boolean isCleanerRunning() {
+        Thread[] threads = new Thread[Thread.activeCount() * 2 + 1];
+        int count = Thread.enumerate(threads);
+        for (int i=0;i < count;i++) {
+            if ("JNA Memory Cleaner".equals(threads[i].getName())
+                && threads[i].isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void waitForCleanerToStop() throws InterruptedException {
+        for (int i=0;i < 100 && isCleanerRunning();i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+    }
+
+    public void testCleanerStopsAfterFreeingPooledMemory() throws Exception {
+        MemoryAllocator old = Memory.getAllocator();
+        Memory.setAllocator(new PooledMemoryAllocator());
+        try {
+            new Memory(10);
+        }
+        finally {
+            Memory.setAllocator(old);
+        }
+        waitForCleanerToStop();
+        assertFalse("Cleaner still running with no memory outstanding",
+                    isCleanerRunning());
+    }
+
+    public void testCleanerStopsWithScratchMemoryInUse() throws Exception {
+        assertNotNull("No scratch space",
+                      ScratchMemory.get().putString("scratch", false));
+        waitForCleanerToStop();
+        assertFalse("Scratch memory keeps the cleaner running",
+                    isCleanerRunning());
+    }
+
+    public void testMemoryScope() {
+        Memory outside = new Memory(8);
+        Memory inner;
+        Memory nested;
+        MemoryScope scope = new MemoryScope();
+        try {
+            inner = new Memory(8);
+            new MemoryScope();
+            nested = new Memory(8);
+        }
+        finally {
+            scope.dispose();
+        }
+        assertFalse("Memory allocated within scope not freed", inner.valid());
+        assertFalse("Memory allocated within nested scope not freed", nested.valid());
+        assertTrue("Memory allocated outside scope should not be freed", outside.valid());
+    }
+
     public static void main(String[] args) {
         junit.textui.TestRunner.run(MemoryTest.class);
     }
@@ -13,9 +13,15 @@
 package com.sun.jna;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 import junit.framework.TestCase;
 
@@ -111,6 +117,17 @@ public class NativeLibraryTest extends TestCase {
         assertNull("Library not GC'd", ref.get());
     }
     
+    public void testFunctionsCachedByNameAndFlags() {
+        NativeLibrary lib = NativeLibrary.getInstance("testlib");
+        Function f = lib.getFunction("callCount");
+        assertSame("Function should be cached", f, lib.getFunction("callCount"));
+        Function f2 = lib.getFunction("callCount", Function.THROW_LAST_ERROR);
+        assertNotSame("Functions with different call flags should differ", f, f2);
+        assertSame("Function should be cached by call flags",
+                   f2, lib.getFunction("callCount", Function.THROW_LAST_ERROR));
+        assertSame("Cached function lost", f, lib.getFunction("callCount"));
+    }
+
     public void testLoadFrameworkLibrary() {
         if (Platform.isMac()) {
             try {
@@ -188,6 +205,87 @@ public class NativeLibraryTest extends TestCase {
         process.getFunction("printf");
     }
 
+    private String findResolutionKey(String path) {
+        synchronized(NativeLibrary.resolvedPaths) {
+            for (Iterator i=NativeLibrary.resolvedPaths.entrySet().iterator();i.hasNext();) {
+                Map.Entry e = (Map.Entry)i.next();
+                if (((String)e.getValue()).endsWith("|" + path)) {
+                    return (String)e.getKey();
+                }
+            }
+        }
+        return null;
+    }
+
+    public void testCacheResolvedLibraryPath() throws Exception {
+        // Resolve the library before the cache is enabled, as earlier
+        // loads may already have done
+        Map options = Collections.singletonMap("resolution", "uncached");
+        NativeLibrary.getInstance("testlib", options);
+        File cache = File.createTempFile("jna-resolved", ".properties");
+        cache.delete();
+        System.setProperty("jna.library.cache", cache.getAbsolutePath());
+        try {
+            options = Collections.singletonMap("resolution", "first");
+            NativeLibrary lib = NativeLibrary.getInstance("testlib", options);
+            String path = lib.getFile().getAbsolutePath();
+            String key = findResolutionKey(path);
+            assertNotNull("Resolved library path not cached", key);
+
+            Properties saved = new Properties();
+            FileInputStream is = new FileInputStream(cache);
+            saved.load(is);
+            is.close();
+            assertEquals("Resolved library path not saved",
+                         NativeLibrary.resolvedPaths.getProperty(key),
+                         saved.getProperty(key));
+
+            // A modified file must be resolved again
+            NativeLibrary.resolvedPaths.setProperty(key, "1|" + path);
+            options = Collections.singletonMap("resolution", "second");
+            lib = NativeLibrary.getInstance("testlib", options);
+            assertEquals("Wrong library resolved", path, lib.getFile().getAbsolutePath());
+            assertEquals("Stale resolution not replaced",
+                         lib.getFile().lastModified() + "|" + path,
+                         NativeLibrary.resolvedPaths.getProperty(key));
+        }
+        finally {
+            System.getProperties().remove("jna.library.cache");
+            cache.delete();
+        }
+    }
+
+    public void testIgnoreCorruptResolvedLibraryPath() throws Exception {
+        Map options = Collections.singletonMap("resolution", "corrupt");
+        String path = NativeLibrary.getInstance("testlib", options).getFile().getAbsolutePath();
+        String key = findResolutionKey(path);
+        assertNotNull("Resolved library path not cached", key);
+
+        String[] corrupt = { path, "modified|" + path };
+        for (int i=0;i < corrupt.length;i++) {
+            File cache = File.createTempFile("jna-resolved", ".properties");
+            Properties saved = new Properties();
+            saved.setProperty(key, corrupt[i]);
+            FileOutputStream os = new FileOutputStream(cache);
+            saved.store(os, null);
+            os.close();
+            NativeLibrary.resolvedPaths.remove(key);
+            System.setProperty("jna.library.cache", cache.getAbsolutePath());
+            try {
+                options = Collections.singletonMap("resolution", "corrupt" + i);
+                NativeLibrary lib = NativeLibrary.getInstance("testlib", options);
+                assertEquals("Wrong library resolved", path, lib.getFile().getAbsolutePath());
+                assertEquals("Corrupt resolution not replaced: " + corrupt[i],
+                             lib.getFile().lastModified() + "|" + path,
+                             NativeLibrary.resolvedPaths.getProperty(key));
+            }
+            finally {
+                System.getProperties().remove("jna.library.cache");
+                cache.delete();
+            }
+        }
+    }
+
     public static void main(String[] args) {
         junit.textui.TestRunner.run(NativeLibraryTest.class);
     }
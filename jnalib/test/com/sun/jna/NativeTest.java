@@ -12,6 +12,8 @@
  */
 package com.sun.jna;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
@@ -300,6 +302,36 @@ public class NativeTest extends TestCase {
         assertEquals("Bad replace", "abcaefa", Native.replace("z", "a", "zbczefz"));
     }
 
+    public void testCachedNativeLibraryExtractedOnce() throws Exception {
+        File dir = File.createTempFile("jna-cache", "");
+        dir.delete();
+        String resource = "/com/sun/jna/Native.class";
+        File lib = Native.getCachedNativeLibrary(dir, resource, "test.bin");
+        try {
+            assertTrue("Cached copy not created", lib.isFile());
+            File[] files = lib.getParentFile().listFiles();
+            assertEquals("Temporary files left in cache", 1, files.length);
+            lib.setLastModified(lib.lastModified() - 60000);
+            long modified = lib.lastModified();
+            assertEquals("Valid cached copy should be reused", lib,
+                         Native.getCachedNativeLibrary(dir, resource, "test.bin"));
+            assertEquals("Valid cached copy should not be rewritten",
+                         modified, lib.lastModified());
+
+            FileOutputStream fos = new FileOutputStream(lib);
+            fos.write(new byte[] { 0 });
+            fos.close();
+            assertEquals("Corrupt cached copy should be replaced", lib,
+                         Native.getCachedNativeLibrary(dir, resource, "test.bin"));
+            assertTrue("Cached copy not restored", lib.length() > 1);
+        }
+        finally {
+            lib.delete();
+            lib.getParentFile().delete();
+            dir.delete();
+        }
+    }
+
     public static void main(String[] args) {
         junit.textui.TestRunner.run(NativeTest.class);
     }
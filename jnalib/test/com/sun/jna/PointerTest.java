@@ -184,6 +184,22 @@ public class PointerTest extends TestCase {
         assertEquals("Double not read from memory", MAGIC, 
                 db.get(0));
     }
+    public void testGetStringWithMaxLength() {
+        Memory m = new Memory(8);
+        m.write(0, new byte[] { 'a', 'b', 'c', 'd', 0, 'e', 'f', 'g' }, 0, 8);
+        assertEquals("Bounded string should end at maximum length",
+                     "abc", m.getString(0, 3));
+        assertEquals("Bounded string should end at NUL terminator",
+                     "abcd", m.getString(0, 8));
+        assertEquals("Wrong bounded string at offset",
+                     "efg", m.getString(5, 3));
+        try {
+            m.getString(5, 4);
+            fail("Bounded read should not exceed available memory");
+        }
+        catch(IndexOutOfBoundsException e) { }
+    }
+
     public void testSetStringWithEncoding() throws Exception {
         String old = System.getProperty("jna.encoding");
         String VALUE = "\u0444\u0438\u0441\u0432\u0443";
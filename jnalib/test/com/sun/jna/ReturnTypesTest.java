@@ -137,6 +137,17 @@ public class ReturnTypesTest extends TestCase {
                      Integer.toHexString(lib.returnInt32Magic()));
     }
 
+    public void testSmallIntegerResultsNotAllocated() {
+        Function f = NativeLibrary.getInstance("testlib").getFunction("returnInt32Zero");
+        assertSame("Small Integer results should be shared",
+                   f.invoke(Integer.class, new Object[0]),
+                   f.invoke(Integer.class, new Object[0]));
+        f = NativeLibrary.getInstance("testlib").getFunction("returnInt64Zero");
+        assertSame("Small Long results should be shared",
+                   f.invoke(Long.class, new Object[0]),
+                   f.invoke(Long.class, new Object[0]));
+    }
+
     public void testInvokeLong() {
         assertEquals("Expect 64-bit zero", 0L, lib.returnInt64Zero());
         assertEquals("Expect 64-bit magic", 
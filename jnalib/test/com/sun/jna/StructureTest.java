@@ -12,6 +12,9 @@
  */
 package com.sun.jna;
 
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.DoubleBuffer;
@@ -1247,4 +1250,303 @@ public class StructureTest extends TestCase {
         assertFalse("Not equal some other object", s.equals(new Object()));
     }
 
+
+    public static class SharedLayoutStructure extends Structure {
+        public int field;
+        public SharedLayoutStructure() { }
+        public SharedLayoutStructure(int alignType) {
+            super(null, alignType);
+        }
+    }
+
+    public void testLayoutSharedByInstances() {
+        Structure s1 = new SharedLayoutStructure();
+        Structure s2 = new SharedLayoutStructure();
+        assertSame("Layout should be shared between instances",
+                   s1.fields(), s2.fields());
+        assertFalse("Layout should not be variable", s1.hasVariableLayout());
+
+        Structure s3 = new SharedLayoutStructure(Structure.ALIGN_NONE);
+        assertNotSame("Layout should depend on alignment",
+                      s1.fields(), s3.fields());
+    }
+
+    public void testArrayFieldLayoutNotShared() {
+        class TestStructure extends Structure {
+            public byte[] field;
+            public TestStructure(int size) {
+                field = new byte[size];
+                allocateMemory();
+            }
+        }
+        Structure s1 = new TestStructure(4);
+        Structure s2 = new TestStructure(8);
+        assertTrue("Layout should be variable", s1.hasVariableLayout());
+        assertEquals("Wrong size", 4, s1.size());
+        assertEquals("Wrong size", 8, s2.size());
+    }
+
+    public void testNestedStructureInitializedFromSharedLayout() {
+        class TestStructure extends Structure {
+            public SharedLayoutStructure inner;
+        }
+        Structure s1 = new TestStructure();
+        TestStructure s2 = new TestStructure();
+        assertSame("Layout should be shared", s1.fields(), s2.fields());
+        assertNotNull("Nested structure should be initialized", s2.inner);
+    }
+
+    public static class ConvertedValue {
+        boolean wide;
+        public ConvertedValue(boolean wide) { this.wide = wide; }
+    }
+    public static class ConvertedFieldStructure extends Structure {
+        private static final DefaultTypeMapper MAPPER = new DefaultTypeMapper();
+        static {
+            MAPPER.addTypeConverter(ConvertedValue.class, new TypeConverter() {
+                public Object fromNative(Object value, FromNativeContext context) {
+                    return new ConvertedValue(value instanceof Long);
+                }
+                public Class nativeType() {
+                    return Integer.class;
+                }
+                public Object toNative(Object value, ToNativeContext ctx) {
+                    return value != null && ((ConvertedValue)value).wide
+                        ? (Object)new Long(0) : (Object)new Integer(0);
+                }
+            });
+        }
+        public ConvertedValue field;
+        public int last;
+        public ConvertedFieldStructure(ConvertedValue value) {
+            setTypeMapper(MAPPER);
+            field = value;
+            allocateMemory();
+        }
+    }
+    public void testLayoutDependsOnConvertedFieldValue() {
+        Structure s1 = new ConvertedFieldStructure(new ConvertedValue(false));
+        Structure s2 = new ConvertedFieldStructure(new ConvertedValue(true));
+        assertEquals("Wrong offset for narrow converted field", 4,
+                     ((Structure.StructField)s1.fields().get("last")).offset);
+        assertEquals("Layout should reflect converted field value", 8,
+                     ((Structure.StructField)s2.fields().get("last")).offset);
+        Structure s3 = new ConvertedFieldStructure(new ConvertedValue(false));
+        assertSame("Matching layout should be shared", s1.fields(), s3.fields());
+    }
+
+    public void testPrimitiveFieldsReadWriteDirect() {
+        class TestStructure extends Structure {
+            public boolean z;
+            public byte b;
+            public short s;
+            public char c;
+            public int i;
+            public long j;
+            public float f;
+            public double d;
+        }
+        TestStructure s = new TestStructure();
+        s.z = true; s.b = (byte)0x81; s.s = (short)0x8001; s.c = 'x';
+        s.i = 0x80000001; s.j = 0x8000000000000001L; s.f = 1.5f; s.d = -2.25;
+        s.write();
+        Pointer p = s.getPointer();
+        assertEquals("Wrong boolean value written",
+                     -1, p.getInt(((Structure.StructField)s.fields().get("z")).offset));
+        assertEquals("Wrong int value written",
+                     s.i, p.getInt(((Structure.StructField)s.fields().get("i")).offset));
+        TestStructure s2 = new TestStructure();
+        s2.useMemory(p);
+        s2.read();
+        assertTrue("Wrong boolean value read", s2.z);
+        assertEquals("Wrong byte value read", s.b, s2.b);
+        assertEquals("Wrong short value read", s.s, s2.s);
+        assertEquals("Wrong char value read", s.c, s2.c);
+        assertEquals("Wrong int value read", s.i, s2.i);
+        assertEquals("Wrong long value read", s.j, s2.j);
+        assertEquals("Wrong float value read", s.f, s2.f, 0);
+        assertEquals("Wrong double value read", s.d, s2.d, 0);
+    }
+
+    public static class BulkStructure extends Structure {
+        public byte b;
+        public int i;
+        public volatile long j;
+        public double d;
+        public BulkStructure() { }
+        public BulkStructure(Pointer p) { super(p); }
+    }
+    public void testBulkArrayReadWrite() {
+        final int COUNT = 100;
+        BulkStructure s = new BulkStructure();
+        BulkStructure[] array = (BulkStructure[])s.toArray(COUNT);
+        int size = s.size();
+        Pointer p = s.getPointer();
+        for (int i=0;i < COUNT;i++) {
+            p.setLong(i*size + ((Structure.StructField)s.fields().get("j")).offset, i);
+            array[i].b = (byte)i;
+            array[i].i = i * 2;
+            array[i].d = i / 2.0;
+        }
+        // padding after 'b' must survive a bulk write
+        p.setByte(1, (byte)0x55);
+        Structure.autoWrite(array);
+        assertEquals("Padding overwritten", 0x55, p.getByte(1));
+        for (int i=0;i < COUNT;i++) {
+            assertEquals("Volatile field overwritten at " + i, i,
+                         p.getLong(i*size + ((Structure.StructField)s.fields().get("j")).offset));
+            assertEquals("Wrong int value written at " + i, i * 2,
+                         p.getInt(i*size + ((Structure.StructField)s.fields().get("i")).offset));
+        }
+
+        BulkStructure[] copy = (BulkStructure[])new BulkStructure().toArray(COUNT);
+        copy[0].useMemory(p);
+        copy = (BulkStructure[])copy[0].toArray(COUNT);
+        Structure.autoRead(copy);
+        for (int i=0;i < COUNT;i++) {
+            assertEquals("Wrong byte value read at " + i, (byte)i, copy[i].b);
+            assertEquals("Wrong int value read at " + i, i * 2, copy[i].i);
+            assertEquals("Wrong long value read at " + i, i, copy[i].j);
+            assertEquals("Wrong double value read at " + i, i / 2.0, copy[i].d, 0);
+        }
+    }
+
+    public static class AutoReadStructure extends BulkStructure {
+        int reads;
+        public void autoRead() {
+            ++reads;
+            super.autoRead();
+        }
+    }
+    public void testBulkArrayRespectsCustomizedReads() {
+        AutoReadStructure[] array = (AutoReadStructure[])new AutoReadStructure().toArray(3);
+        Structure.autoRead(array);
+        for (int i=0;i < array.length;i++) {
+            assertEquals("Customized autoRead not called on element " + i,
+                         1, array[i].reads);
+        }
+    }
+
+    public void testBulkArrayChecksDisposedMemory() {
+        BulkStructure s = new BulkStructure();
+        Memory m = new Memory(s.size() * 4 + 1);
+        BulkStructure[] array = (BulkStructure[])new BulkStructure(m).toArray(4);
+        Structure.autoWrite(array);
+        m.dispose();
+        try {
+            Structure.autoRead(array);
+            fail("Reading disposed memory should fail");
+        }
+        catch(IllegalStateException e) {
+        }
+        try {
+            Structure.autoWrite(array);
+            fail("Writing disposed memory should fail");
+        }
+        catch(IllegalStateException e) {
+        }
+    }
+
+    public void testTrackChangesSkipsUnchangedFields() {
+        class TestStructure extends Structure {
+            public int i;
+            public double d;
+            public String s;
+        }
+        TestStructure s = new TestStructure();
+        s.setTrackChanges(true);
+        s.i = 1;
+        s.d = 2;
+        s.s = "string";
+        s.write();
+        Pointer p = s.getPointer();
+        assertEquals("Initial write should write all fields", 1, p.getInt(0));
+
+        p.setInt(0, 42);
+        s.write();
+        assertEquals("Unchanged field should not be rewritten", 42, p.getInt(0));
+
+        s.i = 3;
+        s.write();
+        assertEquals("Changed field should be written", 3, p.getInt(0));
+
+        p.setInt(0, 5);
+        s.read();
+        assertEquals("Wrong value read", 5, s.i);
+        s.i = 3;
+        s.write();
+        assertEquals("Field changed since last read should be written",
+                     3, p.getInt(0));
+
+        s.setTrackChanges(false);
+        p.setInt(0, 42);
+        s.write();
+        assertEquals("All fields should be written when not tracking changes",
+                     3, p.getInt(0));
+    }
+
+    public static class TrackedStructure extends Structure {
+        public int i;
+        public SharedLayoutStructure inner;
+    }
+    public void testTrackChangesAfterClear() {
+        TrackedStructure s = new TrackedStructure();
+        s.setTrackChanges(true);
+        s.inner.setTrackChanges(true);
+        s.i = 7;
+        s.inner.field = 9;
+        s.write();
+        s.clear();
+        s.write();
+        assertEquals("Field should be rewritten after clear", 7, s.getPointer().getInt(0));
+        assertEquals("Nested field should be rewritten after clear", 9, s.getPointer().getInt(4));
+
+        TrackedStructure s2 = new TrackedStructure();
+        s2.i = 7;
+        s2.inner.field = 9;
+        assertTrue("Structures should be equal", s.equals(s2));
+        assertEquals("Hash codes should match", s.hashCode(), s2.hashCode());
+        assertEquals("Comparison should preserve native memory", 7, s.getPointer().getInt(0));
+    }
+
+    public static class UnloadableStructure extends Structure {
+        public int field;
+    }
+
+    /** Defines this test's classes itself, so that {@link
+     * UnloadableStructure} and its enclosing class agree, delegating all
+     * other classes.
+     */
+    private static class StructureLoader extends URLClassLoader {
+        public StructureLoader() {
+            super(new URL[] {
+                StructureTest.class.getProtectionDomain().getCodeSource().getLocation(),
+            }, StructureTest.class.getClassLoader());
+        }
+        protected synchronized Class loadClass(String name, boolean resolve)
+            throws ClassNotFoundException {
+            if (name.startsWith(StructureTest.class.getName())) {
+                Class cls = findLoadedClass(name);
+                return cls != null ? cls : findClass(name);
+            }
+            return super.loadClass(name, resolve);
+        }
+    }
+
+    public void testCachedLayoutDoesNotPreventUnload() throws Exception {
+        ClassLoader loader = new StructureLoader();
+        Class cls = loader.loadClass(UnloadableStructure.class.getName());
+        assertEquals("Wrong class loader", loader, cls.getClassLoader());
+        Structure s = (Structure)cls.newInstance();
+        assertEquals("Wrong size", 4, s.size());
+        WeakReference ref = new WeakReference(loader);
+        loader = null;
+        cls = null;
+        s = null;
+        for (int i=0;i < 100 && ref.get() != null;i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull("Class loader not GC'd", ref.get());
+    }
 }